@@ -0,0 +1,69 @@
+package com.chedima.btscaleviewer;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+
+import com.chedima.btscaleviewer.core.AlarmEngine;
+import com.chedima.btscaleviewer.core.AlarmRule;
+
+/**
+ * Shows the alarms of AlarmEngine as notifications, one per device and
+ * rule, that open the viewer. Level 1 is silent, level 2 plays the
+ * default sound and level 3 also vibrates; a cleared alarm removes its
+ * notification.
+ *
+ * Called on the reader and watchdog threads, NotificationManager may be
+ * used from any thread.
+ */
+class AlarmNotifier implements AlarmEngine.Listener {
+
+    private final Context mContext;
+    private final BluetoothViewerService mService;
+    private final NotificationManager mManager;
+    private final PendingIntent mIntent;
+
+    AlarmNotifier(Context context, BluetoothViewerService service) {
+        mContext = context.getApplicationContext();
+        mService = service;
+        mManager = (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
+        Intent intent = new Intent(mContext, BluetoothViewer.class).setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        mIntent = PendingIntent.getActivity(mContext, 0, intent, 0);
+    }
+
+    @Override
+    public void onAlarm(String address, int index, AlarmRule rule, int level, long time) {
+        String title = mContext.getString(R.string.alarm_title_fmt, mService.getDeviceName(address), level);
+        String text = describe(rule);
+        Notification notification = new Notification(R.drawable.launcher_main, title + ": " + text, time);
+        notification.setLatestEventInfo(mContext, title, text, mIntent);
+        if (level >= 2) notification.defaults |= Notification.DEFAULT_SOUND;
+        if (level >= 3) notification.defaults |= Notification.DEFAULT_VIBRATE;
+        mManager.notify(id(address, index), notification);
+    }
+
+    @Override
+    public void onAlarmCleared(String address, int index, AlarmRule rule, long time) {
+        mManager.cancel(id(address, index));
+    }
+
+    private String describe(AlarmRule rule) {
+        switch (rule.kind) {
+            case AlarmRule.ABOVE:
+                return mContext.getString(R.string.alarm_above_fmt, rule.threshold, rule.duration / 1000);
+            case AlarmRule.CROSSINGS:
+                return mContext.getString(R.string.alarm_crossings_fmt, rule.crossings, rule.threshold,
+                        rule.duration / 1000);
+            case AlarmRule.SILENCE:
+                return mContext.getString(R.string.alarm_silence_fmt, rule.duration / 1000);
+            default:
+                return rule.toString();
+        }
+    }
+
+    private static int id(String address, int index) {
+        return address.hashCode() * 31 + index;
+    }
+}
@@ -21,6 +21,13 @@ package com.chedima.btscaleviewer;
 
 
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -40,28 +47,46 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.ViewGroup;
 import android.view.inputmethod.EditorInfo;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageButton;
+import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.chedima.btscaleviewer.core.AlarmEngine;
+import com.chedima.btscaleviewer.core.LiveAnalysis;
+import com.chedima.btscaleviewer.core.Settings;
+import com.chedima.btscaleviewer.core.SettingsWriter;
+import com.chedima.btscaleviewer.core.TcpTransport;
+
 public class BluetoothViewer extends Activity {
 
     private static final String TAG = BluetoothViewer.class.getSimpleName();
     private static final boolean D = true;
 
     static Context con;
-    static public String lastKnownDevice;
     
     // Intent request codes
     private static final int REQUEST_CONNECT_DEVICE = 1;
     private static final int REQUEST_ENABLE_BT = 2;
 
     private static final String SAVED_PENDING_REQUEST_ENABLE_BT = "PENDING_REQUEST_ENABLE_BT";
+    static final String SETTINGS_FILENAME = "settings.dat";
+    // quiet time before changed settings are written
+    private static final long SETTINGS_SAVE_DELAY = 2000;
+    // raw captures, under the app's private files
+    private static final String CAPTURE_DIR = "captures";
+    // recorded readings, one file per run
+    private static final String SESSIONS_DIR = "sessions";
+    // shown while no device is in use
     ScaleView scale;
+    // one gauge per device, in the order they were added
+    private final Map<String, ScaleView> mScales = new LinkedHashMap<String, ScaleView>();
+    private LinearLayout mScaleGrid;
     // Layout Views
     private TextView mStatusView;
     private EditText mOutEditText;
@@ -78,12 +103,18 @@ public class BluetoothViewer extends Activity {
     private StringBuffer mOutStringBuffer;
     private BluetoothAdapter mBluetoothAdapter = null;
     private BluetoothViewerService mBluetoothService = null;
+    private SettingsWriter mSettingsWriter;
+    private SessionCatalog mCatalog;
+    // null until loaded by the settings writer
+    private Settings mSettings;
+    private KnownDevices mKnownDevices;
 
     // State variables
     private boolean paused = false;
     private boolean connected = false;
-    private boolean reconnectNeeded= false;
     private boolean manualDisconnect = false; 
+    // devices whose connection was lost and should come back
+    private final Set<String> mReconnectDevices = Collections.synchronizedSet(new HashSet<String>());
     
     
 
@@ -96,15 +127,27 @@ public class BluetoothViewer extends Activity {
     private final TimerTask reconnectTask = new TimerTask(){
     	@Override
     	public void run(){
-    		if (reconnectNeeded && !connected && !paused && !pendingRequestEnableBt){
-
-                BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(lastKnownDevice);
-                mBluetoothService.connect(device);
+    		if (!mReconnectDevices.isEmpty() && !pendingRequestEnableBt){
+    			mHandler.post(reconnectDevices);
     		}
     	}
     	
     };
 
+    private final Runnable reconnectDevices = new Runnable() {
+        public void run() {
+            String[] addresses;
+            synchronized (mReconnectDevices) {
+                addresses = mReconnectDevices.toArray(new String[mReconnectDevices.size()]);
+            }
+            for (String address : addresses) {
+                if (mBluetoothService.getState(address) == BluetoothViewerService.STATE_NONE) {
+                    connectDevice(address);
+                }
+            }
+        }
+    };
+
     Timer timer = new Timer();
     
     
@@ -113,38 +156,48 @@ public class BluetoothViewer extends Activity {
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
+            String address = (String) msg.obj;
             switch (msg.what) {
                 case BluetoothViewerService.MSG_CONNECTED:
-                    connected = true;
-                    reconnectNeeded = false;
-                    mStatusView.setText(formatStatusMessage(R.string.btstatus_connected_to_fmt, msg.obj));
+                    mReconnectDevices.remove(address);
+                    if (mKnownDevices != null) {
+                        mKnownDevices.remember(address, ConnectStrategy.fromOrdinal(msg.arg1));
+                        saveSettings();
+                    }
+                    mStatusView.setText(formatStatusMessage(R.string.btstatus_connected_to_fmt, address));
+                    addScale(address);
                     onBluetoothStateChanged();
                     break;
                 case BluetoothViewerService.MSG_CONNECTING:
-                    connected = false;
-                    mStatusView.setText(formatStatusMessage(R.string.btstatus_connecting_to_fmt, msg.obj));
+                    mStatusView.setText(formatStatusMessage(R.string.btstatus_connecting_to_fmt, address));
+                    addScale(address);
                     onBluetoothStateChanged();
-                    Log.v("BT SCALE","MSG_connecting "+(reconnectNeeded?"yes":"no"));
+                    Log.v("BT SCALE","MSG_connecting "+address);
                     break;
                 case BluetoothViewerService.MSG_NOT_CONNECTED:
-                    connected = false;
                     mStatusView.setText(R.string.btstatus_not_connected);
+                    if (address == null) {
+                        removeScales();
+                    } else {
+                        removeScale(address);
+                    }
                     onBluetoothStateChanged();
-                    Log.v("BT SCALE","MSG_not_connecting "+(reconnectNeeded?"yes":"no"));
+                    Log.v("BT SCALE","MSG_not_connecting "+address);
                     break;
                 case BluetoothViewerService.MSG_CONNECTION_FAILED:
-                    connected = false;
                     mStatusView.setText("  ");
-                    Log.v("BT SCALE","MSG_connection_failed "+(reconnectNeeded?"yes":"no"));
+                    Log.v("BT SCALE","MSG_connection_failed "+address);
                     onBluetoothStateChanged();
                     break; 
                 case BluetoothViewerService.MSG_CONNECTION_LOST:
-                    connected = false;
-                    reconnectNeeded = !manualDisconnect;
-                    Log.v("BT SCALE","MSG_connection_lost "+(reconnectNeeded?"yes":"no"));
+                    if (!manualDisconnect) mReconnectDevices.add(address);
+                    Log.v("BT SCALE","MSG_connection_lost "+address);
                     mStatusView.setText(" ");
-                	scale.currPos = ScaleView.NOTCONNECTED;
-                	scale.invalidate();
+                    ScaleView lost = mScales.get(address);
+                    if (lost != null) {
+                    	lost.addSample(ScaleView.NOTCONNECTED);
+                    	if (!paused) lost.invalidate();
+                    }
                     onBluetoothStateChanged();
                     break;
                 case BluetoothViewerService.MSG_BYTES_WRITTEN:
@@ -153,15 +206,18 @@ public class BluetoothViewer extends Activity {
                     Log.i(TAG, "written = '" + written + "'");
                     break;
                 case BluetoothViewerService.MSG_LINE_READ:
-                    if (paused) break;
-                    String readMessage = (String)msg.obj;
-                    //if (D) Log.d(TAG, readMessage);
-                    
-                    if (isInteger(readMessage)) {
-                    	scale.currPos = Integer.parseInt(readMessage);
-                    	scale.invalidate();
+                    ScaleView view = mScales.get(address);
+                    if (view != null) {
+                    	// on pause only into the history, the cheapest there is
+                    	view.addSample(msg.arg1);
+                    	if (paused) break;
+                    	takeSnapshots(address, view);
+                    	view.invalidate();
                     }
-                    //mConversationArrayAdapter.add(readMessage);
+                    break;
+                case BluetoothViewerService.MSG_SPIKE:
+                    ScaleView spiked = mScales.get(address);
+                    if (spiked != null) spiked.markSpike(msg.arg1);
                     break;
             }
         }
@@ -188,6 +244,11 @@ public class BluetoothViewer extends Activity {
             pendingRequestEnableBt = savedInstanceState.getBoolean(SAVED_PENDING_REQUEST_ENABLE_BT);
         }
 
+        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        // The settings are read while the layout inflates, the known
+        // devices are reconnected as soon as they are there.
+        loadSettings();
+
         setContentView(R.layout.main);
 
         mStatusView = (TextView) findViewById(R.id.btstatus);
@@ -199,7 +260,6 @@ public class BluetoothViewer extends Activity {
             public void onClick(View v) {
  
                 startDeviceListActivity();
-               	reconnectNeeded= false;
                	manualDisconnect = false;
             }
         });
@@ -207,9 +267,13 @@ public class BluetoothViewer extends Activity {
         mToolbarDisconnectButton = (ImageButton) findViewById(R.id.toolbar_btn_disconnect);
         mToolbarDisconnectButton.setOnClickListener(new OnClickListener() {
             public void onClick(View v) {
-                disconnectDevices();
-            	reconnectNeeded= false;
             	manualDisconnect = true;
+            	mReconnectDevices.clear();
+            	if (mKnownDevices != null) {
+            	    mKnownDevices.setAllInactive();
+            	    saveSettings();
+            	}
+                disconnectDevices();
             	Log.v("BT SCALE","devices disconnected");
             }
         });
@@ -217,22 +281,138 @@ public class BluetoothViewer extends Activity {
         mToolbarPauseButton = (ImageButton) findViewById(R.id.toolbar_btn_pause);
         mToolbarPauseButton.setOnClickListener(new OnClickListener() {
             public void onClick(View v) {
-                paused = true;
-                reconnectNeeded= false;
-                onPausedStateChanged();
+                setPaused(true);
             }
         });
 
         mToolbarPlayButton = (ImageButton) findViewById(R.id.toolbar_btn_play);
         mToolbarPlayButton.setOnClickListener(new OnClickListener() {
             public void onClick(View v) {
-                paused = false;
-                reconnectNeeded= false;
-                onPausedStateChanged();
+                setPaused(false);
+            }
+        });
+    }
+
+    private void loadSettings() {
+        mSettingsWriter = new SettingsWriter(getFileStreamPath(SETTINGS_FILENAME), SETTINGS_SAVE_DELAY);
+        mSettingsWriter.load(new SettingsWriter.LoadCallback() {
+            public void onLoaded(final Settings settings, IOException error) {
+                if (error != null) Log.e(TAG, "could not read " + SETTINGS_FILENAME, error);
+                // still on the writer thread, the legacy file is read here too
+                if (!mSettingsWriter.getFile().exists()) KnownDevices.migrate(BluetoothViewer.this, settings);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        onSettingsLoaded(settings);
+                    }
+                });
             }
         });
+    }
 
-        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    private void onSettingsLoaded(Settings settings) {
+        mSettings = settings;
+        mKnownDevices = new KnownDevices(settings);
+        if (mBluetoothService != null) applySettings();
+        if (mBluetoothAdapter.isEnabled()) {
+            connectKnownDevices();
+        }
+    }
+
+    private void createBluetoothService() {
+        if (mBluetoothService != null) return;
+        File dir = new File(getFilesDir(), SESSIONS_DIR);
+        if (mCatalog == null) mCatalog = new SessionCatalog(this, dir);
+        mBluetoothService = new BluetoothViewerService(mHandler, dir, mCatalog);
+        if (mSettings != null) applySettings();
+    }
+
+    private void applySettings() {
+        mBluetoothService.setRetention(mSettings.rawDays, mSettings.secondDays, mSettings.minuteDays);
+        mBluetoothService.setOperator(mSettings.operator);
+        mBluetoothService.setAnalysisSettings(mSettings);
+        mBluetoothService.setAlarms(new AlarmEngine(mSettings.alarms, new AlarmNotifier(this, mBluetoothService)));
+    }
+
+    /**
+     * Only takes a snapshot, the writer puts it on disk.
+     */
+    private void saveSettings() {
+        mSettingsWriter.save(mSettings);
+    }
+
+    /**
+     * Reconnect the devices that were in use when the app went away.
+     */
+    private void connectKnownDevices() {
+        createBluetoothService();
+        for (Settings.Device entry : mKnownDevices.getActive()) {
+            connectDevice(entry.address);
+            mReconnectDevices.add(entry.address);
+        }
+    }
+
+    private boolean connectDevice(String address) {
+        if (TcpTransport.isTcpAddress(address)) {
+            try {
+                return mBluetoothService.connect(TcpTransport.Factory.parse(address));
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, e.getMessage());
+                return true;
+            }
+        }
+        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+        ConnectStrategy strategy = mKnownDevices != null ? mKnownDevices.getStrategy(address) : null;
+        return mBluetoothService.connect(device, strategy);
+    }
+
+    private void addScale(String address) {
+        if (mScales.containsKey(address)) return;
+        ScaleView view = new ScaleView(this);
+        view.label = mBluetoothService.getDeviceName(address);
+        if (paused) view.setPaused(true);
+        mScales.put(address, view);
+        layoutScales();
+    }
+
+    private void removeScale(String address) {
+        if (mScales.remove(address) != null) layoutScales();
+    }
+
+    private void removeScales() {
+        mScales.clear();
+        layoutScales();
+    }
+
+    /**
+     * Arrange the gauges in a grid, as square as possible.
+     */
+    private void layoutScales() {
+        if (mScaleGrid == null) return;
+        for (int i = 0; i < mScaleGrid.getChildCount(); i++) {
+            View row = mScaleGrid.getChildAt(i);
+            if (row instanceof ViewGroup) ((ViewGroup) row).removeAllViews();
+        }
+        mScaleGrid.removeAllViews();
+
+        if (mScales.isEmpty()) {
+            mScaleGrid.addView(scale, new LinearLayout.LayoutParams(
+                    LinearLayout.LayoutParams.FILL_PARENT, 0, 1));
+            return;
+        }
+
+        int columns = (int) Math.ceil(Math.sqrt(mScales.size()));
+        LinearLayout row = null;
+        int i = 0;
+        for (ScaleView view : mScales.values()) {
+            if (i++ % columns == 0) {
+                row = new LinearLayout(this);
+                row.setOrientation(LinearLayout.HORIZONTAL);
+                mScaleGrid.addView(row, new LinearLayout.LayoutParams(
+                        LinearLayout.LayoutParams.FILL_PARENT, 0, 1));
+            }
+            row.addView(view, new LinearLayout.LayoutParams(
+                    0, LinearLayout.LayoutParams.FILL_PARENT, 1));
+        }
     }
 
     private void startDeviceListActivity() {
@@ -249,7 +429,7 @@ public class BluetoothViewer extends Activity {
             pendingRequestEnableBt = true;
             Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             startActivityForResult(enableIntent, REQUEST_ENABLE_BT);
-        } else if (mBluetoothService == null) {
+        } else if (scale == null) {
             setupUserInterface();
         }
     }
@@ -257,6 +437,7 @@ public class BluetoothViewer extends Activity {
     private void setupUserInterface() {
         mConversationArrayAdapter = new ArrayAdapter<String>(this, R.layout.message);
         
+        mScaleGrid = (LinearLayout) findViewById(R.id.scales);
         scale = (ScaleView)findViewById(R.id.scale);
         //ListView mConversationView = (ListView) findViewById(R.id.in);
 /*        mConversationView.setAdapter(mConversationArrayAdapter);
@@ -282,17 +463,29 @@ public class BluetoothViewer extends Activity {
             }
         });
 
-        mBluetoothService = new BluetoothViewerService(mHandler);
+        createBluetoothService();
 
         mOutStringBuffer = new StringBuffer("");
 
+        layoutScales();
         onBluetoothStateChanged();
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        // the process may be killed without further notice from here on
+        mSettingsWriter.flush();
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (mBluetoothService != null) mBluetoothService.stop();
+        timer.cancel();
+        mSettingsWriter.close();
+        if (mBluetoothService != null) mBluetoothService.shutdown();
+        // after the service, so the last recording gets cataloged
+        if (mCatalog != null) mCatalog.close();
     }
 
     private void sendMessage(CharSequence chars) {
@@ -311,8 +504,8 @@ public class BluetoothViewer extends Activity {
         }
     }
 
-    private String formatStatusMessage(int formatResId, Object obj) {
-        String deviceName = (String) obj;
+    private String formatStatusMessage(int formatResId, String address) {
+        String deviceName = mBluetoothService.getDeviceName(address);
         return getString(formatResId, deviceName);
     }
 
@@ -323,13 +516,9 @@ public class BluetoothViewer extends Activity {
                 // When DeviceListActivity returns with a device to connect
                 if (resultCode == Activity.RESULT_OK) {
                     String address = data.getStringExtra(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
-                    
-                    //SerializeObject.WriteSettings(con, address, "lastdevice.dat");
-                    
-                	
-                    BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-                    mBluetoothService.connect(device);
-                    lastKnownDevice = address;
+                    if (!connectDevice(address)) {
+                        Toast.makeText(this, R.string.too_many_devices, Toast.LENGTH_SHORT).show();
+                    }
                 }
                 break;
             case REQUEST_ENABLE_BT:
@@ -340,6 +529,10 @@ public class BluetoothViewer extends Activity {
                     Toast.makeText(this, R.string.bt_not_enabled, Toast.LENGTH_SHORT).show();
                 }
                 setupUserInterface();
+                // without settings yet, onSettingsLoaded() connects
+                if (resultCode == Activity.RESULT_OK && mKnownDevices != null) {
+                    connectKnownDevices();
+                }
         }
     }
 
@@ -363,10 +556,28 @@ public class BluetoothViewer extends Activity {
             case R.id.menu_buy:
                 openURL(getString(R.string.url_full_app));
                 break;
+            case R.id.menu_capture:
+                toggleCapture(item);
+                break;
         }
         return false;
     }
 
+    /**
+     * Start or stop recording the raw bytes of all scales, for replaying
+     * what a misbehaving scale sent.
+     */
+    private void toggleCapture(MenuItem item) {
+        if (mBluetoothService == null) return;
+        boolean capture = !mBluetoothService.isCapturing();
+        File dir = new File(getFilesDir(), CAPTURE_DIR);
+        mBluetoothService.setCaptureDir(capture ? dir : null);
+        item.setChecked(capture);
+        if (capture) {
+            Toast.makeText(this, getString(R.string.capture_started_fmt, dir.getPath()), Toast.LENGTH_SHORT).show();
+        }
+    }
+
     private void openURL(String url) {
         startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(url)));
     }
@@ -378,8 +589,10 @@ public class BluetoothViewer extends Activity {
     }
 
     private void onBluetoothStateChanged() {
+        int count = mBluetoothService != null ? mBluetoothService.getConnectedCount() : 0;
+        connected = count > 0;
         if (connected) {
-            mToolbarConnectButton.setVisibility(View.GONE);
+            mToolbarConnectButton.setVisibility(count < BluetoothViewerService.MAX_SESSIONS ? View.VISIBLE : View.GONE);
             mToolbarDisconnectButton.setVisibility(View.VISIBLE);
             //mSendTextContainer.setVisibility(View.VISIBLE);
         } else {
@@ -387,10 +600,32 @@ public class BluetoothViewer extends Activity {
             mToolbarDisconnectButton.setVisibility(View.GONE);
             //mSendTextContainer.setVisibility(View.GONE);
         }
-        paused = false;
+        // a device coming or going does not end the pause
+        onPausedStateChanged();
+    }
+
+    /**
+     * Freeze the gauges or let them go on from the latest readings. The
+     * readings keep coming, being recorded and analysed either way.
+     */
+    private void setPaused(boolean paused) {
+        this.paused = paused;
+        for (Map.Entry<String, ScaleView> entry : mScales.entrySet()) {
+            if (!paused) takeSnapshots(entry.getKey(), entry.getValue());
+            entry.getValue().setPaused(paused);
+        }
         onPausedStateChanged();
     }
 
+    private void takeSnapshots(String address, ScaleView view) {
+        LiveAnalysis analysis = mBluetoothService != null ? mBluetoothService.getAnalysis(address) : null;
+        if (analysis == null) return;
+        analysis.stats.snapshot(view.stats);
+        analysis.zones.snapshot(view.zones);
+        analysis.trend.snapshot(view.trend);
+        analysis.spectrum.snapshot(view.spectrum);
+    }
+
     private void onPausedStateChanged() {
         if (connected) {
             if (paused) {
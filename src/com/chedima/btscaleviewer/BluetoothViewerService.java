@@ -16,437 +16,610 @@
 
 package com.chedima.btscaleviewer;
 
-import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
+import android.os.Process;
 import android.util.Log;
 
+import com.chedima.btscaleviewer.core.AlarmEngine;
+import com.chedima.btscaleviewer.core.CaptureWriter;
+import com.chedima.btscaleviewer.core.ChunkListener;
+import com.chedima.btscaleviewer.core.ConnectionStateMachine;
+import com.chedima.btscaleviewer.core.DeviceSession;
+import com.chedima.btscaleviewer.core.DisplayFilter;
+import com.chedima.btscaleviewer.core.LiveAnalysis;
+import com.chedima.btscaleviewer.core.ReadingListener;
+import com.chedima.btscaleviewer.core.ScaleTransport;
+import com.chedima.btscaleviewer.core.SessionCompactor;
+import com.chedima.btscaleviewer.core.SessionRecorder;
+import com.chedima.btscaleviewer.core.Settings;
+import com.chedima.btscaleviewer.core.SpectrumAnalyzer;
+import com.chedima.btscaleviewer.core.SpikeDetector;
+
 /**
  * This class does all the work for setting up and managing Bluetooth
- * connections with other devices. It has a thread that listens for
- * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * connections with the scales. Every scale has its own DeviceSession,
+ * keyed by MAC address; the sessions connect and read on a bounded pool
+ * shared by all of them, and a watchdog drops sessions that went silent.
+ * Besides RFCOMM, sessions can run over any ScaleTransport, e.g. TCP for
+ * serial-to-Ethernet adapters. The readings of all sessions are recorded
+ * to a new file every hour, and on request the raw bytes of every session
+ * are captured to files for later replay. A SessionCompactor rolls up and
+ * deletes old recordings in the background.
  */
 public class BluetoothViewerService {
 
     private static final String TAG = BluetoothViewerService.class.getSimpleName();
     private static final boolean D = true;
 
-    private static final int STATE_NONE = 0;       // we're doing nothing
-    private static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
-    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+    public static final int STATE_NONE = ConnectionStateMachine.STATE_NONE;
+    public static final int STATE_CONNECTING = ConnectionStateMachine.STATE_CONNECTING;
+    public static final int STATE_CONNECTED = ConnectionStateMachine.STATE_CONNECTED;
 
+    // All session messages carry the device address in obj,
+    // MSG_NOT_CONNECTED carries null when all sessions were stopped.
     public static final int MSG_NOT_CONNECTED = 10;
     public static final int MSG_CONNECTING = 11;
-    public static final int MSG_CONNECTED = 12;
+    public static final int MSG_CONNECTED = 12;           // arg1: ConnectStrategy ordinal
     public static final int MSG_CONNECTION_FAILED = 13;
     public static final int MSG_CONNECTION_LOST = 14;
-    public static final int MSG_LINE_READ = 21;
+    public static final int MSG_LINE_READ = 21;           // arg1: the reading
     public static final int MSG_BYTES_WRITTEN = 22;
+    public static final int MSG_SPIKE = 23;               // arg1: the reading, arg2: the median before
     public static final int REFRESHRATE = 500;
 
+    public static final int MAX_SESSIONS = 8;
+
+    // The scales send several frames per second, a second of silence
+    // means the link is gone even if the socket does not notice.
+    private static final long READ_TIMEOUT = 1000;
+    private static final long WATCHDOG_PERIOD = 250;
+
+    // recordings move to a new file this often, so they can age out
+    private static final long ROTATE_PERIOD = 60 * 60 * 1000;
+    private static final long COMPACT_DELAY = 60 * 1000;
+    private static final long COMPACT_PERIOD = 60 * 60 * 1000;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    // spectra are analysed this often when Settings.spectrum is on; an
+    // oscillation this strong moves the notch with Settings.autoNotch
+    private static final long SPECTRUM_PERIOD = 1000;
+    private static final double AUTO_NOTCH_AMPLITUDE = 2;
+
     private final BluetoothAdapter mAdapter;
     private final Handler mHandler;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
+    private final ConcurrentHashMap<String, DeviceSession> mSessions = new ConcurrentHashMap<String, DeviceSession>();
+    private final ConcurrentHashMap<String, LiveAnalysis> mAnalyses = new ConcurrentHashMap<String, LiveAnalysis>();
+    // what new sessions analyse with; the zones of the gauge for now
+    private volatile Settings mAnalysisSettings = new Settings();
+    private final ConcurrentHashMap<String, AlarmEngine.Device> mAlarmDevices =
+            new ConcurrentHashMap<String, AlarmEngine.Device>();
+    private volatile AlarmEngine mAlarms;
+    private final ConcurrentHashMap<String, DisplayFilter> mFilters = new ConcurrentHashMap<String, DisplayFilter>();
+    private final ScheduledExecutorService mSpectrumExecutor = Executors.newSingleThreadScheduledExecutor();
+    // only for the spectrum thread
+    private final SpectrumAnalyzer.Snapshot mSpectrum = new SpectrumAnalyzer.Snapshot();
+    // every session blocks one thread while connecting or reading
+    private final ExecutorService mReaderPool = Executors.newFixedThreadPool(MAX_SESSIONS);
+    private final ScheduledExecutorService mWatchdog = Executors.newSingleThreadScheduledExecutor();
+    private volatile File mCaptureDir;
+    private final File mRecordingDir;
+    private SessionRecorder mRecorder;
+    // where each session records to, moved along when the file rotates
+    private final ConcurrentHashMap<String, RecordingListener> mRecordingListeners =
+            new ConcurrentHashMap<String, RecordingListener>();
+    private final ScheduledExecutorService mCompactor = Executors.newSingleThreadScheduledExecutor();
+    private volatile SessionCompactor mCompaction;
+    private final SessionCatalog mCatalog;
+    private volatile String mOperator;
 
 
     /**
      * Prepare a new Bluetooth session.
      *
      * @param handler A Handler to send messages back to the UI Activity
+     * @param recordingDir Where the readings are recorded
+     * @param catalog Told about every recording made and compacted
      */
-    public BluetoothViewerService(Handler handler) {
+    public BluetoothViewerService(Handler handler, File recordingDir, SessionCatalog catalog) {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
         mHandler = handler;
+        mRecordingDir = recordingDir;
+        mCatalog = catalog;
+        // recordings from before the catalog, or lost to a crash
+        mCatalog.reindex(null);
+        mWatchdog.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (DeviceSession session : mSessions.values()) {
+                    // thrown out of the task it would cancel the watchdog for good
+                    try {
+                        session.checkTimeout(now, READ_TIMEOUT);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, session.address + ": watchdog failed", e);
+                    }
+                }
+                for (Map.Entry<String, AlarmEngine.Device> entry : mAlarmDevices.entrySet()) {
+                    try {
+                        entry.getValue().tick(now);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, entry.getKey() + ": alarms failed", e);
+                    }
+                }
+            }
+        }, WATCHDOG_PERIOD, WATCHDOG_PERIOD, TimeUnit.MILLISECONDS);
+        mWatchdog.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                rotateRecording();
+            }
+        }, ROTATE_PERIOD, ROTATE_PERIOD, TimeUnit.MILLISECONDS);
+        Settings defaults = new Settings();
+        setRetention(defaults.rawDays, defaults.secondDays, defaults.minuteDays);
+        mCompactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        }, COMPACT_DELAY, COMPACT_PERIOD, TimeUnit.MILLISECONDS);
+        mSpectrumExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    analyzeSpectra();
+                } catch (RuntimeException e) {
+                    // thrown out of the task it would cancel every analysis to come
+                    Log.e(TAG, "spectrum analysis failed", e);
+                }
+            }
+        }, SPECTRUM_PERIOD, SPECTRUM_PERIOD, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Set the current state of the connection
+     * How long recordings are kept raw, per second and per minute; see
+     * SessionCompactor. Takes effect with the next compaction.
      *
-     * @param state An integer defining the current connection state
+     * @param minuteDays 0 to keep the per-minute rollups for ever
      */
-    private synchronized void setState(int state) {
-        if (D) Log.d(TAG, "setState() " + mState + " -> " + state);
-        mState = state;
+    public void setRetention(int rawDays, int secondDays, int minuteDays) {
+        SessionCompactor compaction = new SessionCompactor(rawDays * DAY, secondDays * DAY, minuteDays * DAY);
+        compaction.setListener(mCatalog);
+        mCompaction = compaction;
     }
 
     /**
-     * Return the current connection state.
+     * Who records, cataloged with the recordings started from now on.
+     *
+     * @param operator null if unknown
      */
-    public synchronized int getState() {
-        return mState;
+    public void setOperator(String operator) {
+        mOperator = operator;
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
-     *
-     * @param device The BluetoothDevice to connect
+     * Return the most advanced connection state of all sessions.
      */
-    public synchronized void connect(BluetoothDevice device) {
-        if (D) Log.d(TAG, "connect to: " + device);
-
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
+    public int getState() {
+        int state = STATE_NONE;
+        for (DeviceSession session : mSessions.values()) {
+            state = Math.max(state, session.getState());
         }
+        return state;
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+    /**
+     * Return the connection state of one device.
+     */
+    public int getState(String address) {
+        DeviceSession session = mSessions.get(address);
+        return session != null ? session.getState() : STATE_NONE;
+    }
 
-        // Start the thread to connect with the given device
-        try {
-            mConnectThread = new ConnectThread(device);
-            mConnectThread.start();
-            setState(STATE_CONNECTING);
-            sendMessage(MSG_CONNECTING, device.getName());
-        } catch (SecurityException e) {
-            Log.e(TAG, e.getMessage(), e);
-        } catch (IllegalArgumentException e) {
-            Log.e(TAG, e.getMessage(), e);
-        } catch (NoSuchMethodException e) {
-            Log.e(TAG, e.getMessage(), e);
-        } catch (IllegalAccessException e) {
-            Log.e(TAG, e.getMessage(), e);
-        } catch (InvocationTargetException e) {
-            Log.e(TAG, e.getMessage(), e);
+    public int getConnectedCount() {
+        int count = 0;
+        for (DeviceSession session : mSessions.values()) {
+            if (session.getState() == STATE_CONNECTED) count++;
         }
+        return count;
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
-     *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * The analysis of the readings of a device since it was connected,
+     * or null if there is no session for it. Snapshots can be taken from
+     * any thread.
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
-        if (D) Log.d(TAG, "connected");
-
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+    public LiveAnalysis getAnalysis(String address) {
+        return mAnalyses.get(address);
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+    /**
+     * The settings the devices connected from now on are analysed and
+     * displayed with; whether spectra are analysed takes effect at once.
+     */
+    public void setAnalysisSettings(Settings settings) {
+        mAnalysisSettings = settings;
+    }
 
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
+    /**
+     * The alarms the devices connected from now on are evaluated with,
+     * null for none.
+     */
+    public void setAlarms(AlarmEngine alarms) {
+        mAlarms = alarms;
+    }
 
-        setState(STATE_CONNECTED);
-        sendMessage(MSG_CONNECTED, device.getName());
+    public String getDeviceName(String address) {
+        DeviceSession session = mSessions.get(address);
+        return session != null ? session.name : address;
     }
 
     /**
-     * Stop all threads
+     * Start connecting to a Bluetooth device, adding a session for it if
+     * needed. A connection to the same device in progress is superseded.
+     *
+     * @param device The BluetoothDevice to connect
+     * @param preferred The strategy to try first, typically the one that
+     *                  worked last time, or null
+     * @return false if MAX_SESSIONS other devices are already in use
      */
-    public synchronized void stop() {
-        if (D) Log.d(TAG, "stop");
+    public boolean connect(BluetoothDevice device, ConnectStrategy preferred) {
+        // Always cancel discovery because it will slow down a connection
+        if (mAdapter != null) mAdapter.cancelDiscovery();
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+        return connect(new RfcommTransport.Factory(device, preferred));
+    }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.shutdown();
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+    /**
+     * Start connecting over any transport, adding a session for the device
+     * if needed. A connection to the same device in progress is superseded,
+     * an existing session keeps the factory it was created with.
+     *
+     * @return false if MAX_SESSIONS other devices are already in use
+     */
+    public boolean connect(ScaleTransport.Factory factory) {
+        DeviceSession session = mSessions.get(factory.getAddress());
+        if (session == null) {
+            if (mSessions.size() >= MAX_SESSIONS) {
+                Log.w(TAG, "too many sessions, not connecting to " + factory.getAddress());
+                return false;
+            }
+            session = new DeviceSession(factory, mSessionCallback);
+            DeviceSession existing = mSessions.putIfAbsent(session.address, session);
+            if (existing != null) {
+                session = existing;
+            } else {
+                // only the session that won gets listeners, nothing of the other is kept
+                addListeners(session);
+                if (mCaptureDir != null) startCapture(session, mCaptureDir);
+            }
         }
 
-        setState(STATE_NONE);
-        sendMessage(MSG_NOT_CONNECTED);
+        session.connect(mReaderPool);
+        return true;
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
-     *
-     * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * Give a new session its analysis, alarms, display and recording, in
+     * the order they see each reading.
      */
-    public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
+    private void addListeners(DeviceSession session) {
+        RecordingListener recording = new RecordingListener(session.address);
+        // before the handler, so the UI finds each reading in it
+        LiveAnalysis analysis = new LiveAnalysis(mAnalysisSettings, recording);
+        session.addListener(analysis);
+        mAnalyses.put(session.address, analysis);
+        AlarmEngine engine = mAlarms;
+        if (engine != null) {
+            AlarmEngine.Device alarms = engine.add(session.address, System.currentTimeMillis());
+            session.addListener(alarms);
+            mAlarmDevices.put(session.address, alarms);
+        }
+        Settings display = mAnalysisSettings;
+        if (display.smoothing < 1 || display.notch || display.autoNotch) {
+            DisplayFilter filter = new DisplayFilter(new HandlerReadingListener(session.address), display.smoothing,
+                    display.notch ? display.notchHz : 0);
+            session.addListener(filter);
+            mFilters.put(session.address, filter);
+        } else {
+            session.addListener(new HandlerReadingListener(session.address));
+        }
+        session.addListener(recording);
         synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+            recording.retarget(getRecorder());
+            mRecordingListeners.put(session.address, recording);
         }
-        // Perform the write unsynchronized
-        r.write(out);
     }
 
-    private void sendLineRead(String line) {
-        mHandler.obtainMessage(MSG_LINE_READ, -1, -1, line).sendToTarget();
+    /**
+     * Stop the session of one device and forget it.
+     */
+    public void disconnect(String address) {
+        DeviceSession session = mSessions.remove(address);
+        if (session == null) return;
+        session.stop();
+        stopCapture(session);
+        mRecordingListeners.remove(address);
+        mAnalyses.remove(address);
+        mFilters.remove(address);
+        AlarmEngine.Device alarms = mAlarmDevices.remove(address);
+        if (alarms != null) alarms.clearAll(System.currentTimeMillis());
+        sendMessage(MSG_NOT_CONNECTED, address);
     }
 
-    private void sendBytesWritten(byte[] bytes) {
-        mHandler.obtainMessage(MSG_BYTES_WRITTEN, -1, -1, bytes).sendToTarget();
+    /**
+     * The recorder is started with the first session, so launching the
+     * app without a scale does not leave empty recordings behind.
+     */
+    private synchronized SessionRecorder getRecorder() {
+        if (mRecorder == null) {
+            long now = System.currentTimeMillis();
+            File file = new File(mRecordingDir, timestamp(now) + SessionCompactor.RAW_SUFFIX);
+            mRecorder = new SessionRecorder(file, now);
+            mCatalog.onRecordingStarted(file, now, mOperator);
+        }
+        return mRecorder;
     }
 
-    private void sendMessage(int messageId, String deviceName) {
-        mHandler.obtainMessage(messageId, -1, -1, deviceName).sendToTarget();
+    /**
+     * Move all sessions to a new recording file and finish the old one;
+     * without sessions the next one starts the new file.
+     */
+    private synchronized void rotateRecording() {
+        SessionRecorder old = mRecorder;
+        if (old == null) return;
+        mRecorder = null;
+        for (RecordingListener listener : mRecordingListeners.values()) {
+            listener.retarget(getRecorder());
+        }
+        closeRecorder(old);
     }
 
-    private void sendMessage(int messageId) {
-        mHandler.obtainMessage(messageId).sendToTarget();
+    private void closeRecorder(SessionRecorder recorder) {
+        recorder.close();
+        // with the blocks close() could not fit
+        if (recorder.getDropped() > 0) {
+            Log.w(TAG, recorder.getFile().getName() + ": " + recorder.getDropped() + " readings dropped");
+        }
+        mCatalog.onRecordingClosed(recorder);
     }
 
     /**
-     * Indicate that the connection attempt failed and notify the UI Activity.
+     * Runs on the spectrum thread, at background priority so it yields to
+     * the reader threads and the UI. With Settings.autoNotch the notch of
+     * the display follows a strong oscillation, and goes back to the one
+     * set when there is none.
      */
-    private void connectionFailed() {
-        setState(STATE_NONE);
-        sendMessage(MSG_CONNECTION_FAILED);
+    private void analyzeSpectra() {
+        Settings settings = mAnalysisSettings;
+        if (!settings.spectrum) return;
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        for (Map.Entry<String, LiveAnalysis> entry : mAnalyses.entrySet()) {
+            SpectrumAnalyzer spectrum = entry.getValue().spectrum;
+            if (!spectrum.analyze() || !settings.autoNotch) continue;
+            DisplayFilter filter = mFilters.get(entry.getKey());
+            if (filter == null) continue;
+            spectrum.snapshot(mSpectrum);
+            if (mSpectrum.amplitude >= AUTO_NOTCH_AMPLITUDE) {
+                filter.setNotch(mSpectrum.frequency);
+            } else {
+                filter.setNotch(settings.notch ? settings.notchHz : 0);
+            }
+        }
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
+     * Runs on the compactor thread, at background priority so it yields
+     * to the reader threads.
      */
-    private void connectionLost() {
-        setState(STATE_NONE);
-        sendMessage(MSG_CONNECTION_LOST);
+    private void compact() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        File active;
+        synchronized (this) {
+            active = mRecorder != null ? mRecorder.getFile() : null;
+        }
+        SessionCompactor compaction = mCompaction;
+        try {
+            compaction.compact(mRecordingDir, active, System.currentTimeMillis());
+        } catch (InterruptedException e) {
+            return;
+        } catch (RuntimeException e) {
+            // thrown out of the task it would cancel every compaction to come
+            Log.e(TAG, "compaction failed", e);
+            return;
+        }
+        if (compaction.getDeleted() > 0) {
+            Log.i(TAG, "compacted: " + compaction.getRolledUp() + " sessions rolled up, " + compaction.getDeleted()
+                    + " files deleted, " + compaction.getFreed() / 1024 + " KB freed");
+        }
+        if (compaction.getError() != null) {
+            Log.w(TAG, "compaction", compaction.getError());
+        }
     }
 
+    private static String timestamp(long time) {
+        return new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date(time));
+    }
 
     /**
-     * This thread runs while attempting to make an outgoing connection
-     * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * Capture the raw bytes of every session into a new file per device in
+     * the directory, or stop capturing if it is null.
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
-
-        public ConnectThread(BluetoothDevice device) throws SecurityException, NoSuchMethodException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-
-            Log.i(TAG, "calling device.createRfcommSocket with channel 1 ...");
-            try {
-                // call hidden method, see BluetoothDevice source code for more details:
-                // https://android.googlesource.com/platform/frameworks/base/+/master/core/java/android/bluetooth/BluetoothDevice.java
-                Method m = device.getClass().getMethod("createRfcommSocket", new Class[]{ int.class });
-                tmp = (BluetoothSocket) m.invoke(device, 1);  // channel = 1
-                Log.i(TAG, "setting socket to result of createRfcommSocket");
-            } catch (Exception e) {
-                Log.e(TAG, e.getMessage(), e);
-            }
-            mmSocket = tmp;
+    public void setCaptureDir(File dir) {
+        mCaptureDir = dir;
+        for (DeviceSession session : mSessions.values()) {
+            stopCapture(session);
+            if (dir != null) startCapture(session, dir);
         }
+    }
 
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectThread");
-            setName("ConnectThread");
-
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
-
-            // Make a connection to the BluetoothSocket
-            try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
-            } catch (IOException e) {
-                Log.e(TAG, e.getMessage(), e);
-                connectionFailed();
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() socket during connection failure", e2);
-                }
-                return;
-            }
+    public boolean isCapturing() {
+        return mCaptureDir != null;
+    }
 
-            // Reset the ConnectThread because we're done
-            synchronized (BluetoothViewerService.this) {
-                mConnectThread = null;
-            }
+    private void startCapture(DeviceSession session, File dir) {
+        String time = timestamp(System.currentTimeMillis());
+        File file = new File(dir, session.address.replaceAll("[^A-Za-z0-9]+", "_") + "-" + time + ".cap");
+        if (D) Log.d(TAG, session.address + ": capturing to " + file);
+        closeCapture(session.setChunkListener(new CaptureWriter(file)));
+    }
+
+    private static void stopCapture(DeviceSession session) {
+        closeCapture(session.setChunkListener(null));
+    }
+
+    private static void closeCapture(ChunkListener listener) {
+        if (!(listener instanceof CaptureWriter)) return;
+        CaptureWriter writer = (CaptureWriter) listener;
+        if (writer.getDropped() > 0) {
+            Log.w(TAG, writer.getFile().getName() + ": " + writer.getDropped() + " chunks dropped");
+        }
+        writer.close();
+    }
 
-            // Start the connected thread
-            connected(mmSocket, mmDevice);
+    /**
+     * Stop all sessions
+     */
+    public void stop() {
+        if (D) Log.d(TAG, "stop");
+        for (DeviceSession session : mSessions.values()) {
+            session.stop();
+            stopCapture(session);
+        }
+        mSessions.clear();
+        mRecordingListeners.clear();
+        mAnalyses.clear();
+        mFilters.clear();
+        long now = System.currentTimeMillis();
+        for (AlarmEngine.Device alarms : mAlarmDevices.values()) {
+            alarms.clearAll(now);
         }
+        mAlarmDevices.clear();
+        sendMessage(MSG_NOT_CONNECTED, null);
+    }
 
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+    /**
+     * Stop all sessions and release the reader pool, the service cannot
+     * be used afterwards.
+     */
+    public void shutdown() {
+        stop();
+        mWatchdog.shutdownNow();
+        mCompactor.shutdownNow();
+        mSpectrumExecutor.shutdownNow();
+        mReaderPool.shutdownNow();
+        synchronized (this) {
+            if (mRecorder != null) {
+                closeRecorder(mRecorder);
+                mRecorder = null;
             }
         }
     }
 
     /**
-     * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * The scales only talk, writing to them was never enabled.
+     *
+     * @param out The bytes to write
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        //private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket) {
-            Log.d(TAG, "create ConnectedThread");
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            //OutputStream tmpOut = null;
-
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-                //tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
+    public void write(byte[] out) {
+    }
+
+    private void sendMessage(int messageId, String address) {
+        mHandler.obtainMessage(messageId, -1, -1, address).sendToTarget();
+    }
+
+    private final DeviceSession.Callback mSessionCallback = new DeviceSession.Callback() {
+        @Override
+        public void onConnecting(DeviceSession session, long generation) {
+            if (D) Log.d(TAG, session.address + ": connecting, generation " + generation);
+            sendMessage(MSG_CONNECTING, session.address);
+        }
+
+        @Override
+        public void onConnected(DeviceSession session, ScaleTransport transport) {
+            if (D) Log.d(TAG, session.address + ": connected");
+            int strategy = -1;
+            if (transport instanceof RfcommTransport) {
+                strategy = ((RfcommTransport) transport).getStrategy().ordinal();
             }
+            mHandler.obtainMessage(MSG_CONNECTED, strategy, -1, session.address).sendToTarget();
+        }
 
-            mmInStream = tmpIn;
-            //mmOutStream = tmpOut;
+        @Override
+        public void onConnectionFailed(DeviceSession session, IOException e) {
+            Log.e(TAG, session.address + ": connection failed", e);
+            sendMessage(MSG_CONNECTION_FAILED, session.address);
         }
 
-        private boolean stop = false;
-        private boolean hasReadAnything = false;
+        @Override
+        public void onConnectionLost(DeviceSession session, IOException e) {
+            if (D) Log.d(TAG, session.address + ": connection lost" + (e != null ? ": " + e.getMessage() : ""));
+            sendMessage(MSG_CONNECTION_LOST, session.address);
+        }
 
-        public void shutdown() {
-            stop = true;
-            if (!hasReadAnything) return;
-            if (mmInStream != null) {
-                try {
-                    mmInStream.close();
-                    Log.d(TAG, "InputStream in Connected closed properly.");
-                } catch (IOException e) {
-                    Log.e(TAG, "close() of InputStream failed.");
-                }
-            }
+        @Override
+        public void onTimeout(DeviceSession session, long silence) {
+            Log.i(TAG, session.address + ": no data for " + silence + " ms");
         }
+    };
 
-        public void run() {
-
-  
-         	final DataInputStream in = new DataInputStream(mmInStream);  
-        	int b0, b1, b2; b0=b1=b2=0;
-
-        	//     ,      .
-        	//       .    
-        	ExecutorService executor = Executors.newFixedThreadPool(2);
-        	   Callable<Integer> readTask = new Callable<Integer>() {
-        	        @Override
-        	        public Integer call() throws Exception {
-        	            return ((int)in.readByte())&0xFF;
-        	        }
-        	    };
-        	while (!stop) {
-        		try {
-        		    Future<Integer> future = executor.submit(readTask);
-        			b0=b1;
-        			b1=b2;
-        			b2= future.get(1000, TimeUnit.MILLISECONDS);
-               			
-        			if (b0==255 && b2==254 && (b1!=255 && b1!=254))
-	        			{
-	        				int pleaseSendThisFuckingInteger = (int) b1 & 0xFF;
-	        				sendLineRead(Integer.toString(pleaseSendThisFuckingInteger));
-	        			}
-
-        		} 
-        		catch (InterruptedException e) {
-        			connectionLost();
-        			break;
-        			
-        		}
-        		catch (ExecutionException e){
-        			connectionLost();
-        			break;
-        			
-        		}
-        		catch (TimeoutException e){
-        			shutdown();
-        			cancel();
-        			connectionLost();
-        			break;
-        			
-        		}
-        	}  	
-/*        	DataInputStream in = new DataInputStream(mmInStream);  
-        	byte b0, b1, b2; b0=b1=b2=0;
-        	long lastReadTime=System.currentTimeMillis();
-     
-        	while (!stop) {
-        		try {
-        			b0=b1;
-        			b1=b2;
-        			b2=in.readByte();
-        			
-        			if (System.currentTimeMillis()-lastReadTime>2000)
-        				throw new IOException();
-        			
-        			if (b0==-1 && b2==-2 && (b1!=-1 && b1!=-2))
-	        			{
-	        				int pleaseSendThisFuckingInteger = (int) b1 & 0xFF;
-	        				sendLineRead(Integer.toString(pleaseSendThisFuckingInteger));
-	        			}
-
-        		} catch (IOException e) {
-        			connectionLost();
-        			break;
-        		}
-        	}
-  */      
-
-        
-        		
-   
+    /**
+     * Records the readings and spikes of one device to the current file,
+     * and posts the spikes to the UI.
+     */
+    private class RecordingListener implements ReadingListener, SpikeDetector.Listener {
+        private final String mmAddress;
+        private volatile SessionRecorder mmRecorder;
+        private volatile ReadingListener mmTarget;
 
+        RecordingListener(String address) {
+            mmAddress = address;
         }
 
-        /**
-         * Write to the connected OutStream.
-         *
-         * @param bytes The bytes to write
-         */
-        public void write(byte[] bytes) {
-   /*         try {
-        //        mmOutStream.write(bytes);
-                sendBytesWritten(bytes);
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            }*/
+        void retarget(SessionRecorder recorder) {
+            mmTarget = recorder.listenerFor(mmAddress);
+            mmRecorder = recorder;
         }
 
-        public void cancel() {
-            try {
-                mmSocket.close();
-                Log.d(TAG, "mmSocket in Connected closed properly.");
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
+        @Override
+        public void onReading(long time, int value) {
+            mmTarget.onReading(time, value);
+        }
+
+        @Override
+        public void onSpike(long time, int value, int median) {
+            mHandler.obtainMessage(MSG_SPIKE, value, median, mmAddress).sendToTarget();
+            SessionRecorder recorder = mmRecorder;
+            if (recorder != null) recorder.recordSpike(mmAddress, time, value, median);
+        }
+    }
+
+    /**
+     * Posts every reading of one device to the UI, the value in arg1.
+     */
+    private class HandlerReadingListener implements ReadingListener {
+        private final String mmAddress;
+
+        HandlerReadingListener(String address) {
+            mmAddress = address;
+        }
+
+        @Override
+        public void onReading(long time, int value) {
+            mHandler.obtainMessage(MSG_LINE_READ, value, -1, mmAddress).sendToTarget();
         }
     }
 }
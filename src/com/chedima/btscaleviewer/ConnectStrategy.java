@@ -0,0 +1,84 @@
+package com.chedima.btscaleviewer;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * The ways we know to open an RFCOMM socket to a scale. Cheap scale modules
+ * disagree about which one works, so the one that succeeded last time is
+ * remembered per device and tried first.
+ */
+public enum ConnectStrategy {
+
+    /**
+     * Hidden createRfcommSocket(1), skips the SDP lookup.
+     */
+    RFCOMM_CHANNEL_1 {
+        @Override
+        BluetoothSocket createSocket(BluetoothDevice device) throws IOException {
+            // call hidden method, see BluetoothDevice source code for more details:
+            // https://android.googlesource.com/platform/frameworks/base/+/master/core/java/android/bluetooth/BluetoothDevice.java
+            return invoke(device, "createRfcommSocket", int.class, 1);  // channel = 1
+        }
+    },
+
+    /**
+     * Regular SPP service record lookup.
+     */
+    SPP_SECURE {
+        @Override
+        BluetoothSocket createSocket(BluetoothDevice device) throws IOException {
+            return device.createRfcommSocketToServiceRecord(SPP_UUID);
+        }
+    },
+
+    /**
+     * SPP without authentication, public since API 10 so called by reflection.
+     */
+    SPP_INSECURE {
+        @Override
+        BluetoothSocket createSocket(BluetoothDevice device) throws IOException {
+            return invoke(device, "createInsecureRfcommSocketToServiceRecord", UUID.class, SPP_UUID);
+        }
+    };
+
+    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    abstract BluetoothSocket createSocket(BluetoothDevice device) throws IOException;
+
+    /**
+     * All strategies, with the preferred one (if any) moved to the front.
+     */
+    static ConnectStrategy[] inOrder(ConnectStrategy preferred) {
+        ConnectStrategy[] all = values();
+        if (preferred == null) return all;
+        ConnectStrategy[] ordered = new ConnectStrategy[all.length];
+        ordered[0] = preferred;
+        int i = 1;
+        for (ConnectStrategy s : all) {
+            if (s != preferred) ordered[i++] = s;
+        }
+        return ordered;
+    }
+
+    static ConnectStrategy fromOrdinal(int ordinal) {
+        ConnectStrategy[] all = values();
+        return ordinal >= 0 && ordinal < all.length ? all[ordinal] : null;
+    }
+
+    private static BluetoothSocket invoke(BluetoothDevice device, String name, Class<?> argType, Object arg)
+            throws IOException {
+        try {
+            Method m = device.getClass().getMethod(name, new Class[]{ argType });
+            return (BluetoothSocket) m.invoke(device, arg);
+        } catch (Exception e) {
+            IOException io = new IOException(name + " not available");
+            io.initCause(e);
+            throw io;
+        }
+    }
+}
@@ -35,8 +35,12 @@ import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.Toast;
+
+import com.chedima.btscaleviewer.core.TcpTransport;
 
 
 /**
@@ -76,6 +80,24 @@ public class DeviceListActivity extends Activity {
             }
         });
 
+        // Serial-to-Ethernet adapters are entered by hand as host:port
+        final EditText tcpAddress = (EditText) findViewById(R.id.tcp_address);
+        findViewById(R.id.button_tcp).setOnClickListener(new OnClickListener() {
+            public void onClick(View v) {
+                String address = TcpTransport.SCHEME + tcpAddress.getText().toString().trim();
+                try {
+                    TcpTransport.Factory.parse(address);
+                } catch (IllegalArgumentException e) {
+                    Toast.makeText(DeviceListActivity.this, R.string.bad_tcp_address, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                Intent intent = new Intent();
+                intent.putExtra(EXTRA_DEVICE_ADDRESS, address);
+                setResult(Activity.RESULT_OK, intent);
+                finish();
+            }
+        });
+
         ArrayAdapter<String> pairedDevicesAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
         mNewDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
         mNewDevicesSet = new HashSet<String>();
@@ -0,0 +1,144 @@
+package com.chedima.btscaleviewer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.chedima.btscaleviewer.core.Settings;
+
+/**
+ * The last few devices we successfully connected to, most recent first,
+ * together with the connect strategy that worked for each of them and
+ * whether the device was still in use when the app went away.
+ * Lives in the devices of the Settings, so it survives process death and
+ * can be read before the UI is inflated.
+ */
+public class KnownDevices {
+
+    private static final String TAG = KnownDevices.class.getSimpleName();
+
+    // where earlier versions kept the devices
+    static final String LEGACY_FILENAME = "lastdevice.dat";
+    private static final int LEGACY_VERSION = 2;
+    public static final int MAX_DEVICES = BluetoothViewerService.MAX_SESSIONS;
+
+    private final List<Settings.Device> entries;
+
+    public KnownDevices(Settings settings) {
+        entries = settings.devices;
+        while (entries.size() > MAX_DEVICES) {
+            entries.remove(entries.size() - 1);
+        }
+    }
+
+    /**
+     * Take the devices over from the file of earlier versions, if there is
+     * one. A missing or unreadable file leaves the settings as they are.
+     */
+    public static void migrate(Context context, Settings settings) {
+        List<Settings.Device> devices = new ArrayList<Settings.Device>(MAX_DEVICES);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(context.openFileInput(LEGACY_FILENAME)));
+            int version = in.readUnsignedByte();
+            if (version > LEGACY_VERSION) return;
+            int count = Math.min(in.readUnsignedByte(), MAX_DEVICES);
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                int strategy = in.readByte();
+                long lastConnected = in.readLong();
+                // version 1 only knew a single device, the most recent one
+                boolean active = version >= 2 ? in.readBoolean() : i == 0;
+                devices.add(new Settings.Device(address, strategy, lastConnected, active));
+            }
+            settings.devices.clear();
+            settings.devices.addAll(devices);
+        } catch (FileNotFoundException e) {
+            // nothing to migrate
+        } catch (IOException e) {
+            Log.e(TAG, "could not read " + LEGACY_FILENAME, e);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * The device we were connected to most recently, or null.
+     */
+    public Settings.Device getLast() {
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    public Settings.Device get(String address) {
+        for (Settings.Device e : entries) {
+            if (e.address.equals(address)) return e;
+        }
+        return null;
+    }
+
+    public ConnectStrategy getStrategy(String address) {
+        Settings.Device e = get(address);
+        return e != null ? ConnectStrategy.fromOrdinal(e.strategy) : null;
+    }
+
+    public List<Settings.Device> getAll() {
+        return entries;
+    }
+
+    /**
+     * The devices that were connected when the app was last used.
+     */
+    public List<Settings.Device> getActive() {
+        List<Settings.Device> active = new ArrayList<Settings.Device>(entries.size());
+        for (Settings.Device e : entries) {
+            if (e.active) active.add(e);
+        }
+        return active;
+    }
+
+    public void setActive(String address, boolean active) {
+        Settings.Device e = get(address);
+        if (e != null) e.active = active;
+    }
+
+    public void setAllInactive() {
+        for (Settings.Device e : entries) {
+            e.active = false;
+        }
+    }
+
+    /**
+     * Move the device to the front of the list and mark it active, dropping
+     * the oldest entry if the list is full.
+     */
+    public void remember(String address, ConnectStrategy strategy) {
+        Settings.Device e = get(address);
+        if (e != null) {
+            entries.remove(e);
+            if (strategy != null) e.strategy = strategy.ordinal();
+        } else {
+            e = new Settings.Device(address, strategy != null ? strategy.ordinal() : -1, 0, true);
+        }
+        e.lastConnected = System.currentTimeMillis();
+        e.active = true;
+        entries.add(0, e);
+        while (entries.size() > MAX_DEVICES) {
+            entries.remove(entries.size() - 1);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() failed", e);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.chedima.btscaleviewer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import com.chedima.btscaleviewer.core.ScaleTransport;
+
+/**
+ * Bluetooth RFCOMM connection to a scale. Runs straight through the known
+ * connect strategies, preferred one first; the connection either succeeds
+ * or fails.
+ */
+class RfcommTransport implements ScaleTransport {
+
+    private static final String TAG = RfcommTransport.class.getSimpleName();
+
+    static class Factory implements ScaleTransport.Factory {
+        private final BluetoothDevice mDevice;
+        // the strategy that worked last, tried first on reconnect
+        private volatile ConnectStrategy mPreferred;
+
+        Factory(BluetoothDevice device, ConnectStrategy preferred) {
+            mDevice = device;
+            mPreferred = preferred;
+        }
+
+        public String getAddress() {
+            return mDevice.getAddress();
+        }
+
+        public String getName() {
+            return mDevice.getName();
+        }
+
+        public ScaleTransport create() {
+            return new RfcommTransport(this);
+        }
+    }
+
+    private final Factory mFactory;
+    private volatile BluetoothSocket mSocket;
+    private volatile boolean mClosed;
+    private ConnectStrategy mStrategy;
+
+    private RfcommTransport(Factory factory) {
+        mFactory = factory;
+    }
+
+    /**
+     * The strategy the socket was opened with, null until open() succeeded.
+     */
+    ConnectStrategy getStrategy() {
+        return mStrategy;
+    }
+
+    public InputStream open() throws IOException {
+        IOException last = null;
+        for (ConnectStrategy strategy : ConnectStrategy.inOrder(mFactory.mPreferred)) {
+            if (mClosed) break;
+            Log.i(TAG, "connecting with " + strategy);
+            BluetoothSocket socket = null;
+            try {
+                socket = strategy.createSocket(mFactory.mDevice);
+                mSocket = socket;
+                if (mClosed) break;
+                // This is a blocking call and will only return on a
+                // successful connection or an exception
+                socket.connect();
+                InputStream in = socket.getInputStream();
+                mStrategy = strategy;
+                mFactory.mPreferred = strategy;
+                return in;
+            } catch (IOException e) {
+                Log.e(TAG, strategy + ": " + e.getMessage(), e);
+                closeSocket(socket);
+                last = e;
+            }
+        }
+        close();
+        throw last != null ? last : new IOException("canceled");
+    }
+
+    public void close() {
+        mClosed = true;
+        closeSocket(mSocket);
+    }
+
+    private static void closeSocket(BluetoothSocket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of socket failed", e);
+        }
+    }
+}
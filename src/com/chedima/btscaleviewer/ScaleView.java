@@ -1,9 +1,6 @@
 package com.chedima.btscaleviewer;
 
 
-import java.util.ArrayList;
-import java.util.List;
-
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -15,6 +12,11 @@ import android.util.TypedValue;
 import android.view.MotionEvent;
 import android.view.View;
 
+import com.chedima.btscaleviewer.core.RunningStats;
+import com.chedima.btscaleviewer.core.SpectrumAnalyzer;
+import com.chedima.btscaleviewer.core.Trend;
+import com.chedima.btscaleviewer.core.ZoneTimes;
+
 
 public class ScaleView extends View {
 
@@ -24,6 +26,8 @@ public class ScaleView extends View {
 	//  101  253    ,    .
 	//255 =    
 	public int currPos=255;
+	//  ,     
+	public String label;
 	
 	boolean inverted = false;
 	boolean showHistory = true;
@@ -35,9 +39,44 @@ public class ScaleView extends View {
 	private Paint pathPaint = new Paint();
 	private Rect textBounds = new Rect();
 	private int h,w;
-	private List<Integer> histData = new ArrayList<Integer>();
+	//    ( )    
+	private float historyScale = 1;
+	private float textSize;
+	// :  HISTORY   , hist[n & (HISTORY - 1)]
+	//    n;    ,    histEnd,
+	//         ,     
+	private static final int HISTORY = 4096;
+	private final int[] hist = new int[HISTORY];
+	private long histCount;
+	private long histEnd;
+	private boolean paused;
+	//     ,  BluetoothViewer
+	public final RunningStats.Snapshot stats = new RunningStats.Snapshot();
+	private final StringBuilder statsText = new StringBuilder();
+	//        10 ,   BluetoothViewer
+	public final ZoneTimes.Snapshot zones = new ZoneTimes.Snapshot();
+	private Paint zonePaint = new Paint();
+	private static final int[] ZONE_COLORS = { Color.GREEN, Color.YELLOW, Color.RED };
+	// ,  SpikeDetector:     
+	//    ,  SPIKES 
+	private static final int SPIKES = 32;
+	private final long[] spikeIndex = new long[SPIKES];
+	private final int[] spikeValue = new int[SPIKES];
+	private int spikeCount;
+	private Paint spikePaint = new Paint();
+	//    20 ,   BluetoothViewer;  
+	// ,     TREND_AHEAD ,    
+	//   ,     TREND_HORIZON 
+	public final Trend.Snapshot trend = new Trend.Snapshot();
+	private static final long TREND_AHEAD = 10 * 1000;
+	private static final long TREND_HORIZON = 10 * 60 * 1000;
+	//    ,    
+	public final SpectrumAnalyzer.Snapshot spectrum = new SpectrumAnalyzer.Snapshot();
   	
 	public final static int NOTCONNECTED = 255;
+	//     ,   Settings
+	private final static int LINE = 80;
+	private final static int RED = 101;
 	
 	public ScaleView(Context context) {
 		super(context);
@@ -58,17 +97,51 @@ public class ScaleView extends View {
 	{
 		shape = this.getResources().getDrawable(R.drawable.gradient);
 		//  dp  .   px = dp * (dpi / 160),    
-		textPaint.setTextSize(dipToPixels(120));
+		textPaint.setTextSize(textSize > 0 ? textSize : dipToPixels(120));
 		blackPaint.setColor(inverted? Color.WHITE : Color.BLACK);
 		whitePaint.setColor(inverted? Color.BLACK : Color.WHITE);
 		pathPaint.setColor(Color.MAGENTA);
 		blackPaint.setTextSize(dipToPixels(15));
 		pathPaint.setStyle(Paint.Style.STROKE);
 		pathPaint.setStrokeWidth(3);
+		spikePaint.setColor(Color.RED);
+		spikePaint.setStyle(Paint.Style.STROKE);
+		spikePaint.setStrokeWidth(3);
 		textPaint.getTextBounds("200", 0, 3, textBounds);
 	
 	}
 	
+	//  :  ,   ,   ;
+	//   BluetoothViewer
+	public void addSample(int value) {
+		hist[(int) histCount & (HISTORY - 1)] = value;
+		histCount++;
+		if (!paused) {
+			histEnd = histCount;
+			currPos = value;
+		}
+	}
+	
+	//    ,   : 
+	//     ,  MSG_SPIKE  
+	//   MSG_LINE_READ
+	public void markSpike(int value) {
+		spikeIndex[spikeCount % SPIKES] = histCount;
+		spikeValue[spikeCount % SPIKES] = value;
+		spikeCount++;
+	}
+	
+	//    ,   ;  
+	//   
+	public void setPaused(boolean paused) {
+		this.paused = paused;
+		if (!paused && histCount > 0) {
+			histEnd = histCount;
+			currPos = hist[(int) (histCount - 1) & (HISTORY - 1)];
+		}
+		invalidate();
+	}
+	
 	@Override
 	protected void onDraw(Canvas canvas) {
 		super.onDraw(canvas);
@@ -77,12 +150,18 @@ public class ScaleView extends View {
         shape.draw(canvas);
         
         if (showHistory){
-        histData.add(currPos);
-        
-        for (int i=2;i<=histData.size() && i<this.w;i++){
-        	canvas.drawLine(i-1,255-histData.get(histData.size()-i+1), i, 255-histData.get(histData.size()-i), pathPaint);
+        //         
+        long end = histEnd;
+        long kept = end - Math.max(0, histCount - HISTORY);
+        for (int i=2;i<=kept && i<this.w;i++){
+        	canvas.drawLine(i-1,(255-hist[(int) (end-i+1) & (HISTORY-1)])*historyScale, i, (255-hist[(int) (end-i) & (HISTORY-1)])*historyScale, pathPaint);
+        }
+        for (int k = Math.min(spikeCount, SPIKES) - 1; k >= 0; k--) {
+        	long x = end - spikeIndex[k];
+        	if (x > 0 && x <= kept && x < w)
+        		canvas.drawCircle(x, (255 - spikeValue[k]) * historyScale, dipToPixels(5), spikePaint);
         }
-        canvas.drawLine(0, 175, w, 175, blackPaint); // 255-80=175,    
+        canvas.drawLine(0, 175*historyScale, w, 175*historyScale, blackPaint); // 255-80=175,    
         //canvas.drawText("80", 10, dipToPixels(100) ,blackPaint);
         }
             
@@ -105,13 +184,99 @@ public class ScaleView extends View {
 	   	String txt = currPos!=NOTCONNECTED? Integer.toString(currPos) : "--";
 	   	
     	//canvas.drawText(txt,x<50? x: (x>w-410?w-410:x-50),	 dipToPixels(140), textPaint);
-	   	canvas.drawText(txt, (float)((w - textBounds.width()) >> 1),	dipToPixels(120), textPaint);
+	   	canvas.drawText(txt, (float)((w - textBounds.width()) >> 1),	textPaint.getTextSize(), textPaint);
+	   	float line = blackPaint.getTextSize() + 5;
+	   	if (label != null)
+	   		canvas.drawText(label, 5, line, blackPaint);
+	   	if (stats.count > 0 && currPos != NOTCONNECTED) {
+	   		float y = label != null ? 2 * line : line;
+	   		drawStats(canvas, "", stats.min, stats.max, stats.mean, stats.stdDev, y);
+	   		drawStats(canvas, "", stats.windowMin, stats.windowMax, stats.windowMean, stats.windowStdDev, y + line);
+	   		drawZones(canvas, y + 2 * line);
+	   		drawTrend(canvas, y + 3 * line);
+	   		drawSpectrum(canvas, y + 4 * line);
+	   	}
     	
     	
 
 	}
 
 	
+	// " 12..140  65.3 10.2",  String.format,     
+	private void drawStats(Canvas canvas, String name, int min, int max, double mean, double stdDev, float y) {
+		StringBuilder t = statsText;
+		t.setLength(0);
+		t.append(name).append(' ').append(min).append("..").append(max);
+		t.append("  ").append(Math.round(mean * 10) / 10.0);
+		if (!Double.isNaN(stdDev))
+			t.append(" ").append(Math.round(stdDev * 10) / 10.0);
+		canvas.drawText(t, 0, t.length(), 5, y, blackPaint);
+	}
+
+	//   :  ,      ,
+	//   "  1:23 (14%),  12%"
+	private void drawZones(Canvas canvas, float y) {
+		long total = zones.window[ZoneTimes.GREEN] + zones.window[ZoneTimes.YELLOW] + zones.window[ZoneTimes.RED];
+		if (total == 0) return;
+		float bottom = h * 0.75f - 20;
+		float top = bottom - dipToPixels(6);
+		float left = 0;
+		for (int zone = ZoneTimes.GREEN; zone <= ZoneTimes.RED; zone++) {
+			float right = left + w * (float) zones.window[zone] / total;
+			zonePaint.setColor(ZONE_COLORS[zone]);
+			canvas.drawRect(left, top, right, bottom, zonePaint);
+			left = right;
+		}
+
+		long above = zones.window[ZoneTimes.ABOVE_LINE];
+		long session = zones.session[ZoneTimes.GREEN] + zones.session[ZoneTimes.YELLOW] + zones.session[ZoneTimes.RED];
+		StringBuilder t = statsText;
+		t.setLength(0);
+		t.append("  ").append(above / 60000).append(':');
+		long seconds = above / 1000 % 60;
+		if (seconds < 10) t.append('0');
+		t.append(seconds).append(" (").append(100 * above / total).append("%)");
+		if (session > 0)
+			t.append(",  ").append(100 * zones.session[ZoneTimes.ABOVE_LINE] / session).append('%');
+		canvas.drawText(t, 0, t.length(), 5, y, blackPaint);
+	}
+
+	//   ,     TREND_AHEAD,  
+	// " +1.2/, 80  0:42, 101  1:30"
+	private void drawTrend(Canvas canvas, float y) {
+		if (Double.isNaN(trend.slope)) return;
+		double ahead = trend.level + trend.slope * TREND_AHEAD / 1000;
+		float x = (float) (w * Math.max(0, Math.min(253, ahead)) / 253.0);
+		canvas.drawLine(x, h * 0.75f, x, h, pathPaint);
+
+		StringBuilder t = statsText;
+		t.setLength(0);
+		t.append(" ");
+		if (trend.slope >= 0) t.append('+');
+		t.append(Math.round(trend.slope * 10) / 10.0).append("/");
+		appendUntil(t, LINE, trend.toLine);
+		appendUntil(t, RED, trend.toRed);
+		canvas.drawText(t, 0, t.length(), 5, y, blackPaint);
+	}
+
+	// " 7.1  4.9"
+	private void drawSpectrum(Canvas canvas, float y) {
+		if (spectrum.time == 0) return;
+		StringBuilder t = statsText;
+		t.setLength(0);
+		t.append(" ").append(Math.round(spectrum.frequency * 10) / 10.0).append("  ");
+		t.append(Math.round(spectrum.amplitude * 10) / 10.0);
+		canvas.drawText(t, 0, t.length(), 5, y, blackPaint);
+	}
+
+	private static void appendUntil(StringBuilder t, int level, long millis) {
+		if (millis < 0 || millis >= TREND_HORIZON) return;
+		long seconds = millis / 1000;
+		t.append(", ").append(level).append("  ").append(seconds / 60).append(':');
+		if (seconds % 60 < 10) t.append('0');
+		t.append(seconds % 60);
+	}
+
 	@Override
 	public boolean onTouchEvent(MotionEvent event) {
 	
@@ -139,6 +304,10 @@ public class ScaleView extends View {
 	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
 		this.w = w;
 		this.h = h;
+		textSize = Math.min(dipToPixels(120), h * 0.5f);
+		historyScale = Math.min(1f, h * 0.75f / 255);
+		textPaint.setTextSize(textSize);
+		textPaint.getTextBounds("200", 0, 3, textBounds);
 		super.onSizeChanged(w, h, oldw, oldh);
 	}
 	
@@ -0,0 +1,616 @@
+package com.chedima.btscaleviewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Process;
+import android.util.Log;
+
+import com.chedima.btscaleviewer.core.Histogram;
+import com.chedima.btscaleviewer.core.RollupFile;
+import com.chedima.btscaleviewer.core.SessionCompactor;
+import com.chedima.btscaleviewer.core.SessionFile;
+import com.chedima.btscaleviewer.core.SessionRecorder;
+import com.chedima.btscaleviewer.core.Summary;
+
+/**
+ * What is in the sessions directory, for finding past data without
+ * opening every file: a row per session with its time span, operator and
+ * the files holding it, raw, per second and per minute, and per device
+ * the summary and histogram of its readings. The readings themselves stay
+ * in the files.
+ * Sessions keep their row and summaries after their files aged out.
+ *
+ * Changes come from the recorder and the compactor and are only queued
+ * by the calling thread; a writer thread of its own applies whatever has
+ * queued up in one transaction, so a burst of changes, or the thousands
+ * of a first reindex, cost one commit. Each change has a savepoint of its
+ * own, a change that fails is dropped alone. Files are read on that
+ * thread too, outside the transaction.
+ */
+class SessionCatalog extends SQLiteOpenHelper implements SessionCompactor.Listener {
+
+    private static final String TAG = SessionCatalog.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "catalog.db";
+    // 2: session_devices.histogram
+    private static final int DATABASE_VERSION = 2;
+
+    // the time span of a recording being written is not known yet
+    private static final long RECORDING = -1;
+    private static final long CLOSE_TIMEOUT = 10000;
+
+    private static final String STATS_COLUMNS =
+            " (session_id, device_id, first_time, last_time, count, sum, min, max, time_above, histogram)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * A session as listed.
+     */
+    static class Entry {
+        long id;
+        String name;
+        long start;
+        // time of the last reading, RECORDING while it is recorded
+        long end;
+        String operator;
+        // file names in the sessions directory, null once deleted
+        String rawFile;
+        String secondsFile;
+        String minutesFile;
+    }
+
+    /**
+     * The readings of one device in one session.
+     */
+    static class DeviceStats {
+        final String address;
+        final long first;
+        final long last;
+        final Summary summary;
+        // null if only rollups were left to catalog the session from
+        final Histogram histogram;
+
+        DeviceStats(String address, long first, long last, Summary summary, Histogram histogram) {
+            this.address = address;
+            this.first = first;
+            this.last = last;
+            this.summary = summary;
+            this.histogram = histogram;
+        }
+    }
+
+    /**
+     * A change, applied on the writer thread inside the batch transaction.
+     */
+    private interface Change {
+        void apply(SQLiteDatabase db);
+    }
+
+    private final File mDir;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+    private final ConcurrentLinkedQueue<Change> mPending = new ConcurrentLinkedQueue<Change>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    // names of the raw files being recorded, which reindex() leaves alone
+    private final Set<String> mRecording = Collections.synchronizedSet(new HashSet<String>());
+
+    // compiled once, only used on the writer thread
+    private SQLiteStatement mInsertSession;
+    private SQLiteStatement mSessionId;
+    private SQLiteStatement mInsertDevice;
+    private SQLiteStatement mDeviceId;
+    private SQLiteStatement mInsertStats;
+    private SQLiteStatement mReplaceStats;
+
+    /**
+     * @param dir the sessions directory the file names are relative to
+     */
+    SessionCatalog(Context context, File dir) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mDir = dir;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE devices ("
+                + "_id INTEGER PRIMARY KEY, "
+                + "address TEXT NOT NULL UNIQUE)");
+        db.execSQL("CREATE TABLE sessions ("
+                + "_id INTEGER PRIMARY KEY, "
+                + "name TEXT NOT NULL UNIQUE, "
+                + "start_time INTEGER NOT NULL, "
+                + "end_time INTEGER NOT NULL, "
+                + "operator TEXT, "
+                + "raw_file TEXT, "
+                + "seconds_file TEXT, "
+                + "minutes_file TEXT)");
+        db.execSQL("CREATE TABLE session_devices ("
+                + "session_id INTEGER NOT NULL REFERENCES sessions(_id), "
+                + "device_id INTEGER NOT NULL REFERENCES devices(_id), "
+                + "first_time INTEGER NOT NULL, "
+                + "last_time INTEGER NOT NULL, "
+                + "count INTEGER NOT NULL, "
+                + "sum INTEGER NOT NULL, "
+                + "min INTEGER NOT NULL, "
+                + "max INTEGER NOT NULL, "
+                + "time_above INTEGER NOT NULL, "
+                + "histogram BLOB, "
+                + "PRIMARY KEY (session_id, device_id))");
+        // listing goes by time, newest first, optionally per operator or device
+        db.execSQL("CREATE INDEX sessions_start ON sessions (start_time)");
+        db.execSQL("CREATE INDEX sessions_operator ON sessions (operator, start_time)");
+        db.execSQL("CREATE INDEX session_devices_device ON session_devices (device_id, session_id)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            // sessions cataloged before stay without, reindexing only adds new ones
+            db.execSQL("ALTER TABLE session_devices ADD COLUMN histogram BLOB");
+        }
+    }
+
+    /**
+     * A recording was started. Queued, returns at once.
+     */
+    void onRecordingStarted(File file, final long start, final String operator) {
+        final String name = file.getName();
+        mRecording.add(name);
+        post(new Change() {
+            public void apply(SQLiteDatabase db) {
+                insertSession(db, baseName(name), start, RECORDING, operator);
+                // also if a reindex got to the new file first
+                db.execSQL("UPDATE sessions SET raw_file = ?, end_time = " + RECORDING + " WHERE name = ?",
+                        new Object[]{ name, baseName(name) });
+            }
+        });
+    }
+
+    /**
+     * A recording was closed; its time span and summaries are read from
+     * the file once the recorder finished it. Queued, returns at once.
+     */
+    void onRecordingClosed(final SessionRecorder recorder) {
+        mWriter.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (!recorder.awaitClose(CLOSE_TIMEOUT)) {
+                        Log.w(TAG, recorder.getFile().getName() + " not finished, not cataloged");
+                        return;
+                    }
+                    indexSession(recorder.getFile(), false);
+                } catch (InterruptedException e) {
+                    // not cataloged, a later reindex may
+                } finally {
+                    mRecording.remove(recorder.getFile().getName());
+                }
+            }
+        });
+    }
+
+    public void onRolledUp(File session, File seconds, final File minutes) {
+        final String name = baseName(session.getName());
+        final String secondsName = seconds.getName();
+        final String minutesName = minutes.getName();
+        mWriter.execute(new Runnable() {
+            public void run() {
+                // a session the catalog missed is taken from its rollup
+                final List<DeviceStats> stats = statsOf(minutes);
+                post(new Change() {
+                    public void apply(SQLiteDatabase db) {
+                        if (stats != null) index(db, name, stats, false);
+                        db.execSQL("UPDATE sessions SET seconds_file = ?, minutes_file = ? WHERE name = ?",
+                                new Object[]{ secondsName, minutesName, name });
+                    }
+                });
+            }
+        });
+    }
+
+    public void onDeleted(File file) {
+        final String name = file.getName();
+        final String column;
+        if (name.endsWith(SessionCompactor.RAW_SUFFIX)) {
+            column = "raw_file";
+        } else if (name.endsWith(SessionCompactor.SECONDS_SUFFIX)) {
+            column = "seconds_file";
+        } else if (name.endsWith(SessionCompactor.MINUTES_SUFFIX)) {
+            column = "minutes_file";
+        } else {
+            return;
+        }
+        post(new Change() {
+            public void apply(SQLiteDatabase db) {
+                db.execSQL("UPDATE sessions SET " + column + " = NULL WHERE " + column + " = ?", new Object[]{ name });
+            }
+        });
+    }
+
+    /**
+     * Catalog every file in the directory the catalog does not know yet,
+     * for recordings made before it existed or lost in a crash. Queued,
+     * returns at once. Files still being recorded are left to
+     * onRecordingClosed().
+     *
+     * @param active the session being recorded, or null
+     */
+    void reindex(final File active) {
+        mWriter.execute(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                File[] files = mDir.listFiles();
+                if (files == null) return;
+                Set<String> known = new HashSet<String>();
+                Cursor cursor = getReadableDatabase().rawQuery(
+                        "SELECT raw_file, seconds_file, minutes_file FROM sessions", null);
+                try {
+                    while (cursor.moveToNext()) {
+                        for (int i = 0; i < 3; i++) {
+                            if (!cursor.isNull(i)) known.add(cursor.getString(i));
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+                for (File file : files) {
+                    if (file.equals(active) || known.contains(file.getName()) || mRecording.contains(file.getName())) {
+                        continue;
+                    }
+                    indexSession(file, true);
+                }
+            }
+        });
+    }
+
+    /**
+     * Finish what is queued and close the database; the catalog cannot be
+     * used afterwards. Does not wait.
+     */
+    @Override
+    public void close() {
+        mWriter.execute(new Runnable() {
+            public void run() {
+                SessionCatalog.super.close();
+            }
+        });
+        mWriter.shutdown();
+    }
+
+    /**
+     * Sessions with readings from at or after from and before to, newest
+     * first. Reads the database on the calling thread; the indexes keep
+     * it to milliseconds even for thousands of sessions, but it is still
+     * not for the UI thread.
+     *
+     * @param address  only sessions with this device, or null for all
+     * @param operator only sessions of this operator, or null for all
+     */
+    List<Entry> list(long from, long to, String address, String operator, int limit) {
+        StringBuilder sql = new StringBuilder(
+                "SELECT s._id, s.name, s.start_time, s.end_time, s.operator, s.raw_file, s.seconds_file, s.minutes_file"
+                + " FROM sessions s");
+        List<String> args = new ArrayList<String>();
+        sql.append(" WHERE s.start_time < ? AND (s.end_time >= ? OR s.end_time = ").append(RECORDING).append(")");
+        args.add(Long.toString(to));
+        args.add(Long.toString(from));
+        if (address != null) {
+            // probed per session in start order; a join would sort all sessions of the device
+            sql.append(" AND EXISTS (SELECT 1 FROM session_devices sd JOIN devices d ON d._id = sd.device_id"
+                    + " WHERE sd.session_id = s._id AND d.address = ?)");
+            args.add(address);
+        }
+        if (operator != null) {
+            sql.append(" AND s.operator = ?");
+            args.add(operator);
+        }
+        sql.append(" ORDER BY s.start_time DESC LIMIT ").append(limit);
+
+        List<Entry> entries = new ArrayList<Entry>();
+        Cursor cursor = getReadableDatabase().rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+        try {
+            while (cursor.moveToNext()) {
+                Entry entry = new Entry();
+                entry.id = cursor.getLong(0);
+                entry.name = cursor.getString(1);
+                entry.start = cursor.getLong(2);
+                entry.end = cursor.getLong(3);
+                entry.operator = cursor.getString(4);
+                entry.rawFile = cursor.getString(5);
+                entry.secondsFile = cursor.getString(6);
+                entry.minutesFile = cursor.getString(7);
+                entries.add(entry);
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /**
+     * The devices of a session with their summaries. Reads the database
+     * on the calling thread.
+     */
+    List<DeviceStats> getDevices(long sessionId) {
+        List<DeviceStats> devices = new ArrayList<DeviceStats>();
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT d.address, sd.first_time, sd.last_time, sd.count, sd.sum, sd.min, sd.max, sd.time_above,"
+                + " sd.histogram"
+                + " FROM session_devices sd JOIN devices d ON d._id = sd.device_id"
+                + " WHERE sd.session_id = ? ORDER BY d.address",
+                new String[]{ Long.toString(sessionId) });
+        try {
+            while (cursor.moveToNext()) {
+                Summary summary = new Summary();
+                summary.add(cursor.getLong(3), cursor.getLong(4), cursor.getInt(5), cursor.getInt(6), cursor.getLong(7));
+                Histogram histogram = null;
+                if (!cursor.isNull(8)) {
+                    histogram = new Histogram();
+                    histogram.addEncoded(cursor.getBlob(8));
+                }
+                devices.add(new DeviceStats(cursor.getString(0), cursor.getLong(1), cursor.getLong(2), summary,
+                        histogram));
+            }
+        } finally {
+            cursor.close();
+        }
+        return devices;
+    }
+
+    /**
+     * The histogram of all readings of the sessions list() would return,
+     * for quantiles over a shift, a week or a month; sessions are merged
+     * whole, the range is only as exact as their length. Sessions without
+     * a histogram are left out. Reads the database on the calling thread.
+     *
+     * @param address  only this device, or null for all
+     * @param operator only sessions of this operator, or null for all
+     * @param result   not reset
+     * @return result
+     */
+    Histogram histogram(long from, long to, String address, String operator, Histogram result) {
+        StringBuilder sql = new StringBuilder("SELECT sd.histogram FROM sessions s"
+                + " JOIN session_devices sd ON sd.session_id = s._id");
+        List<String> args = new ArrayList<String>();
+        if (address != null) {
+            sql.append(" JOIN devices d ON d._id = sd.device_id AND d.address = ?");
+            args.add(address);
+        }
+        sql.append(" WHERE s.start_time < ? AND (s.end_time >= ? OR s.end_time = ").append(RECORDING).append(")");
+        args.add(Long.toString(to));
+        args.add(Long.toString(from));
+        if (operator != null) {
+            sql.append(" AND s.operator = ?");
+            args.add(operator);
+        }
+        sql.append(" AND sd.histogram IS NOT NULL");
+        Cursor cursor = getReadableDatabase().rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+        try {
+            while (cursor.moveToNext()) {
+                result.addEncoded(cursor.getBlob(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Queue a change; the first one queued schedules a batch.
+     */
+    private void post(Change change) {
+        mPending.add(change);
+        if (mScheduled.compareAndSet(false, true)) {
+            mWriter.execute(mApplyBatch);
+        }
+    }
+
+    private final Runnable mApplyBatch = new Runnable() {
+        public void run() {
+            // changes queued from here on schedule the next batch
+            mScheduled.set(false);
+            int count = 0, dropped = 0;
+            boolean failed = false;
+            try {
+                SQLiteDatabase db = getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    Change change;
+                    while ((change = mPending.poll()) != null) {
+                        // a change that fails is undone alone, the rest still commit
+                        db.execSQL("SAVEPOINT change");
+                        try {
+                            change.apply(db);
+                            count++;
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "catalog change dropped", e);
+                            db.execSQL("ROLLBACK TO change");
+                            dropped++;
+                        }
+                        db.execSQL("RELEASE change");
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            } catch (RuntimeException e) {
+                // the database itself failed; what is left waits for the next change
+                Log.e(TAG, "catalog batch failed after " + count + " changes", e);
+                failed = true;
+            }
+            if (dropped > 0) Log.w(TAG, count + " catalog changes applied, " + dropped + " dropped");
+            if (!failed && !mPending.isEmpty() && !mWriter.isShutdown() && mScheduled.compareAndSet(false, true)) {
+                mWriter.execute(this);
+            }
+        }
+    };
+
+    /**
+     * Read the summaries of a session or rollup file and queue them; on
+     * the writer thread.
+     *
+     * @param reindexing found by reindex(), skipped if it is being recorded
+     *                   by the time the change is applied
+     */
+    private void indexSession(File file, final boolean reindexing) {
+        final String fileName = file.getName();
+        final String column;
+        if (fileName.endsWith(SessionCompactor.RAW_SUFFIX)) {
+            column = "raw_file";
+        } else if (fileName.endsWith(SessionCompactor.SECONDS_SUFFIX)) {
+            column = "seconds_file";
+        } else if (fileName.endsWith(SessionCompactor.MINUTES_SUFFIX)) {
+            column = "minutes_file";
+        } else {
+            return;
+        }
+        final List<DeviceStats> stats = statsOf(file);
+        if (stats == null) return;
+        final String name = baseName(fileName);
+        post(new Change() {
+            public void apply(SQLiteDatabase db) {
+                // a recording that started since the file was read
+                if (reindexing && mRecording.contains(fileName)) return;
+                index(db, name, stats, column.equals("raw_file"));
+                db.execSQL("UPDATE sessions SET " + column + " = ? WHERE name = ?", new Object[]{ fileName, name });
+            }
+        });
+    }
+
+    /**
+     * The devices of a session or rollup file, null if it cannot be read.
+     */
+    private static List<DeviceStats> statsOf(File file) {
+        List<DeviceStats> stats = new ArrayList<DeviceStats>();
+        try {
+            if (file.getName().endsWith(SessionCompactor.RAW_SUFFIX)) {
+                SessionFile session = SessionFile.open(file);
+                for (int device = 0; device < session.getDeviceCount(); device++) {
+                    if (session.getAddress(device) == null || session.getBlockCount(device) == 0) continue;
+                    Summary summary = session.summarize(device, Long.MIN_VALUE, Long.MAX_VALUE, new Summary());
+                    stats.add(new DeviceStats(session.getAddress(device), session.getFirstTime(device),
+                            session.getLastTime(device), summary, session.histogram(device, new Histogram())));
+                }
+            } else {
+                RollupFile rollup = RollupFile.open(file);
+                for (int device = 0; device < rollup.getDeviceCount(); device++) {
+                    RollupFile.Cursor cursor = rollup.cursor(device);
+                    Summary summary = new Summary();
+                    long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+                    while (cursor.next()) {
+                        first = Math.min(first, cursor.getTime());
+                        last = Math.max(last, cursor.getTime() + rollup.getResolution() - 1);
+                        summary.add(cursor.getCount(), cursor.getSum(), cursor.getMin(), cursor.getMax(),
+                                cursor.getTimeAbove());
+                    }
+                    if (summary.getCount() > 0) {
+                        stats.add(new DeviceStats(rollup.getAddress(device), first, last, summary, null));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "cannot catalog " + file.getName() + ": " + e.getMessage());
+            return null;
+        } catch (RuntimeException e) {
+            // a damaged block, decoded past its end
+            Log.w(TAG, "cannot catalog " + file.getName(), e);
+            return null;
+        }
+        return stats;
+    }
+
+    /**
+     * Make sure the session has a row and its devices their summaries.
+     *
+     * @param exact the stats are from the finished session file and replace
+     *              what is there; rollups round to their resolution and
+     *              only fill in what is missing
+     */
+    private void index(SQLiteDatabase db, String name, List<DeviceStats> stats, boolean exact) {
+        long start = Long.MAX_VALUE, end = Long.MIN_VALUE;
+        for (DeviceStats device : stats) {
+            start = Math.min(start, device.first);
+            end = Math.max(end, device.last);
+        }
+        if (stats.isEmpty()) start = end = 0;
+        long session = insertSession(db, name, start, end, null);
+        db.execSQL("UPDATE sessions SET end_time = ? WHERE _id = ?" + (exact ? "" : " AND end_time = " + RECORDING),
+                new Object[]{ end, session });
+
+        for (DeviceStats device : stats) {
+            if (mInsertDevice == null) {
+                mInsertDevice = db.compileStatement("INSERT OR IGNORE INTO devices (address) VALUES (?)");
+                mDeviceId = db.compileStatement("SELECT _id FROM devices WHERE address = ?");
+                mInsertStats = db.compileStatement("INSERT OR IGNORE INTO session_devices" + STATS_COLUMNS);
+                mReplaceStats = db.compileStatement("INSERT OR REPLACE INTO session_devices" + STATS_COLUMNS);
+            }
+            mInsertDevice.bindString(1, device.address);
+            mInsertDevice.executeInsert();
+            mDeviceId.bindString(1, device.address);
+            long id = mDeviceId.simpleQueryForLong();
+
+            Summary summary = device.summary;
+            SQLiteStatement insert = exact ? mReplaceStats : mInsertStats;
+            insert.bindLong(1, session);
+            insert.bindLong(2, id);
+            insert.bindLong(3, device.first);
+            insert.bindLong(4, device.last);
+            insert.bindLong(5, summary.getCount());
+            insert.bindLong(6, summary.getSum());
+            insert.bindLong(7, summary.getMin());
+            insert.bindLong(8, summary.getMax());
+            insert.bindLong(9, summary.getTimeAbove());
+            if (device.histogram != null) {
+                insert.bindBlob(10, device.histogram.toBytes());
+            } else {
+                insert.bindNull(10);
+            }
+            insert.executeInsert();
+        }
+    }
+
+    /**
+     * Insert the session unless it is there.
+     *
+     * @return its id
+     */
+    private long insertSession(SQLiteDatabase db, String name, long start, long end, String operator) {
+        if (mInsertSession == null) {
+            mInsertSession = db.compileStatement(
+                    "INSERT OR IGNORE INTO sessions (name, start_time, end_time, operator) VALUES (?, ?, ?, ?)");
+            mSessionId = db.compileStatement("SELECT _id FROM sessions WHERE name = ?");
+        }
+        mInsertSession.bindString(1, name);
+        mInsertSession.bindLong(2, start);
+        mInsertSession.bindLong(3, end);
+        if (operator != null) {
+            mInsertSession.bindString(4, operator);
+        } else {
+            mInsertSession.bindNull(4);
+        }
+        mInsertSession.executeInsert();
+        mSessionId.bindString(1, name);
+        return mSessionId.simpleQueryForLong();
+    }
+
+    /**
+     * The session a file belongs to: its name without the suffix.
+     */
+    private static String baseName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+}
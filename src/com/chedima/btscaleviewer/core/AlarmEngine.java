@@ -0,0 +1,227 @@
+package com.chedima.btscaleviewer.core;
+
+import java.util.List;
+
+/**
+ * Evaluates a fixed list of AlarmRules against the readings of every
+ * device, incrementally: each reading updates the state of each rule in a
+ * few comparisons, with no allocation and no look back over past
+ * readings. What the rules remember lives in arrays allocated when a
+ * device is added; the crossings of a CROSSINGS rule are a ring of the
+ * times of the last crossings.
+ *
+ * Silences and the passing of time while no readings come are evaluated
+ * by tick(), which the watchdog calls a few times a second. Readings come
+ * on the reader thread of the device, ticks on the watchdog thread; each
+ * Device is locked for either, the lock is never contended for long.
+ *
+ * The listener is called with the lock of the device held and should
+ * only hand the alarm on.
+ */
+public class AlarmEngine {
+
+    // no time recorded
+    private static final long NONE = Long.MIN_VALUE;
+
+    public interface Listener {
+        /**
+         * The rule was raised for the device, level 1, or escalated.
+         */
+        void onAlarm(String address, int index, AlarmRule rule, int level, long time);
+
+        void onAlarmCleared(String address, int index, AlarmRule rule, long time);
+    }
+
+    private final AlarmRule[] mRules;
+    private final Listener mListener;
+    // where the ring of crossing times of each rule starts, and their total
+    private final int[] mRingStart;
+    private final int mRingSize;
+
+    public AlarmEngine(List<AlarmRule> rules, Listener listener) {
+        mRules = rules.toArray(new AlarmRule[rules.size()]);
+        mListener = listener;
+        mRingStart = new int[mRules.length];
+        int size = 0;
+        for (int r = 0; r < mRules.length; r++) {
+            mRingStart[r] = size;
+            if (mRules[r].kind == AlarmRule.CROSSINGS) size += Math.max(1, mRules[r].crossings);
+        }
+        mRingSize = size;
+    }
+
+    public AlarmRule getRule(int rule) {
+        return mRules[rule];
+    }
+
+    public int getRuleCount() {
+        return mRules.length;
+    }
+
+    /**
+     * The evaluator for a device, to add as a listener to its session.
+     *
+     * @param now when the device started, silence counts from then
+     */
+    public Device add(String address, long now) {
+        return new Device(address, now);
+    }
+
+    /**
+     * The state of all rules for one device.
+     */
+    public class Device implements ReadingListener {
+        private final String mAddress;
+        private final long mStart;
+        private long mLastTime = NONE;
+        private int mLastValue;
+
+        // per rule: since when its condition holds, since when it does not
+        // while raised, its level, 0 if not raised, when it was raised or
+        // last escalated, when it was last cleared
+        private final long[] mTrueSince = new long[mRules.length];
+        private final long[] mFalseSince = new long[mRules.length];
+        private final int[] mLevel = new int[mRules.length];
+        private final long[] mRaised = new long[mRules.length];
+        private final long[] mCleared = new long[mRules.length];
+        // per CROSSINGS rule: its ring, next position and the count in it
+        private final long[] mCrossings = new long[mRingSize];
+        private final int[] mRingPos = new int[mRules.length];
+        private final int[] mRingCount = new int[mRules.length];
+
+        Device(String address, long now) {
+            mAddress = address;
+            mStart = now;
+            for (int r = 0; r < mRules.length; r++) {
+                mTrueSince[r] = NONE;
+                mFalseSince[r] = NONE;
+                mCleared[r] = NONE;
+            }
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * The level of a rule for this device, 0 if it is not raised.
+         */
+        public synchronized int getLevel(int rule) {
+            return mLevel[rule];
+        }
+
+        @Override
+        public synchronized void onReading(long time, int value) {
+            AlarmRule[] rules = mRules;
+            for (int r = 0; r < rules.length; r++) {
+                AlarmRule rule = rules[r];
+                boolean holds;
+                switch (rule.kind) {
+                    case AlarmRule.ABOVE:
+                        holds = value > rule.threshold;
+                        break;
+                    case AlarmRule.CROSSINGS:
+                        if (mLastTime != NONE && mLastValue <= rule.threshold && value > rule.threshold) {
+                            addCrossing(r, rule, time);
+                        }
+                        holds = crossingsHold(r, rule, time);
+                        break;
+                    default:
+                        holds = false;
+                        break;
+                }
+                update(r, rule, holds, time);
+            }
+            mLastTime = time;
+            mLastValue = value;
+        }
+
+        /**
+         * Evaluate the rules as of now without a new reading: silences,
+         * crossings that age out, debouncing, cooldowns and escalation.
+         */
+        public synchronized void tick(long now) {
+            AlarmRule[] rules = mRules;
+            for (int r = 0; r < rules.length; r++) {
+                AlarmRule rule = rules[r];
+                boolean holds;
+                switch (rule.kind) {
+                    case AlarmRule.ABOVE:
+                        holds = mLastTime != NONE && mLastValue > rule.threshold;
+                        break;
+                    case AlarmRule.CROSSINGS:
+                        holds = crossingsHold(r, rule, now);
+                        break;
+                    case AlarmRule.SILENCE:
+                        holds = now - (mLastTime != NONE ? mLastTime : mStart) >= rule.duration;
+                        break;
+                    default:
+                        holds = false;
+                        break;
+                }
+                update(r, rule, holds, now);
+            }
+        }
+
+        /**
+         * Clear every raised rule, for a device that goes away.
+         */
+        public synchronized void clearAll(long now) {
+            for (int r = 0; r < mRules.length; r++) {
+                if (mLevel[r] > 0) clear(r, mRules[r], now);
+            }
+        }
+
+        private void clear(int r, AlarmRule rule, long time) {
+            mLevel[r] = 0;
+            mFalseSince[r] = NONE;
+            mCleared[r] = time;
+            mListener.onAlarmCleared(mAddress, r, rule, time);
+        }
+
+        private void addCrossing(int r, AlarmRule rule, long time) {
+            int size = Math.max(1, rule.crossings);
+            mCrossings[mRingStart[r] + mRingPos[r]] = time;
+            mRingPos[r] = mRingPos[r] + 1 == size ? 0 : mRingPos[r] + 1;
+            if (mRingCount[r] < size) mRingCount[r]++;
+        }
+
+        /**
+         * Whether the ring is full and its oldest crossing, the one at the
+         * next position, is within the window.
+         */
+        private boolean crossingsHold(int r, AlarmRule rule, long time) {
+            if (mRingCount[r] < Math.max(1, rule.crossings)) return false;
+            return time - mCrossings[mRingStart[r] + mRingPos[r]] <= rule.duration;
+        }
+
+        private void update(int r, AlarmRule rule, boolean holds, long time) {
+            if (holds) {
+                mFalseSince[r] = NONE;
+                if (mLevel[r] == 0) {
+                    if (mTrueSince[r] == NONE) mTrueSince[r] = time;
+                    // a silence has lasted its duration once it holds
+                    long hold = rule.kind == AlarmRule.ABOVE ? rule.duration : 0;
+                    if (time - mTrueSince[r] >= hold && (mCleared[r] == NONE || time - mCleared[r] >= rule.cooldown)) {
+                        mLevel[r] = 1;
+                        mRaised[r] = time;
+                        mListener.onAlarm(mAddress, r, rule, 1, time);
+                    }
+                }
+            } else {
+                mTrueSince[r] = NONE;
+                if (mLevel[r] > 0) {
+                    if (mFalseSince[r] == NONE) mFalseSince[r] = time;
+                    if (time - mFalseSince[r] >= rule.debounce) clear(r, rule, time);
+                }
+            }
+            // only while the condition holds, not while it is debounced
+            if (holds && mLevel[r] > 0 && mLevel[r] < AlarmRule.MAX_LEVEL && rule.escalateAfter > 0
+                    && time - mRaised[r] >= rule.escalateAfter) {
+                mLevel[r]++;
+                mRaised[r] = time;
+                mListener.onAlarm(mAddress, r, rule, mLevel[r], time);
+            }
+        }
+    }
+}
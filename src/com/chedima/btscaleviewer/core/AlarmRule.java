@@ -0,0 +1,71 @@
+package com.chedima.btscaleviewer.core;
+
+/**
+ * One alarm, evaluated by AlarmEngine for every device. A plain holder
+ * like Settings, kept in Settings.alarms.
+ * <ul>
+ * <li>ABOVE: the reading stays above threshold for duration ms</li>
+ * <li>CROSSINGS: the reading rises above threshold at least crossings
+ *     times within duration ms</li>
+ * <li>SILENCE: no reading for duration ms</li>
+ * </ul>
+ * A raised alarm clears once its condition has been false for debounce
+ * ms, so a single reading back under the threshold does not end it, and
+ * is not raised again until cooldown ms after that. While it stays
+ * raised its level goes up by one every escalateAfter ms, up to
+ * MAX_LEVEL; 0 keeps it at 1.
+ */
+public class AlarmRule {
+
+    public static final int ABOVE = 0;
+    public static final int CROSSINGS = 1;
+    public static final int SILENCE = 2;
+
+    public static final int MAX_LEVEL = 3;
+
+    public final int kind;
+    public final int threshold;
+    public final int crossings;
+    public final long duration;
+    public final long debounce;
+    public final long cooldown;
+    public final long escalateAfter;
+
+    public AlarmRule(int kind, int threshold, int crossings, long duration, long debounce, long cooldown,
+                     long escalateAfter) {
+        this.kind = kind;
+        this.threshold = threshold;
+        this.crossings = crossings;
+        this.duration = duration;
+        this.debounce = debounce;
+        this.cooldown = cooldown;
+        this.escalateAfter = escalateAfter;
+    }
+
+    public static AlarmRule above(int threshold, long duration, long debounce, long cooldown, long escalateAfter) {
+        return new AlarmRule(ABOVE, threshold, 0, duration, debounce, cooldown, escalateAfter);
+    }
+
+    public static AlarmRule crossings(int threshold, int crossings, long window, long debounce, long cooldown,
+                                      long escalateAfter) {
+        return new AlarmRule(CROSSINGS, threshold, crossings, window, debounce, cooldown, escalateAfter);
+    }
+
+    public static AlarmRule silence(long duration, long cooldown, long escalateAfter) {
+        return new AlarmRule(SILENCE, 0, 0, duration, 0, cooldown, escalateAfter);
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case ABOVE:
+                return "above " + threshold + " for " + duration / 1000.0 + " s";
+            case CROSSINGS:
+                return crossings + " crossings of " + threshold + " in " + duration / 1000.0 + " s";
+            case SILENCE:
+                return "no data for " + duration / 1000.0 + " s";
+            default:
+                return "unknown alarm " + kind;
+        }
+    }
+}
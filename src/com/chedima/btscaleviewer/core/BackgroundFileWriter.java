@@ -0,0 +1,215 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends to a file from a thread of its own, so producers on reader
+ * threads never touch the disk. Producers encode into the active buffer
+ * while holding the lock; the writer swaps it with the spare one and
+ * writes it out in batches, when enough has accumulated or the flush
+ * interval passed. Memory stays at two buffers: if the disk falls a whole
+ * buffer behind, records are dropped and counted rather than waited for,
+ * unless the writer is blocking, which is for tools writing offline.
+ */
+public abstract class BackgroundFileWriter {
+
+    private static final long FLUSH_INTERVAL = 500;
+
+    protected final Object mLock = new Object();
+    // the active buffer and its length, guarded by mLock
+    protected byte[] mBuffer;
+    protected int mLength;
+
+    private final File mFile;
+    private final int mFlushSize;
+    private byte[] mSpare;
+    private boolean mClosed;
+    private boolean mBlocking;
+    private long mDropped;
+    private volatile IOException mError;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    /**
+     * Start the writer thread, which creates the file and its directory;
+     * an existing file is overwritten.
+     *
+     * @param bufferSize size of each of the two buffers
+     */
+    protected BackgroundFileWriter(File file, int bufferSize) {
+        mFile = file;
+        mBuffer = new byte[bufferSize];
+        mSpare = new byte[bufferSize];
+        mFlushSize = bufferSize / 8;
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, getClass().getSimpleName() + " " + file.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Make producers wait for the disk instead of dropping records; never
+     * for reader threads or the UI thread.
+     */
+    public void setBlocking(boolean blocking) {
+        synchronized (mLock) {
+            mBlocking = blocking;
+        }
+    }
+
+    /**
+     * Number of records lost because the writer fell behind or failed, or
+     * because they came after close().
+     */
+    public long getDropped() {
+        synchronized (mLock) {
+            return mDropped;
+        }
+    }
+
+    /**
+     * The error that stopped the writer, or null.
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Write out what is buffered and close the file. Does not wait for
+     * the writer thread, so it is safe to call from the UI thread.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait for the writer thread to finish the file after close(); not
+     * for the UI thread.
+     *
+     * @return false if it did not finish in time
+     */
+    public boolean awaitClose(long timeoutMillis) throws InterruptedException {
+        return mDone.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Make room for a record in the active buffer; call with mLock held.
+     *
+     * @return false if the record has to be dropped
+     */
+    protected boolean reserve(int size) {
+        while (mBlocking && !mClosed && mError == null && mLength > 0 && mLength + size > mBuffer.length) {
+            mLock.notifyAll();
+            try {
+                mLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (mClosed || mError != null || mLength + size > mBuffer.length) {
+            mDropped++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether records are still taken, for those kept elsewhere before
+     * they reach the buffer; one coming after close() is counted as
+     * dropped. Call with mLock held.
+     */
+    protected boolean accepting() {
+        if (mClosed) {
+            mDropped++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * A record was appended to the active buffer; call with mLock held.
+     */
+    protected void appended() {
+        if (mLength >= mFlushSize) mLock.notifyAll();
+    }
+
+    /**
+     * Called on the writer thread after the last buffer was written, for
+     * appending what only makes sense once everything else is in the file.
+     */
+    protected void writeTrailer(OutputStream out) throws IOException {
+    }
+
+    private void writeLoop() {
+        OutputStream out = null;
+        try {
+            File dir = mFile.getParentFile();
+            if (dir != null) dir.mkdirs();
+            out = new FileOutputStream(mFile);
+            while (true) {
+                byte[] full;
+                int length;
+                boolean closed;
+                synchronized (mLock) {
+                    if (mLength < mFlushSize && !mClosed) {
+                        mLock.wait(FLUSH_INTERVAL);
+                    }
+                    full = mBuffer;
+                    length = mLength;
+                    closed = mClosed;
+                    mBuffer = mSpare;
+                    mLength = 0;
+                    mSpare = full;
+                    mLock.notifyAll();
+                }
+                if (length > 0) out.write(full, 0, length);
+                if (closed) break;
+            }
+            writeTrailer(out);
+        } catch (IOException e) {
+            mError = e;
+        } catch (InterruptedException e) {
+            mError = new IOException("interrupted");
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    if (mError == null) mError = e;
+                }
+            }
+            synchronized (mLock) {
+                // release producers blocked on a writer that is gone
+                mLock.notifyAll();
+            }
+            mDone.countDown();
+        }
+    }
+
+    protected static void putInt(byte[] out, int pos, int n) {
+        out[pos] = (byte) (n >>> 24);
+        out[pos + 1] = (byte) (n >>> 16);
+        out[pos + 2] = (byte) (n >>> 8);
+        out[pos + 3] = (byte) n;
+    }
+
+    protected static void putLong(byte[] out, int pos, long n) {
+        putInt(out, pos, (int) (n >>> 32));
+        putInt(out, pos + 4, (int) n);
+    }
+}
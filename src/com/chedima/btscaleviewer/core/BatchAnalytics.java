@@ -0,0 +1,286 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Aggregates of many recorded sessions at once, per device and over all
+ * of them: the Summary, the Histogram for quantiles and the time in each
+ * zone of the gauge, as ZoneTimes counts it. Meant for reports over a
+ * week or a month of sessions:
+ * <pre>
+ *   BatchAnalytics.Report report = new BatchAnalytics(settings).range(from, to).threads(8).run(files);
+ * </pre>
+ *
+ * Every part of the work is split into small tasks, opening a file and
+ * going through up to BLOCKS_PER_TASK data blocks of a device, which a
+ * fixed number of threads take in turn from a shared counter, so a thread
+ * done early takes over the rest of a big session instead of waiting.
+ * Each thread adds into aggregates of its own, all of them sums, minima,
+ * maxima and counts that merge exactly in any order, and these are
+ * combined once at the end. Nothing is shared while the readings are
+ * decoded but the mapped files, which are only read.
+ *
+ * A reading stands for the time since the reading of the device before
+ * it in the same session, as in SessionFile.summarize(); a task that
+ * starts within a session takes that time from the index.
+ */
+public class BatchAnalytics {
+
+    public static final int BLOCKS_PER_TASK = 64;
+
+    /**
+     * What is known about the readings of one device, or of all.
+     */
+    public static class Aggregate {
+        public final Summary summary = new Summary();
+        public final Histogram histogram = new Histogram();
+        /**
+         * Milliseconds per zone, indexed like those of ZoneTimes.
+         */
+        public final long[] zones = new long[ZoneTimes.ZONES];
+
+        public void add(Aggregate other) {
+            summary.add(other.summary);
+            histogram.add(other.histogram);
+            for (int zone = 0; zone < ZoneTimes.ZONES; zone++) {
+                zones[zone] += other.zones[zone];
+            }
+        }
+
+        @Override
+        public String toString() {
+            return summary + ", p50 " + histogram.quantile(0.5) + ", p95 " + histogram.quantile(0.95)
+                    + ", green " + zones[ZoneTimes.GREEN] + " ms, yellow " + zones[ZoneTimes.YELLOW]
+                    + " ms, red " + zones[ZoneTimes.RED] + " ms";
+        }
+    }
+
+    /**
+     * The result of run().
+     */
+    public static class Report {
+        /**
+         * Per device address, sorted.
+         */
+        public final Map<String, Aggregate> devices = new TreeMap<String, Aggregate>();
+        public final Aggregate total = new Aggregate();
+        /**
+         * The sessions read, and those that could not be.
+         */
+        public int sessions;
+        public final List<File> failed = new ArrayList<File>();
+        public int tasks;
+    }
+
+    private final int mGreenMax;
+    private final int mLine;
+    private final int mRedMin;
+    private long mFrom = Long.MIN_VALUE;
+    private long mTo = Long.MAX_VALUE;
+    private int mThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * With the zones of the gauge in the settings.
+     */
+    public BatchAnalytics(Settings settings) {
+        this(settings.greenMax, settings.line, settings.redMin);
+    }
+
+    public BatchAnalytics(int greenMax, int line, int redMin) {
+        mGreenMax = greenMax;
+        mLine = line;
+        mRedMin = redMin;
+    }
+
+    /**
+     * Only the readings with from <= time < to.
+     */
+    public BatchAnalytics range(long from, long to) {
+        mFrom = from;
+        mTo = to;
+        return this;
+    }
+
+    /**
+     * How many threads do the work, the number of processors by default.
+     */
+    public BatchAnalytics threads(int threads) {
+        mThreads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * Aggregate the sessions; files that are not sessions are left out and
+     * listed in the report.
+     */
+    public Report run(List<File> files) throws InterruptedException {
+        Report report = new Report();
+        final File[] paths = files.toArray(new File[files.size()]);
+        final SessionFile[] sessions = new SessionFile[paths.length];
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        try {
+            // opening reads the index, or scans a file without one
+            final AtomicInteger next = new AtomicInteger();
+            List<Callable<Void>> openers = new ArrayList<Callable<Void>>();
+            for (int t = 0; t < mThreads; t++) {
+                openers.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i; (i = next.getAndIncrement()) < paths.length; ) {
+                            try {
+                                sessions[i] = SessionFile.open(paths[i]);
+                            } catch (IOException e) {
+                                // listed as failed below
+                            } catch (RuntimeException e) {
+                                // a damaged index, just as well
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+            join(executor.invokeAll(openers));
+
+            final List<Task> tasks = new ArrayList<Task>();
+            for (int i = 0; i < paths.length; i++) {
+                if (sessions[i] == null) {
+                    report.failed.add(paths[i]);
+                    continue;
+                }
+                report.sessions++;
+                split(sessions[i], tasks);
+            }
+            report.tasks = tasks.size();
+
+            final AtomicInteger nextTask = new AtomicInteger();
+            List<Callable<Map<String, Aggregate>>> workers = new ArrayList<Callable<Map<String, Aggregate>>>();
+            for (int t = 0; t < mThreads; t++) {
+                workers.add(new Callable<Map<String, Aggregate>>() {
+                    @Override
+                    public Map<String, Aggregate> call() {
+                        Map<String, Aggregate> partial = new HashMap<String, Aggregate>();
+                        for (int i; (i = nextTask.getAndIncrement()) < tasks.size(); ) {
+                            Task task = tasks.get(i);
+                            Aggregate aggregate = partial.get(task.address);
+                            if (aggregate == null) {
+                                aggregate = new Aggregate();
+                                partial.put(task.address, aggregate);
+                            }
+                            aggregate(task, aggregate);
+                        }
+                        return partial;
+                    }
+                });
+            }
+            for (Map<String, Aggregate> partial : join(executor.invokeAll(workers))) {
+                for (Map.Entry<String, Aggregate> entry : partial.entrySet()) {
+                    Aggregate aggregate = report.devices.get(entry.getKey());
+                    if (aggregate == null) {
+                        aggregate = new Aggregate();
+                        report.devices.put(entry.getKey(), aggregate);
+                    }
+                    aggregate.add(entry.getValue());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        for (Aggregate aggregate : report.devices.values()) {
+            report.total.add(aggregate);
+        }
+        return report;
+    }
+
+    /**
+     * Blocks fromBlock to toBlock, exclusive, of one device in one session.
+     */
+    private static class Task {
+        final SessionFile session;
+        final int device;
+        final String address;
+        final int fromBlock;
+        final int toBlock;
+
+        Task(SessionFile session, int device, int fromBlock, int toBlock) {
+            this.session = session;
+            this.device = device;
+            this.address = session.getAddress(device);
+            this.fromBlock = fromBlock;
+            this.toBlock = toBlock;
+        }
+    }
+
+    /**
+     * Add tasks for the blocks of the session that have readings in the
+     * range.
+     */
+    private void split(SessionFile session, List<Task> tasks) {
+        for (int device = 0; device < session.getDeviceCount(); device++) {
+            if (session.getAddress(device) == null) continue;
+            int blocks = session.getBlockCount(device);
+            int first = 0;
+            while (first < blocks && session.getBlockLastTime(device, first) < mFrom) first++;
+            int end = first;
+            while (end < blocks && session.getBlockFirstTime(device, end) < mTo) end++;
+            for (int block = first; block < end; block += BLOCKS_PER_TASK) {
+                tasks.add(new Task(session, device, block, Math.min(end, block + BLOCKS_PER_TASK)));
+            }
+        }
+    }
+
+    private void aggregate(Task task, Aggregate into) {
+        long from = mFrom, to = mTo;
+        int greenMax = mGreenMax, line = mLine, redMin = mRedMin;
+        Summary summary = into.summary;
+        Histogram histogram = into.histogram;
+        long[] zones = into.zones;
+        // the first reading stands for the time since the end of the block before
+        boolean hasPrevious = task.fromBlock > 0;
+        long previous = hasPrevious ? task.session.getBlockLastTime(task.device, task.fromBlock - 1) : 0;
+        SessionFile.Cursor cursor = task.session.cursor(task.device, task.fromBlock, task.toBlock);
+        while (cursor.next()) {
+            long time = cursor.getTime();
+            if (time >= to) break;
+            if (time >= from) {
+                int value = cursor.getValue();
+                long hold = hasPrevious ? BlockEncoder.hold(previous, time) : 0;
+                summary.add(value, value > BlockEncoder.ABOVE_THRESHOLD ? hold : 0);
+                histogram.add(value);
+                zones[value <= greenMax ? ZoneTimes.GREEN : value >= redMin ? ZoneTimes.RED : ZoneTimes.YELLOW] += hold;
+                if (value > line) zones[ZoneTimes.ABOVE_LINE] += hold;
+            }
+            previous = time;
+            hasPrevious = true;
+        }
+    }
+
+    /**
+     * The results of tasks that all ran, their failures thrown again.
+     */
+    private static <T> List<T> join(List<Future<T>> futures) throws InterruptedException {
+        List<T> results = new ArrayList<T>(futures.size());
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new RuntimeException(cause);
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,153 @@
+package com.chedima.btscaleviewer.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes blocks written by BlockEncoder from a ByteBuffer, a heap buffer
+ * or a mapped file alike. One decoder can be reused for any number of
+ * blocks and allocates nothing while decoding.
+ *
+ * Not thread safe.
+ */
+public class BlockDecoder {
+
+    private ByteBuffer mBuffer;
+    private int mPos;
+    private long mBits;
+    private int mBitCount;
+    private int mRemaining;
+    private boolean mFirst;
+    private long mTime;
+    private long mDelta;
+    private int mValue;
+
+    /**
+     * Whether a block header starts at pos and the whole block is there.
+     */
+    public static boolean isBlock(ByteBuffer buffer, int pos) {
+        if (pos < 0 || pos + BlockEncoder.HEADER_SIZE > buffer.limit()) return false;
+        if (buffer.getInt(pos) != BlockEncoder.MAGIC) return false;
+        int length = getPayloadLength(buffer, pos);
+        return length >= 0 && length <= buffer.limit() - pos - BlockEncoder.HEADER_SIZE;
+    }
+
+    public static int getKind(ByteBuffer buffer, int pos) {
+        return buffer.getShort(pos + 4) & 0xFFFF;
+    }
+
+    public static int getDevice(ByteBuffer buffer, int pos) {
+        return buffer.getShort(pos + 6) & 0xFFFF;
+    }
+
+    public static int getCount(ByteBuffer buffer, int pos) {
+        return buffer.getInt(pos + 8);
+    }
+
+    public static int getPayloadLength(ByteBuffer buffer, int pos) {
+        return buffer.getInt(pos + 12);
+    }
+
+    public static long getFirstTime(ByteBuffer buffer, int pos) {
+        return buffer.getLong(pos + 16);
+    }
+
+    public static long getLastTime(ByteBuffer buffer, int pos) {
+        return buffer.getLong(pos + 24);
+    }
+
+    public static long getSum(ByteBuffer buffer, int pos) {
+        return buffer.getLong(pos + 32);
+    }
+
+    public static int getMin(ByteBuffer buffer, int pos) {
+        return buffer.getShort(pos + 40);
+    }
+
+    public static int getMax(ByteBuffer buffer, int pos) {
+        return buffer.getShort(pos + 42);
+    }
+
+    public static int getTimeAbove(ByteBuffer buffer, int pos) {
+        return buffer.getInt(pos + 44);
+    }
+
+    /**
+     * Size of the block at pos with its header.
+     */
+    public static int getSize(ByteBuffer buffer, int pos) {
+        return BlockEncoder.HEADER_SIZE + getPayloadLength(buffer, pos);
+    }
+
+    /**
+     * Start decoding the data block at pos; the buffer must be big-endian.
+     */
+    public void open(ByteBuffer buffer, int pos) {
+        mBuffer = buffer;
+        mPos = pos + BlockEncoder.HEADER_SIZE;
+        mBits = 0;
+        mBitCount = 0;
+        mRemaining = getKind(buffer, pos) == BlockEncoder.KIND_DATA ? getCount(buffer, pos) : 0;
+        mFirst = true;
+        mTime = getFirstTime(buffer, pos);
+        mDelta = 0;
+        mValue = 0;
+    }
+
+    /**
+     * Advance to the next reading of the block.
+     *
+     * @return false after the last one
+     */
+    public boolean next() {
+        if (mRemaining == 0) return false;
+        mRemaining--;
+        if (mFirst) {
+            mFirst = false;
+        } else {
+            mDelta += readTime();
+            mTime += mDelta;
+        }
+        mValue += (int) readValue();
+        return true;
+    }
+
+    public long getTime() {
+        return mTime;
+    }
+
+    public int getValue() {
+        return mValue;
+    }
+
+    private long readTime() {
+        if (readBits(1) == 0) return 0;
+        if (readBits(1) == 0) return readSigned(5);
+        if (readBits(1) == 0) return readSigned(9);
+        if (readBits(1) == 0) return readSigned(16);
+        return readBits(32) << 32 | readBits(32);
+    }
+
+    private long readValue() {
+        if (readBits(1) == 0) return 0;
+        if (readBits(1) == 0) return readSigned(3);
+        if (readBits(1) == 0) return readSigned(7);
+        if (readBits(1) == 0) return readSigned(9);
+        return readSigned(32);
+    }
+
+    private long readSigned(int bits) {
+        return readBits(bits) << (64 - bits) >> (64 - bits);
+    }
+
+    /**
+     * Read the next bits, most significant first; at most 32.
+     */
+    private long readBits(int bits) {
+        while (mBitCount < bits) {
+            mBits = (mBits << 8) | (mBuffer.get(mPos++) & 0xFF);
+            mBitCount += 8;
+        }
+        mBitCount -= bits;
+        return (mBits >>> mBitCount) & ((1L << bits) - 1);
+    }
+}
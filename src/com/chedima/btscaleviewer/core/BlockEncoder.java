@@ -0,0 +1,299 @@
+package com.chedima.btscaleviewer.core;
+
+/**
+ * Compresses the readings of one device into a self-contained block,
+ * Gorilla style: the readings of a scale come at fairly regular intervals
+ * and mostly repeat or change by a step or two, so both the change of the
+ * time step and the change of the value usually fit in a few bits.
+ *
+ * A block is a 48-byte header followed by the bit-packed payload:
+ * <pre>
+ *   0  int   MAGIC "BLK2"
+ *   4  short kind, KIND_DATA, KIND_DEVICE, KIND_HISTOGRAM, KIND_SPIKE or KIND_INDEX
+ *   6  short device id
+ *   8  int   number of readings
+ *  12  int   payload length in bytes
+ *  16  long  time of the first reading
+ *  24  long  time of the last reading
+ *  32  long  sum of the values
+ *  40  short minimum value
+ *  42  short maximum value
+ *  44  int   milliseconds above ABOVE_THRESHOLD
+ * </pre>
+ * The summaries let range queries skip whole blocks. For the time above
+ * the threshold every reading stands for the time since the previous
+ * reading of the device, also across blocks, at most MAX_HOLD.
+ *
+ * Every reading after the first encodes its delta-of-delta time, every
+ * reading its value minus the previous one (the first minus 0):
+ * <pre>
+ *   time   0 | 10 +5 bits | 110 +9 bits | 1110 +16 bits | 1111 +64 bits
+ *   value  0 | 10 +3 bits | 110 +7 bits | 1110 +9 bits  | 1111 +32 bits
+ * </pre>
+ * A KIND_DEVICE block declares the address of a device id in its payload,
+ * in UTF-8. A KIND_HISTOGRAM block holds the Histogram of all readings of
+ * a device in a file, with their number and the times of the first and
+ * last. A KIND_SPIKE block marks a spike found by SpikeDetector at its
+ * first time, its payload is the reading and the median it was compared
+ * to, a short each. A KIND_INDEX block lists the blocks of a file, see
+ * SessionRecorder.
+ *
+ * Not thread safe.
+ */
+public class BlockEncoder {
+
+    public static final int MAGIC = 0x424C4B32;   // "BLK2"
+    public static final int HEADER_SIZE = 48;
+    public static final int KIND_DATA = 0;
+    public static final int KIND_DEVICE = 1;
+    public static final int KIND_INDEX = 2;
+    public static final int KIND_HISTOGRAM = 3;
+    public static final int KIND_SPIKE = 4;
+    public static final int SPIKE_SIZE = HEADER_SIZE + 4;
+
+    // the 80 line of the gauge
+    public static final int ABOVE_THRESHOLD = 80;
+    // a longer silence is a lost connection, see BluetoothViewerService
+    public static final long MAX_HOLD = 1000;
+
+    // 4 + 64 + 4 + 32 bits rounded up
+    private static final int MAX_READING_SIZE = 16;
+
+    private final byte[] mPayload;
+    private int mPos;
+    private long mBits;
+    private int mBitCount;
+    private int mCount;
+    private long mFirstTime;
+    private long mLastTime;
+    private long mLastDelta;
+    private int mLastValue;
+    private long mSum;
+    private int mMin;
+    private int mMax;
+    private int mTimeAbove;
+    // whether mLastTime holds a reading, of this or an earlier block
+    private boolean mHasLast;
+
+    /**
+     * @param maxPayload payload size at which the block is full
+     */
+    public BlockEncoder(int maxPayload) {
+        mPayload = new byte[maxPayload];
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getFirstTime() {
+        return mFirstTime;
+    }
+
+    /**
+     * Size of the finished block with its header.
+     */
+    public int getSize() {
+        return HEADER_SIZE + mPos + (mBitCount > 0 ? 1 : 0);
+    }
+
+    /**
+     * Append a reading.
+     *
+     * @return false if the block is full; write it out and add again
+     */
+    public boolean add(long time, int value) {
+        if (mCount == 0) {
+            mFirstTime = time;
+            mMin = mMax = value;
+        } else {
+            if (mPos + MAX_READING_SIZE > mPayload.length) return false;
+            long delta = time - mLastTime;
+            putTime(delta - mLastDelta);
+            mLastDelta = delta;
+            if (value < mMin) mMin = value;
+            if (value > mMax) mMax = value;
+        }
+        putValue(value - mLastValue);
+        if (value > ABOVE_THRESHOLD && mHasLast) mTimeAbove += hold(mLastTime, time);
+        mSum += value;
+        mLastValue = value;
+        mLastTime = time;
+        mHasLast = true;
+        mCount++;
+        return true;
+    }
+
+    /**
+     * The time a reading stands for, given the time of the previous one.
+     */
+    public static long hold(long previous, long time) {
+        long hold = time - previous;
+        return hold < 0 ? 0 : Math.min(hold, MAX_HOLD);
+    }
+
+    /**
+     * Write the block to out and start a new one.
+     *
+     * @return the position after the block
+     */
+    public int writeTo(byte[] out, int pos, int device) {
+        if (mBitCount > 0) {
+            mPayload[mPos++] = (byte) (mBits << (8 - mBitCount));
+            mBitCount = 0;
+        }
+        pos = writeHeader(out, pos, KIND_DATA, device, mCount, mPos, mFirstTime, mLastTime);
+        putInt(out, pos - 16, (int) (mSum >>> 32));
+        putInt(out, pos - 12, (int) mSum);
+        out[pos - 8] = (byte) (mMin >>> 8);
+        out[pos - 7] = (byte) mMin;
+        out[pos - 6] = (byte) (mMax >>> 8);
+        out[pos - 5] = (byte) mMax;
+        putInt(out, pos - 4, mTimeAbove);
+        System.arraycopy(mPayload, 0, out, pos, mPos);
+        pos += mPos;
+        reset();
+        return pos;
+    }
+
+    /**
+     * Forget the readings added since the last block; the time of the last
+     * one is kept for the time above the threshold.
+     */
+    public void reset() {
+        mPos = 0;
+        mBits = 0;
+        mBitCount = 0;
+        mCount = 0;
+        mLastDelta = 0;
+        mLastValue = 0;
+        mSum = 0;
+        mTimeAbove = 0;
+    }
+
+    /**
+     * Size of the block declaring a device.
+     */
+    public static int declarationSize(byte[] address) {
+        return HEADER_SIZE + address.length;
+    }
+
+    /**
+     * Write the block declaring the address of a device id.
+     *
+     * @return the position after the block
+     */
+    public static int writeDeclaration(byte[] out, int pos, int device, byte[] address, long time) {
+        pos = writeHeader(out, pos, KIND_DEVICE, device, 0, address.length, time, time);
+        System.arraycopy(address, 0, out, pos, address.length);
+        return pos + address.length;
+    }
+
+    /**
+     * Write the block holding the histogram of a device.
+     *
+     * @param out needs HEADER_SIZE + Histogram.MAX_ENCODED_SIZE bytes
+     *            after pos at most
+     * @return the position after the block
+     */
+    public static int writeHistogram(byte[] out, int pos, int device, Histogram histogram, long firstTime,
+                                     long lastTime) {
+        int end = histogram.encode(out, pos + HEADER_SIZE);
+        writeHeader(out, pos, KIND_HISTOGRAM, device, (int) histogram.getCount(), end - pos - HEADER_SIZE,
+                firstTime, lastTime);
+        return end;
+    }
+
+    /**
+     * Write the block marking a spike, SPIKE_SIZE bytes.
+     *
+     * @return the position after the block
+     */
+    public static int writeSpike(byte[] out, int pos, int device, long time, int value, int median) {
+        pos = writeHeader(out, pos, KIND_SPIKE, device, 1, 4, time, time);
+        out[pos] = (byte) (value >>> 8);
+        out[pos + 1] = (byte) value;
+        out[pos + 2] = (byte) (median >>> 8);
+        out[pos + 3] = (byte) median;
+        return pos + 4;
+    }
+
+    static int writeHeader(byte[] out, int pos, int kind, int device, int count, int length,
+                                   long firstTime, long lastTime) {
+        putInt(out, pos, MAGIC);
+        out[pos + 4] = (byte) (kind >>> 8);
+        out[pos + 5] = (byte) kind;
+        out[pos + 6] = (byte) (device >>> 8);
+        out[pos + 7] = (byte) device;
+        putInt(out, pos + 8, count);
+        putInt(out, pos + 12, length);
+        putInt(out, pos + 16, (int) (firstTime >>> 32));
+        putInt(out, pos + 20, (int) firstTime);
+        putInt(out, pos + 24, (int) (lastTime >>> 32));
+        putInt(out, pos + 28, (int) lastTime);
+        for (int i = pos + 32; i < pos + HEADER_SIZE; i++) {
+            out[i] = 0;
+        }
+        return pos + HEADER_SIZE;
+    }
+
+    private void putTime(long dod) {
+        if (dod == 0) {
+            putBits(0, 1);
+        } else if (fits(dod, 5)) {
+            putBits(0x2, 2);
+            putBits(dod, 5);
+        } else if (fits(dod, 9)) {
+            putBits(0x6, 3);
+            putBits(dod, 9);
+        } else if (fits(dod, 16)) {
+            putBits(0xE, 4);
+            putBits(dod, 16);
+        } else {
+            putBits(0xF, 4);
+            putBits(dod >>> 32, 32);
+            putBits(dod, 32);
+        }
+    }
+
+    private void putValue(int delta) {
+        if (delta == 0) {
+            putBits(0, 1);
+        } else if (fits(delta, 3)) {
+            putBits(0x2, 2);
+            putBits(delta, 3);
+        } else if (fits(delta, 7)) {
+            putBits(0x6, 3);
+            putBits(delta, 7);
+        } else if (fits(delta, 9)) {
+            putBits(0xE, 4);
+            putBits(delta, 9);
+        } else {
+            putBits(0xF, 4);
+            putBits(delta, 32);
+        }
+    }
+
+    private static boolean fits(long n, int bits) {
+        return n >= -(1L << (bits - 1)) && n < (1L << (bits - 1));
+    }
+
+    /**
+     * Append the low bits of n, most significant first; at most 32.
+     */
+    private void putBits(long n, int bits) {
+        mBits = (mBits << bits) | (n & ((1L << bits) - 1));
+        mBitCount += bits;
+        while (mBitCount >= 8) {
+            mBitCount -= 8;
+            mPayload[mPos++] = (byte) (mBits >>> mBitCount);
+        }
+    }
+
+    private static void putInt(byte[] out, int pos, int n) {
+        out[pos] = (byte) (n >>> 24);
+        out[pos + 1] = (byte) (n >>> 16);
+        out[pos + 2] = (byte) (n >>> 8);
+        out[pos + 3] = (byte) n;
+    }
+}
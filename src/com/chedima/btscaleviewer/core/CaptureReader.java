@@ -0,0 +1,94 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a file written by CaptureWriter chunk by chunk, reusing one
+ * buffer. A record cut short by a crash ends the capture quietly.
+ */
+public class CaptureReader {
+
+    private final DataInputStream mIn;
+    private final long mStartTime;
+    private long mTime;
+    private byte[] mBuffer = new byte[256];
+    private int mLength;
+
+    /**
+     * @throws IOException if the stream is not a capture
+     */
+    public CaptureReader(InputStream in) throws IOException {
+        mIn = new DataInputStream(in);
+        try {
+            if (mIn.readInt() != CaptureWriter.MAGIC) throw new IOException("not a capture");
+            mStartTime = mIn.readLong();
+        } catch (EOFException e) {
+            throw new IOException("not a capture");
+        }
+        mTime = mStartTime;
+    }
+
+    /**
+     * Arrival time of the first chunk, milliseconds since the epoch.
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * Advance to the next chunk.
+     *
+     * @return false at the end of the capture
+     */
+    public boolean next() throws IOException {
+        try {
+            int first = mIn.read();
+            if (first < 0) return false;
+            long delta = readVarLong(first);
+            long length = readVarLong(mIn.readUnsignedByte());
+            if (length < 0 || length > Integer.MAX_VALUE) throw new IOException("malformed record");
+            if (length > mBuffer.length) mBuffer = new byte[(int) length];
+            mIn.readFully(mBuffer, 0, (int) length);
+            mTime += VarInt.unzigzag(delta);
+            mLength = (int) length;
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Arrival time of the current chunk.
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    /**
+     * The bytes of the current chunk, valid until the next call to next().
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private long readVarLong(int b) throws IOException {
+        long n = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            n |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return n;
+            b = mIn.readUnsignedByte();
+        }
+        throw new IOException("malformed varint");
+    }
+}
@@ -0,0 +1,115 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a capture written by CaptureWriter back as a scale, chunk by
+ * chunk as they were read, at the recorded pace, N times faster or as
+ * fast as the reader takes them. Fed through a DeviceSession the decoder
+ * sees the same bytes in the same chunks the scale produced.
+ */
+public class CaptureTransport implements ScaleTransport {
+
+    public static final String SCHEME = "capture://";
+
+    private static final long MAX_PARK_NANOS = 50 * 1000 * 1000L;
+
+    public static class Factory implements ScaleTransport.Factory {
+        private final File mFile;
+        private final double mSpeed;
+
+        /**
+         * @param speed 1 for the recorded pace, N for N times faster,
+         *              0 for as fast as possible
+         */
+        public Factory(File file, double speed) {
+            mFile = file;
+            mSpeed = speed;
+        }
+
+        public String getAddress() {
+            return SCHEME + mFile.getPath();
+        }
+
+        public String getName() {
+            return mFile.getName();
+        }
+
+        public ScaleTransport create() {
+            return new CaptureTransport(mFile, mSpeed);
+        }
+    }
+
+    private final File mFile;
+    private final double mSpeed;
+    private volatile boolean mClosed;
+    private volatile CaptureReader mReader;
+
+    private CaptureTransport(File file, double speed) {
+        mFile = file;
+        mSpeed = speed;
+    }
+
+    public InputStream open() throws IOException {
+        if (mClosed) throw new IOException("canceled");
+        final CaptureReader reader = new CaptureReader(new BufferedInputStream(new FileInputStream(mFile), 8192));
+        mReader = reader;
+        final long startNanos = System.nanoTime();
+        return new InputStream() {
+            private int mmPos, mmEnd;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                while (mmPos == mmEnd) {
+                    if (mClosed) throw new IOException("closed");
+                    if (!reader.next()) return -1;
+                    mmPos = 0;
+                    mmEnd = reader.getLength();
+                    if (mSpeed > 0) {
+                        long due = (long) ((reader.getTime() - reader.getStartTime()) * 1e6 / mSpeed);
+                        waitUntil(startNanos + due);
+                    }
+                }
+                int n = Math.min(length, mmEnd - mmPos);
+                System.arraycopy(reader.getBuffer(), mmPos, buffer, offset, n);
+                mmPos += n;
+                return n;
+            }
+
+            @Override
+            public void close() {
+                CaptureTransport.this.close();
+            }
+        };
+    }
+
+    public void close() {
+        mClosed = true;
+        CaptureReader reader = mReader;
+        if (reader == null) return;
+        try {
+            reader.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+
+    private void waitUntil(long nanos) throws IOException {
+        long left;
+        while ((left = nanos - System.nanoTime()) > 0) {
+            if (mClosed) throw new IOException("closed");
+            LockSupport.parkNanos(Math.min(left, MAX_PARK_NANOS));
+        }
+    }
+}
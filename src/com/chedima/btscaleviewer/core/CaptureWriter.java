@@ -0,0 +1,56 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.File;
+
+/**
+ * Tees the raw chunks of a device into an append-only capture file, for
+ * finding out afterwards what a misbehaving scale actually sent.
+ *
+ * The file starts with the magic "BSC1" and the arrival time of the first
+ * chunk as a big-endian long; every chunk follows as a record of
+ * <ul>
+ * <li>time since the previous chunk in milliseconds, zigzag varint</li>
+ * <li>length, varint</li>
+ * <li>the bytes</li>
+ * </ul>
+ * A chunk of a few bytes costs two or three bytes of overhead. The reader
+ * thread only encodes into a buffer, a BackgroundFileWriter writes it
+ * out, so a slow disk never stalls the connection.
+ */
+public class CaptureWriter extends BackgroundFileWriter implements ChunkListener {
+
+    static final int MAGIC = 0x42534331;   // "BSC1"
+    static final int HEADER_SIZE = 12;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RECORD_OVERHEAD = VarInt.MAX_SIZE + 5;
+
+    private boolean mStarted;
+    private long mLastTime;
+
+    public CaptureWriter(File file) {
+        super(file, BUFFER_SIZE);
+    }
+
+    public void onChunk(long time, byte[] buffer, int offset, int length) {
+        synchronized (mLock) {
+            int header = mStarted ? 0 : HEADER_SIZE;
+            if (!reserve(header + MAX_RECORD_OVERHEAD + length)) return;
+            byte[] out = mBuffer;
+            int pos = mLength;
+            if (!mStarted) {
+                putInt(out, pos, MAGIC);
+                putLong(out, pos + 4, time);
+                pos += HEADER_SIZE;
+                mLastTime = time;
+                mStarted = true;
+            }
+            pos = VarInt.putVarLong(out, pos, VarInt.zigzag(time - mLastTime));
+            pos = VarInt.putVarLong(out, pos, length);
+            System.arraycopy(buffer, offset, out, pos, length);
+            mLength = pos + length;
+            mLastTime = time;
+            appended();
+        }
+    }
+}
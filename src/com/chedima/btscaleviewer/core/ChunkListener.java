@@ -0,0 +1,15 @@
+package com.chedima.btscaleviewer.core;
+
+/**
+ * Receives the raw bytes of a device exactly as they were read, before
+ * decoding. Called on the reader thread of the device; the buffer is
+ * reused for the next read, so implementations must copy what they keep
+ * and must not block.
+ */
+public interface ChunkListener {
+
+    /**
+     * @param time arrival time of the chunk, milliseconds since the epoch
+     */
+    void onChunk(long time, byte[] buffer, int offset, int length);
+}
@@ -0,0 +1,125 @@
+package com.chedima.btscaleviewer.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection lifecycle as an explicit state machine.
+ *
+ * The state and a generation counter are packed into one AtomicLong, so
+ * every transition is a single compare-and-set. Each connection attempt
+ * gets a new generation; the threads working for it carry that number and
+ * pass it to every transition, which then only succeeds if nobody started
+ * a newer attempt (or stopped) in the meantime. A thread from an old
+ * connection can therefore never change the state of a newer one.
+ *
+ * Allowed transitions:
+ * <pre>
+ *   any        --begin()-->           CONNECTING (new generation)
+ *   CONNECTING --connected(gen)-->    CONNECTED
+ *   CONNECTING --failed(gen)-->       NONE
+ *   CONNECTED  --lost(gen)-->         NONE
+ *   any        --stop()-->            NONE       (new generation)
+ * </pre>
+ */
+public class ConnectionStateMachine {
+
+    public static final int STATE_NONE = 0;       // we're doing nothing
+    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
+    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+
+    private static final int STATE_BITS = 8;
+    private static final long STATE_MASK = (1 << STATE_BITS) - 1;
+
+    private final AtomicLong packed = new AtomicLong(pack(0, STATE_NONE));
+
+    private static long pack(long generation, int state) {
+        return (generation << STATE_BITS) | state;
+    }
+
+    private static int stateOf(long packed) {
+        return (int) (packed & STATE_MASK);
+    }
+
+    private static long generationOf(long packed) {
+        return packed >>> STATE_BITS;
+    }
+
+    public int getState() {
+        return stateOf(packed.get());
+    }
+
+    public long getGeneration() {
+        return generationOf(packed.get());
+    }
+
+    /**
+     * True while no newer attempt was started and the machine was not
+     * stopped since the given generation was handed out.
+     */
+    public boolean isCurrent(long generation) {
+        return generationOf(packed.get()) == generation;
+    }
+
+    /**
+     * True if the given generation is current and connected, the check a
+     * reader thread makes before handing data on.
+     */
+    public boolean isConnected(long generation) {
+        return packed.get() == pack(generation, STATE_CONNECTED);
+    }
+
+    /**
+     * Start a new connection attempt, superseding whatever was going on.
+     *
+     * @return the generation owned by the new attempt
+     */
+    public long begin() {
+        return advance(STATE_CONNECTING);
+    }
+
+    /**
+     * Stop everything. All outstanding generations become stale.
+     */
+    public void stop() {
+        advance(STATE_NONE);
+    }
+
+    public boolean connected(long generation) {
+        return transition(generation, STATE_CONNECTING, STATE_CONNECTED);
+    }
+
+    public boolean failed(long generation) {
+        return transition(generation, STATE_CONNECTING, STATE_NONE);
+    }
+
+    public boolean lost(long generation) {
+        return transition(generation, STATE_CONNECTED, STATE_NONE);
+    }
+
+    private long advance(int state) {
+        while (true) {
+            long current = packed.get();
+            long generation = generationOf(current) + 1;
+            if (packed.compareAndSet(current, pack(generation, state))) {
+                return generation;
+            }
+        }
+    }
+
+    private boolean transition(long generation, int from, int to) {
+        return packed.compareAndSet(pack(generation, from), pack(generation, to));
+    }
+
+    public static String stateName(int state) {
+        switch (state) {
+            case STATE_NONE:
+                return "NONE";
+            case STATE_CONNECTING:
+                return "CONNECTING";
+            case STATE_CONNECTED:
+                return "CONNECTED";
+            default:
+                return Integer.toString(state);
+        }
+    }
+}
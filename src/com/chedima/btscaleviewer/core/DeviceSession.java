@@ -0,0 +1,232 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One scale: its connection state machine and the connection currently
+ * working for it, which has its own transport and frame decoder. The
+ * connection runs as a task on a reader pool shared by all sessions.
+ *
+ * Plain Java, so the whole ingest pipeline can run on a desktop JVM with
+ * a TCP or replay transport.
+ */
+public class DeviceSession {
+
+    private static final int READ_BUFFER_SIZE = 256;
+
+    /**
+     * Connection lifecycle events, called on the reader pool thread.
+     */
+    public interface Callback {
+        void onConnecting(DeviceSession session, long generation);
+
+        void onConnected(DeviceSession session, ScaleTransport transport);
+
+        void onConnectionFailed(DeviceSession session, IOException e);
+
+        void onConnectionLost(DeviceSession session, IOException e);
+
+        void onTimeout(DeviceSession session, long silence);
+    }
+
+    public final String address;
+    public final String name;
+
+    private final ScaleTransport.Factory mFactory;
+    private final Callback mCallback;
+    private final ConnectionStateMachine mState = new ConnectionStateMachine();
+    private final AtomicReference<Connection> mConnection = new AtomicReference<Connection>();
+    private volatile ReadingListener[] mListeners = new ReadingListener[0];
+    private volatile ChunkListener mChunkListener;
+    private volatile long mLastDataTime;
+
+    private final ReadingListener mDispatcher = new ReadingListener() {
+        @Override
+        public void onReading(long time, int value) {
+            for (ReadingListener listener : mListeners) {
+                listener.onReading(time, value);
+            }
+        }
+    };
+
+    public DeviceSession(ScaleTransport.Factory factory, Callback callback) {
+        mFactory = factory;
+        mCallback = callback;
+        address = factory.getAddress();
+        name = factory.getName() != null ? factory.getName() : address;
+    }
+
+    public ScaleTransport.Factory getFactory() {
+        return mFactory;
+    }
+
+    public synchronized void addListener(ReadingListener listener) {
+        ReadingListener[] old = mListeners;
+        ReadingListener[] listeners = new ReadingListener[old.length + 1];
+        System.arraycopy(old, 0, listeners, 0, old.length);
+        listeners[old.length] = listener;
+        mListeners = listeners;
+    }
+
+    /**
+     * Tee the raw bytes of every read to the listener, e.g. a
+     * CaptureWriter; null stops it.
+     *
+     * @return the listener it replaces, or null
+     */
+    public synchronized ChunkListener setChunkListener(ChunkListener listener) {
+        ChunkListener old = mChunkListener;
+        mChunkListener = listener;
+        return old;
+    }
+
+    public int getState() {
+        return mState.getState();
+    }
+
+    /**
+     * Start a new connection attempt on the pool, superseding the current one.
+     */
+    public void connect(Executor pool) {
+        long generation = mState.begin();
+        Connection connection = new Connection(generation, mFactory.create());
+        if (!install(connection)) return;
+        mCallback.onConnecting(this, generation);
+        pool.execute(connection);
+    }
+
+    /**
+     * Stop the session. All outstanding generations become stale.
+     */
+    public void stop() {
+        mState.stop();
+        Connection connection = mConnection.getAndSet(null);
+        if (connection != null) connection.cancel();
+    }
+
+    /**
+     * Drop the connection if the scale stayed silent for longer than the
+     * timeout; the blocked read then fails and the connection is lost.
+     */
+    public void checkTimeout(long now, long timeout) {
+        Connection connection = mConnection.get();
+        if (connection != null && mState.isConnected(connection.generation)
+                && now - mLastDataTime > timeout) {
+            mCallback.onTimeout(this, now - mLastDataTime);
+            connection.cancel();
+        }
+    }
+
+    /**
+     * Make the connection current unless a newer one already is,
+     * cancelling the connection it replaces. A connection that loses is
+     * cancelled itself.
+     */
+    private boolean install(Connection connection) {
+        while (true) {
+            Connection old = mConnection.get();
+            if (old != null && old.generation > connection.generation) {
+                connection.cancel();
+                return false;
+            }
+            if (mConnection.compareAndSet(old, connection)) {
+                if (old != null) old.cancel();
+                return true;
+            }
+        }
+    }
+
+    private static IOException wrap(RuntimeException e) {
+        IOException error = new IOException(e.toString());
+        error.initCause(e);
+        return error;
+    }
+
+    /**
+     * One connection attempt: opens its transport, then reads until the
+     * connection is lost or superseded.
+     */
+    private class Connection implements Runnable {
+        final long generation;
+        private final ScaleTransport mmTransport;
+        private final FrameDecoder mmDecoder = new FrameDecoder();
+
+        Connection(long generation, ScaleTransport transport) {
+            this.generation = generation;
+            mmTransport = transport;
+        }
+
+        public void run() {
+            String threadName = Thread.currentThread().getName();
+            Thread.currentThread().setName("DeviceSession " + address);
+            try {
+                InputStream in;
+                try {
+                    in = mmTransport.open();
+                } catch (IOException e) {
+                    fail(e);
+                    return;
+                } catch (RuntimeException e) {
+                    // a bad address, say; the attempt fails like any other
+                    fail(wrap(e));
+                    return;
+                }
+
+                mLastDataTime = System.currentTimeMillis();
+                if (!mState.connected(generation)) {
+                    // superseded by a newer connect() or stop() while connecting
+                    mmTransport.close();
+                    return;
+                }
+                mCallback.onConnected(DeviceSession.this, mmTransport);
+                read(in);
+            } finally {
+                mConnection.compareAndSet(this, null);
+                Thread.currentThread().setName(threadName);
+            }
+        }
+
+        private void read(InputStream in) {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            IOException error = null;
+            try {
+                // runs until this connection is lost or superseded by connect()/stop()
+                while (mState.isConnected(generation)) {
+                    int n = in.read(buffer);
+                    if (n < 0) break;
+                    long now = System.currentTimeMillis();
+                    mLastDataTime = now;
+                    ChunkListener tee = mChunkListener;
+                    if (tee != null) tee.onChunk(now, buffer, 0, n);
+                    if (mState.isConnected(generation)) {
+                        mmDecoder.feed(buffer, 0, n, now, mDispatcher);
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                // a listener that throws ends the connection like a failed read
+                error = wrap(e);
+            } finally {
+                mmTransport.close();
+                if (mState.lost(generation)) {
+                    mCallback.onConnectionLost(DeviceSession.this, error);
+                }
+            }
+        }
+
+        private void fail(IOException e) {
+            mmTransport.close();
+            if (mState.failed(generation)) {
+                mCallback.onConnectionFailed(DeviceSession.this, e);
+            }
+        }
+
+        void cancel() {
+            mmTransport.close();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.chedima.btscaleviewer.core;
+
+/**
+ * Smooths the readings of a device for display and passes them on: an
+ * optional notch filter takes out one frequency, machinery shaking the
+ * scale for one, then exponential smoothing as in Settings.smoothing.
+ *
+ * The notch is the biquad of the Audio EQ Cookbook; it needs the rate of
+ * the readings, which this measures over blocks of RATE_BLOCK readings,
+ * and is designed again when the rate drifts or setNotch() moves it,
+ * which SpectrumAnalyzer results may do from another thread. A notch at
+ * or above half the rate is left out, it cannot be there.
+ *
+ * onReading() runs on the reader thread. Not thread safe apart from
+ * setNotch().
+ */
+public class DisplayFilter implements ReadingListener {
+
+    private static final int RATE_BLOCK = 64;
+    // how narrow the notch is, centre frequency over bandwidth
+    private static final double NOTCH_Q = 2;
+    // the relative change of the rate that designs the notch again
+    private static final double RATE_DRIFT = 0.05;
+
+    private final ReadingListener mTarget;
+    private final double mSmoothing;
+    // 0 for no notch
+    private volatile double mNotchHz;
+
+    private long mBlockStart;
+    private int mBlockCount;
+    private double mRate;
+
+    // the notch as designed, its coefficients and state
+    private double mDesignHz;
+    private double mDesignRate;
+    private double mB0, mB1, mB2, mA1, mA2;
+    private double mX1, mX2, mY1, mY2;
+    private boolean mNotching;
+
+    private double mSmoothed;
+    private boolean mStarted;
+
+    /**
+     * @param smoothing weight of a new reading, 1 for none
+     * @param notchHz   frequency to take out, 0 for none
+     */
+    public DisplayFilter(ReadingListener target, double smoothing, double notchHz) {
+        mTarget = target;
+        mSmoothing = smoothing;
+        mNotchHz = notchHz;
+    }
+
+    /**
+     * Move the notch, 0 to remove it; from any thread.
+     */
+    public void setNotch(double hz) {
+        mNotchHz = hz;
+    }
+
+    public double getNotch() {
+        return mNotchHz;
+    }
+
+    @Override
+    public void onReading(long time, int value) {
+        if (mBlockCount == 0) {
+            mBlockStart = time;
+        } else if (mBlockCount == RATE_BLOCK) {
+            if (time > mBlockStart) mRate = RATE_BLOCK * 1000.0 / (time - mBlockStart);
+            mBlockStart = time;
+            mBlockCount = 0;
+        }
+        mBlockCount++;
+
+        double x = value;
+        double hz = mNotchHz;
+        if (hz > 0 && mRate > 0 && hz < mRate / 2) {
+            if (!mNotching || hz != mDesignHz || Math.abs(mRate - mDesignRate) > RATE_DRIFT * mDesignRate) {
+                design(hz, mRate);
+                if (!mNotching) {
+                    // the notch passes a constant as it is, so starting from
+                    // one does not ring
+                    mX1 = mX2 = mY1 = mY2 = x;
+                    mNotching = true;
+                }
+            }
+            double y = mB0 * x + mB1 * mX1 + mB2 * mX2 - mA1 * mY1 - mA2 * mY2;
+            mX2 = mX1;
+            mX1 = x;
+            mY2 = mY1;
+            mY1 = y;
+            x = y;
+        } else {
+            mNotching = false;
+        }
+
+        if (mStarted) {
+            mSmoothed += mSmoothing * (x - mSmoothed);
+        } else {
+            mSmoothed = x;
+            mStarted = true;
+        }
+        long out = Math.round(mSmoothed);
+        mTarget.onReading(time, (int) Math.max(0, Math.min(253, out)));
+    }
+
+    private void design(double hz, double rate) {
+        double w0 = 2 * Math.PI * hz / rate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * NOTCH_Q);
+        double a0 = 1 + alpha;
+        mB0 = 1 / a0;
+        mB1 = -2 * cos / a0;
+        mB2 = 1 / a0;
+        mA1 = -2 * cos / a0;
+        mA2 = (1 - alpha) / a0;
+        mDesignHz = hz;
+        mDesignRate = rate;
+    }
+}
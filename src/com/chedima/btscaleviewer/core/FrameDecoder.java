@@ -0,0 +1,42 @@
+package com.chedima.btscaleviewer.core;
+
+/**
+ * Decodes the scale protocol: every reading is sent as the three bytes
+ * FF, value, FE, where the value itself is never FF or FE. Bytes that do
+ * not form such a frame are skipped.
+ *
+ * Not thread safe, every device has its own decoder.
+ */
+public class FrameDecoder {
+
+    public static final int FRAME_START = 0xFF;
+    public static final int FRAME_END = 0xFE;
+
+    private int b0, b1;
+
+    /**
+     * Forget any partial frame, e.g. after a reconnect.
+     */
+    public void reset() {
+        b0 = b1 = 0;
+    }
+
+    /**
+     * Feed a chunk of raw bytes, reporting every completed frame.
+     *
+     * @param time arrival time of the chunk, passed on to the listener
+     */
+    public void feed(byte[] buffer, int offset, int length, long time, ReadingListener listener) {
+        int b0 = this.b0, b1 = this.b1;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int b2 = buffer[i] & 0xFF;
+            if (b0 == FRAME_START && b2 == FRAME_END && b1 != FRAME_START && b1 != FRAME_END) {
+                listener.onReading(time, b1);
+            }
+            b0 = b1;
+            b1 = b2;
+        }
+        this.b0 = b0;
+        this.b1 = b1;
+    }
+}
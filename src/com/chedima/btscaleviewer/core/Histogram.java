@@ -0,0 +1,131 @@
+package com.chedima.btscaleviewer.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * How often each reading occurred. Readings are 0..253, so a count per
+ * value is small, answers every quantile exactly, and histograms of any
+ * sessions and devices merge by adding the counts.
+ *
+ * Encoded for SessionRecorder and SessionCatalog as varints: the number
+ * of values that occurred, then for each the difference to the value
+ * before and its count. A few hundred bytes for a session.
+ *
+ * Not thread safe.
+ */
+public class Histogram {
+
+    public static final int VALUES = 256;
+    // the number of values, and per value its difference and count
+    public static final int MAX_ENCODED_SIZE = 2 + VALUES * (2 + VarInt.MAX_SIZE);
+
+    private final long[] mCounts = new long[VALUES];
+    private long mCount;
+
+    public void reset() {
+        for (int i = 0; i < VALUES; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+    }
+
+    /**
+     * Count a reading; one outside 0..VALUES - 1 counts as the nearest
+     * end.
+     */
+    public void add(int value) {
+        mCounts[value < 0 ? 0 : value >= VALUES ? VALUES - 1 : value]++;
+        mCount++;
+    }
+
+    public void add(Histogram other) {
+        if (other.mCount == 0) return;
+        for (int i = 0; i < VALUES; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mCount += other.mCount;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getCount(int value) {
+        return mCounts[value];
+    }
+
+    /**
+     * The smallest reading at least the fraction q of all readings are at
+     * or below, -1 if there are none; q = 0.5 is the median.
+     */
+    public int quantile(double q) {
+        if (mCount == 0) return -1;
+        // nearest rank, at least the first
+        long rank = Math.max(1, (long) Math.ceil(q * mCount));
+        long seen = 0;
+        for (int i = 0; i < VALUES; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) return i;
+        }
+        return VALUES - 1;
+    }
+
+    /**
+     * Encode into out, which needs MAX_ENCODED_SIZE bytes after pos at most.
+     *
+     * @return the position after the encoding
+     */
+    public int encode(byte[] out, int pos) {
+        int values = 0;
+        for (int i = 0; i < VALUES; i++) {
+            if (mCounts[i] != 0) values++;
+        }
+        pos = VarInt.putVarLong(out, pos, values);
+        int last = 0;
+        for (int i = 0; i < VALUES; i++) {
+            if (mCounts[i] == 0) continue;
+            pos = VarInt.putVarLong(out, pos, i - last);
+            pos = VarInt.putVarLong(out, pos, mCounts[i]);
+            last = i;
+        }
+        return pos;
+    }
+
+    public byte[] toBytes() {
+        byte[] out = new byte[MAX_ENCODED_SIZE];
+        int length = encode(out, 0);
+        byte[] bytes = new byte[length];
+        System.arraycopy(out, 0, bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * Add the histogram encoded at pos, which must end before limit.
+     *
+     * @return false if it is damaged; what was added stays added
+     */
+    public boolean addEncoded(ByteBuffer buffer, int pos, int limit) {
+        long[] varint = new long[2];
+        if ((pos = VarInt.readVarLong(buffer, pos, limit, varint)) < 0) return false;
+        long values = varint[0];
+        int value = 0;
+        for (long i = 0; i < values; i++) {
+            if ((pos = VarInt.readVarLong(buffer, pos, limit, varint)) < 0) return false;
+            value += (int) varint[0];
+            if ((pos = VarInt.readVarLong(buffer, pos, limit, varint)) < 0) return false;
+            if (value < 0 || value >= VALUES || varint[0] < 0) return false;
+            mCounts[value] += varint[0];
+            mCount += varint[0];
+        }
+        return true;
+    }
+
+    public boolean addEncoded(byte[] bytes) {
+        return addEncoded(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    @Override
+    public String toString() {
+        return "count " + mCount + ", p50 " + quantile(0.5) + ", p95 " + quantile(0.95) + ", p99 " + quantile(0.99);
+    }
+}
@@ -0,0 +1,53 @@
+package com.chedima.btscaleviewer.core;
+
+/**
+ * Everything worked out from the live readings of one device, fed as one
+ * listener on its reader thread. Each part takes snapshots for other
+ * threads on its own.
+ */
+public class LiveAnalysis implements ReadingListener {
+
+    // a minute of statistics, the ring fits it at 60 Hz
+    public static final long STATS_WINDOW = 60 * 1000;
+    public static final int STATS_CAPACITY = 4096;
+    // ten minutes of zone times in 10 s buckets
+    public static final long ZONE_WINDOW = 10 * 60 * 1000;
+    public static final int ZONE_BUCKETS = 60;
+    // spikes against the median of the last 64 readings, seconds at the
+    // usual rates
+    public static final int SPIKE_WINDOW = 64;
+    public static final double SPIKE_SCORE = 5;
+    public static final int SPIKE_MIN_DEVIATION = 10;
+    // the trend of the last 20 s
+    public static final long TREND_WINDOW = 20 * 1000;
+    public static final int TREND_CAPACITY = 2048;
+
+    public final RunningStats stats;
+    public final ZoneTimes zones;
+    public final Trend trend;
+    // analysed on a background thread, see SpectrumAnalyzer
+    public final SpectrumAnalyzer spectrum;
+    // only for the reader thread
+    public final SpikeDetector spikes;
+
+    /**
+     * @param settings the zones of the gauge
+     * @param spikes   told about spikes on the reader thread
+     */
+    public LiveAnalysis(Settings settings, SpikeDetector.Listener spikes) {
+        stats = new RunningStats(STATS_WINDOW, STATS_CAPACITY);
+        zones = new ZoneTimes(settings.greenMax, settings.line, settings.redMin, ZONE_WINDOW, ZONE_BUCKETS);
+        trend = new Trend(TREND_WINDOW, TREND_CAPACITY, settings.line, settings.redMin);
+        spectrum = new SpectrumAnalyzer();
+        this.spikes = new SpikeDetector(SPIKE_WINDOW, SPIKE_SCORE, SPIKE_MIN_DEVIATION, spikes);
+    }
+
+    @Override
+    public void onReading(long time, int value) {
+        stats.onReading(time, value);
+        zones.onReading(time, value);
+        trend.onReading(time, value);
+        spectrum.onReading(time, value);
+        spikes.onReading(time, value);
+    }
+}
@@ -0,0 +1,15 @@
+package com.chedima.btscaleviewer.core;
+
+/**
+ * Receives decoded scale readings. Called on the reader thread of the
+ * device, so implementations must be quick and must not block.
+ */
+public interface ReadingListener {
+
+    /**
+     * @param time  arrival time of the chunk the frame completed in,
+     *              milliseconds since the epoch
+     * @param value the reading, 0..253
+     */
+    void onReading(long time, int value);
+}
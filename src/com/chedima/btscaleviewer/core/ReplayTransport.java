@@ -0,0 +1,125 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Replays raw scale bytes from memory or from a file as fast as the
+ * reader takes them, optionally several times over. Lets the whole
+ * pipeline be exercised without hardware, at rates no radio reaches.
+ */
+public class ReplayTransport implements ScaleTransport {
+
+    public static final String SCHEME = "replay://";
+
+    /**
+     * Where the bytes come from; opened again for every loop.
+     */
+    public abstract static class Factory implements ScaleTransport.Factory {
+        private final String mName;
+        private final int mLoops;
+
+        /**
+         * @param loops how many times to play the data, 0 for forever
+         */
+        protected Factory(String name, int loops) {
+            mName = name;
+            mLoops = loops;
+        }
+
+        protected abstract InputStream openSource() throws IOException;
+
+        public String getAddress() {
+            return SCHEME + mName;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public ScaleTransport create() {
+            return new ReplayTransport(this);
+        }
+    }
+
+    public static Factory fromBytes(String name, final byte[] data, int loops) {
+        return new Factory(name, loops) {
+            @Override
+            protected InputStream openSource() {
+                return new ByteArrayInputStream(data);
+            }
+        };
+    }
+
+    public static Factory fromFile(final File file, int loops) {
+        return new Factory(file.getName(), loops) {
+            @Override
+            protected InputStream openSource() throws IOException {
+                return new BufferedInputStream(new FileInputStream(file), 8192);
+            }
+        };
+    }
+
+    private final Factory mFactory;
+    private volatile boolean mClosed;
+    private volatile InputStream mSource;
+
+    private ReplayTransport(Factory factory) {
+        mFactory = factory;
+    }
+
+    public InputStream open() throws IOException {
+        if (mClosed) throw new IOException("canceled");
+        return new InputStream() {
+            private int loopsPlayed;
+            private boolean loopHadData;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                while (true) {
+                    if (mClosed) throw new IOException("closed");
+                    InputStream source = mSource;
+                    if (source == null) {
+                        if (mFactory.mLoops > 0 && loopsPlayed >= mFactory.mLoops) return -1;
+                        if (loopsPlayed > 0 && !loopHadData) return -1;  // empty source
+                        loopsPlayed++;
+                        loopHadData = false;
+                        source = mFactory.openSource();
+                        mSource = source;
+                    }
+                    int n = source.read(buffer, offset, length);
+                    if (n > 0) loopHadData = true;
+                    if (n >= 0) return n;
+                    source.close();
+                    mSource = null;
+                }
+            }
+
+            @Override
+            public void close() {
+                ReplayTransport.this.close();
+            }
+        };
+    }
+
+    public void close() {
+        mClosed = true;
+        InputStream source = mSource;
+        if (source == null) return;
+        try {
+            source.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+}
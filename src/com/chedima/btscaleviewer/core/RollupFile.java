@@ -0,0 +1,380 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Aggregates of recorded readings at a fixed resolution, a second or a
+ * minute, what SessionCompactor keeps once the raw readings are gone:
+ * <pre>
+ *   int    MAGIC "BSU1"
+ *   int    resolution in milliseconds
+ *   long   start of the first bucket
+ *   long   end of the last bucket
+ *   short  number of devices
+ *   per device:
+ *     UTF  address
+ *     int  number of buckets
+ *     int  payload length
+ *     payload
+ *   int    CRC32 of everything before
+ * </pre>
+ * A bucket holds the count, sum, minimum, maximum and time above the
+ * threshold of the readings of one device in one interval. The payload
+ * stores each field minus the one of the bucket before as a zigzag
+ * varint, and the start as the number of intervals since the bucket
+ * before, so a steady scale costs about a byte per field.
+ *
+ * The files are small and are read into memory whole.
+ */
+public class RollupFile {
+
+    static final int MAGIC = 0x42535531;   // "BSU1"
+    static final int HEADER_SIZE = 24;
+
+    private final long mResolution;
+    private final long mStartTime;
+    private final long mEndTime;
+    private final byte[] mData;
+    private final List<String> mAddresses = new ArrayList<String>();
+    // per device the offset of the payload and the number of buckets
+    private final List<int[]> mPayloads = new ArrayList<int[]>();
+
+    /**
+     * Read a whole file.
+     *
+     * @throws IOException if it cannot be read or is not a rollup
+     */
+    public static RollupFile open(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) throw new IOException("rollup too large: " + file);
+            byte[] data = new byte[(int) length];
+            new DataInputStream(in).readFully(data);
+            return new RollupFile(data);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The end of the last bucket, from the header alone.
+     */
+    public static long readEndTime(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readInt() != MAGIC) throw new IOException("not a rollup: " + file);
+            in.readInt();
+            in.readLong();
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    public RollupFile(byte[] data) throws IOException {
+        mData = data;
+        int end = data.length - 4;
+        if (end < HEADER_SIZE + 2 || getInt(data, 0) != MAGIC) throw new IOException("not a rollup");
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, end);
+        if (getInt(data, end) != (int) crc.getValue()) throw new IOException("rollup checksum mismatch");
+        // available() of the array is exact, it tells where the payloads are
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 4, end - 4));
+        mResolution = in.readInt();
+        mStartTime = in.readLong();
+        mEndTime = in.readLong();
+        int devices = in.readUnsignedShort();
+        for (int d = 0; d < devices; d++) {
+            String address = in.readUTF();
+            int buckets = in.readInt();
+            int length = in.readInt();
+            int pos = end - in.available();
+            if (buckets < 0 || length < 0 || length > end - pos) throw new IOException("rollup truncated");
+            mAddresses.add(address);
+            mPayloads.add(new int[]{ pos, buckets });
+            in.skipBytes(length);
+        }
+    }
+
+    public long getResolution() {
+        return mResolution;
+    }
+
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public long getEndTime() {
+        return mEndTime;
+    }
+
+    public int getDeviceCount() {
+        return mAddresses.size();
+    }
+
+    public String getAddress(int device) {
+        return mAddresses.get(device);
+    }
+
+    /**
+     * The index of the device, or -1 if it is not in the file.
+     */
+    public int getDevice(String address) {
+        return mAddresses.indexOf(address);
+    }
+
+    public int getBucketCount(int device) {
+        return mPayloads.get(device)[1];
+    }
+
+    /**
+     * Add the buckets of a device starting at or after from and before to;
+     * the range is only as exact as the resolution.
+     *
+     * @param result not reset, so several files can be summed up
+     * @return result
+     */
+    public Summary summarize(int device, long from, long to, Summary result) {
+        Cursor cursor = cursor(device);
+        while (cursor.next()) {
+            long time = cursor.getTime();
+            if (time >= to) break;
+            if (time >= from) {
+                result.add(cursor.getCount(), cursor.getSum(), cursor.getMin(), cursor.getMax(), cursor.getTimeAbove());
+            }
+        }
+        return result;
+    }
+
+    public Cursor cursor(int device) {
+        int[] payload = mPayloads.get(device);
+        return new Cursor(payload[0], payload[1]);
+    }
+
+    /**
+     * Iterates over the buckets of one device in time order.
+     */
+    public class Cursor {
+        private int mmPos;
+        private int mmRemaining;
+        private long mmIndex;
+        private int mmCount;
+        private long mmSum;
+        private int mmMin;
+        private int mmMax;
+        private long mmTimeAbove;
+
+        Cursor(int pos, int buckets) {
+            mmPos = pos;
+            mmRemaining = buckets;
+        }
+
+        /**
+         * @return false after the last bucket
+         */
+        public boolean next() {
+            if (mmRemaining == 0) return false;
+            mmRemaining--;
+            mmIndex += readSigned();
+            mmCount += (int) readSigned();
+            mmSum += readSigned();
+            mmMin += (int) readSigned();
+            mmMax += (int) readSigned();
+            mmTimeAbove += readSigned();
+            return true;
+        }
+
+        /**
+         * Start of the bucket.
+         */
+        public long getTime() {
+            return mmIndex * mResolution;
+        }
+
+        public int getCount() {
+            return mmCount;
+        }
+
+        public long getSum() {
+            return mmSum;
+        }
+
+        public int getMin() {
+            return mmMin;
+        }
+
+        public int getMax() {
+            return mmMax;
+        }
+
+        public double getMean() {
+            return (double) mmSum / mmCount;
+        }
+
+        public long getTimeAbove() {
+            return mmTimeAbove;
+        }
+
+        private long readSigned() {
+            byte[] data = mData;
+            long n = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[mmPos++];
+                n |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return VarInt.unzigzag(n);
+        }
+    }
+
+    /**
+     * Aggregates readings into buckets, device after device, and writes
+     * the file. Readings of a device must come in time order.
+     *
+     * Not thread safe.
+     */
+    public static class Builder {
+        private final long mResolution;
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream(4096);
+        private final DataOutputStream mData = new DataOutputStream(mOut);
+        private byte[] mPayload = new byte[4096];
+        private int mPayloadLength;
+        private int mDevices;
+        private String mAddress;
+        private int mBuckets;
+        private long mStartTime = Long.MAX_VALUE;
+        private long mEndTime = Long.MIN_VALUE;
+
+        // the bucket being filled, and the one written before it
+        private long mIndex;
+        private int mCount;
+        private long mSum;
+        private int mMin;
+        private int mMax;
+        private long mTimeAbove;
+        private long mLastIndex;
+        private int mLastCount;
+        private long mLastSum;
+        private int mLastMin;
+        private int mLastMax;
+        private long mLastTimeAbove;
+
+        public Builder(long resolutionMillis) {
+            mResolution = resolutionMillis;
+        }
+
+        /**
+         * Finish the device before and start adding readings of this one.
+         */
+        public void beginDevice(String address) throws IOException {
+            endDevice();
+            mAddress = address;
+            mBuckets = 0;
+            mPayloadLength = 0;
+            mCount = 0;
+            mLastIndex = 0;
+            mLastCount = 0;
+            mLastSum = 0;
+            mLastMin = 0;
+            mLastMax = 0;
+            mLastTimeAbove = 0;
+        }
+
+        /**
+         * @param timeAbove the time the reading stands for if it is above
+         *                  the threshold, else 0
+         */
+        public void add(long time, int value, long timeAbove) {
+            long index = time / mResolution;
+            if (mCount > 0 && index != mIndex) putBucket();
+            if (mCount == 0) {
+                mIndex = index;
+                mSum = 0;
+                mMin = mMax = value;
+                mTimeAbove = 0;
+            }
+            mCount++;
+            mSum += value;
+            if (value < mMin) mMin = value;
+            if (value > mMax) mMax = value;
+            mTimeAbove += timeAbove;
+        }
+
+        /**
+         * Write everything added to the file, atomically like
+         * SettingsStore.save().
+         */
+        public void write(File file) throws IOException {
+            endDevice();
+            boolean empty = mStartTime > mEndTime;
+            ByteArrayOutputStream all = new ByteArrayOutputStream(HEADER_SIZE + 2 + mOut.size() + 4);
+            DataOutputStream out = new DataOutputStream(all);
+            out.writeInt(MAGIC);
+            out.writeInt((int) mResolution);
+            out.writeLong(empty ? 0 : mStartTime);
+            out.writeLong(empty ? 0 : mEndTime);
+            out.writeShort(mDevices);
+            mData.flush();
+            mOut.writeTo(out);
+            byte[] data = all.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            out.writeInt((int) crc.getValue());
+            SettingsStore.write(all.toByteArray(), all.size(), file);
+        }
+
+        private void endDevice() throws IOException {
+            if (mAddress == null) return;
+            if (mCount > 0) putBucket();
+            mData.writeUTF(mAddress);
+            mData.writeInt(mBuckets);
+            mData.writeInt(mPayloadLength);
+            mData.write(mPayload, 0, mPayloadLength);
+            mDevices++;
+            mAddress = null;
+        }
+
+        private void putBucket() {
+            if (mPayloadLength + 6 * 10 > mPayload.length) {
+                byte[] grown = new byte[mPayload.length * 2];
+                System.arraycopy(mPayload, 0, grown, 0, mPayloadLength);
+                mPayload = grown;
+            }
+            int pos = mPayloadLength;
+            pos = VarInt.putVarLong(mPayload, pos, VarInt.zigzag(mIndex - mLastIndex));
+            pos = VarInt.putVarLong(mPayload, pos, VarInt.zigzag(mCount - mLastCount));
+            pos = VarInt.putVarLong(mPayload, pos, VarInt.zigzag(mSum - mLastSum));
+            pos = VarInt.putVarLong(mPayload, pos, VarInt.zigzag(mMin - mLastMin));
+            pos = VarInt.putVarLong(mPayload, pos, VarInt.zigzag(mMax - mLastMax));
+            pos = VarInt.putVarLong(mPayload, pos, VarInt.zigzag(mTimeAbove - mLastTimeAbove));
+            mPayloadLength = pos;
+            mBuckets++;
+            mStartTime = Math.min(mStartTime, mIndex * mResolution);
+            mEndTime = Math.max(mEndTime, (mIndex + 1) * mResolution);
+            mLastIndex = mIndex;
+            mLastCount = mCount;
+            mLastSum = mSum;
+            mLastMin = mMin;
+            mLastMax = mMax;
+            mLastTimeAbove = mTimeAbove;
+            mCount = 0;
+        }
+    }
+
+    private static int getInt(byte[] b, int pos) {
+        return (b[pos] & 0xFF) << 24 | (b[pos + 1] & 0xFF) << 16 | (b[pos + 2] & 0xFF) << 8 | (b[pos + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,194 @@
+package com.chedima.btscaleviewer.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Count, minimum, maximum, mean and standard deviation of the readings of
+ * a device, over everything since it was created and over a sliding time
+ * window, in constant memory and time per reading.
+ *
+ * The session keeps Welford's running mean and sum of squared deviations,
+ * which stay accurate over any number of readings. The window keeps its
+ * readings in a ring and the exact integer sum and sum of squares, so a
+ * reading leaving it is subtracted without any rounding creeping in, and
+ * a count per value, readings being 0..253, from which its minimum and
+ * maximum follow by stepping over the values that ran out. A window with
+ * more readings than the ring holds only covers the newest.
+ *
+ * onReading() runs on the reader thread and is the only writer. Any
+ * thread may take a snapshot() at any time without locking: the writer
+ * bumps a sequence number to odd before and to even after updating, and
+ * a reader copies the fields and retries if the number was odd or moved.
+ */
+public class RunningStats implements ReadingListener {
+
+    /**
+     * A consistent copy of the statistics; reusable.
+     */
+    public static class Snapshot {
+        public long count;
+        public int min;
+        public int max;
+        public double mean;
+        public double stdDev;
+
+        public long windowCount;
+        public int windowMin;
+        public int windowMax;
+        public double windowMean;
+        public double windowStdDev;
+
+        /**
+         * Time of the newest reading, 0 if there is none.
+         */
+        public long time;
+    }
+
+    private final long mWindow;
+    // the window's readings in arrival order from mHead to mTail; the
+    // positions wrap around, only their difference counts
+    private final long[] mTimes;
+    private final int[] mValues;
+    private final int mMask;
+    private int mHead;
+    private int mTail;
+    // readings in the window per value
+    private final int[] mCounts = new int[256];
+
+    private final AtomicInteger mSequence = new AtomicInteger();
+    // written by readers only for its ordering
+    private volatile int mFence;
+
+    // written only by onReading(), between the odd and the even sequence
+    private long mCount;
+    private int mMin = Integer.MAX_VALUE;
+    private int mMax = Integer.MIN_VALUE;
+    private double mMean;
+    private double mM2;
+    private long mWindowSum;
+    private long mWindowSquares;
+    private int mWindowMin;
+    private int mWindowMax;
+    private long mTime;
+
+    /**
+     * @param windowMillis length of the sliding window
+     * @param capacity     most readings the window holds, rounded up to a
+     *                     power of two
+     */
+    public RunningStats(long windowMillis, int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mWindow = windowMillis;
+        mTimes = new long[size];
+        mValues = new int[size];
+        mMask = size - 1;
+    }
+
+    public long getWindow() {
+        return mWindow;
+    }
+
+    @Override
+    public void onReading(long time, int value) {
+        // odd: a snapshot now would be torn; the volatile store keeps the
+        // updates below from moving before it
+        int sequence = mSequence.get();
+        mSequence.set(sequence + 1);
+
+        mCount++;
+        if (value < mMin) mMin = value;
+        if (value > mMax) mMax = value;
+        double delta = value - mMean;
+        mMean += delta / mCount;
+        mM2 += delta * (value - mMean);
+
+        int mask = mMask;
+        int[] counts = mCounts;
+        // the oldest leave when out of the window or their slot is needed
+        long cutoff = time - mWindow;
+        while (mTail - mHead > 0 && (mTimes[mHead & mask] <= cutoff || mTail - mHead > mask)) {
+            int old = mValues[mHead & mask];
+            mWindowSum -= old;
+            mWindowSquares -= (long) old * old;
+            counts[old]--;
+            mHead++;
+        }
+        int slot = mTail & mask;
+        mTimes[slot] = time;
+        mValues[slot] = value;
+        mWindowSum += value;
+        mWindowSquares += (long) value * value;
+        counts[value]++;
+        mTail++;
+        int min = mWindowMin;
+        int max = mWindowMax;
+        if (mTail - mHead == 1) {
+            min = max = value;
+        } else {
+            // value is counted, so the steps end at it at the latest
+            if (value < min) {
+                min = value;
+            } else {
+                while (counts[min] == 0) min++;
+            }
+            if (value > max) {
+                max = value;
+            } else {
+                while (counts[max] == 0) max--;
+            }
+        }
+        mWindowMin = min;
+        mWindowMax = max;
+        mTime = time;
+
+        // even again, ordered after the updates
+        mSequence.lazySet(sequence + 2);
+    }
+
+    /**
+     * Copy the statistics as of one reading; never blocks the writer.
+     *
+     * @return into
+     */
+    public Snapshot snapshot(Snapshot into) {
+        while (true) {
+            int sequence = mSequence.get();
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            long count = mCount;
+            int min = mMin;
+            int max = mMax;
+            double mean = mMean;
+            double m2 = mM2;
+            long windowCount = mTail - mHead;
+            long windowSum = mWindowSum;
+            long windowSquares = mWindowSquares;
+            int windowMin = mWindowMin;
+            int windowMax = mWindowMax;
+            long time = mTime;
+            // the volatile store keeps the reads above from moving after
+            // the check below
+            mFence = sequence;
+            if (mSequence.get() != sequence) continue;
+
+            into.count = count;
+            into.min = min;
+            into.max = max;
+            into.mean = count > 0 ? mean : Double.NaN;
+            into.stdDev = count > 1 ? Math.sqrt(m2 / (count - 1)) : Double.NaN;
+            into.windowCount = windowCount;
+            into.windowMin = windowMin;
+            into.windowMax = windowMax;
+            into.windowMean = windowCount > 0 ? (double) windowSum / windowCount : Double.NaN;
+            // exact in longs, so no cancellation in the difference
+            into.windowStdDev = windowCount > 1
+                    ? Math.sqrt((double) (windowCount * windowSquares - windowSum * windowSum)
+                            / (windowCount * (windowCount - 1)))
+                    : Double.NaN;
+            into.time = time;
+            return into;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A source of raw scale bytes: an RFCOMM socket, a TCP socket of a
+ * serial-to-Ethernet adapter, or a replay of recorded data.
+ *
+ * One instance serves exactly one connection attempt: open() it once,
+ * read the stream, close() it. close() may be called from any thread and
+ * must make a blocking open() or read() fail promptly.
+ */
+public interface ScaleTransport {
+
+    /**
+     * Connect, blocking until the stream is ready.
+     */
+    InputStream open() throws IOException;
+
+    void close();
+
+    /**
+     * Creates a fresh transport for every connection attempt to one device,
+     * so that closing a stale attempt can never touch a newer one.
+     */
+    interface Factory {
+
+        /**
+         * Unique key of the device, the MAC address for Bluetooth.
+         */
+        String getAddress();
+
+        String getName();
+
+        ScaleTransport create();
+    }
+}
@@ -0,0 +1,295 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Keeps the recordings in a directory within bounds. Raw sessions older
+ * than the raw retention are rolled up into a RollupFile per second and
+ * one per minute, named like the session with SECONDS_SUFFIX and
+ * MINUTES_SUFFIX, and then deleted; rollups are deleted in turn once
+ * they are older than their own retention. Storage is then at most what
+ * the devices record in the raw retention, plus four to six bytes per
+ * device and second for the second retention and per minute for the
+ * minute retention.
+ *
+ * A file counts as old by the time of its last data: the modification
+ * time of a session, the end of the last bucket of a rollup. The session
+ * still being recorded is never touched, so the recorder should move to
+ * a new file now and then.
+ *
+ * compact() runs on the caller's thread and keeps to the duty cycle,
+ * sleeping in between slices of work, so it never takes more than that
+ * share of a core from live recording; run it on a low priority thread.
+ * A rollup is written completely before its session is deleted, a crash
+ * in between leaves both and the next run just deletes the session.
+ *
+ * A session that cannot be rolled up is renamed to BAD_SUFFIX rather than
+ * tried again on every run, and deleted once it is older than the second
+ * retention; a rollup that cannot be read ages by its modification time.
+ * Damaged files thus stay for a while for inspection, but not for ever.
+ */
+public class SessionCompactor {
+
+    public static final String RAW_SUFFIX = ".rec";
+    public static final String SECONDS_SUFFIX = ".sec";
+    public static final String MINUTES_SUFFIX = ".min";
+    public static final String BAD_SUFFIX = ".bad";
+
+    static final long SECOND = 1000;
+    static final long MINUTE = 60 * SECOND;
+
+    // readings rolled up between checks of the duty cycle
+    private static final int SLICE = 16 * 1024;
+    private static final long MIN_SLEEP = 2 * 1000 * 1000;
+
+    /**
+     * Told about every change compact() makes, on its thread.
+     */
+    public interface Listener {
+        /**
+         * The rollups of the session were written, it is deleted next.
+         */
+        void onRolledUp(File session, File seconds, File minutes);
+
+        void onDeleted(File file);
+    }
+
+    private final long mRawRetention;
+    private final long mSecondRetention;
+    private final long mMinuteRetention;
+    private double mDutyCycle = 0.25;
+    private Listener mListener;
+
+    private long mSliceStart;
+    // nanoseconds of sleep due
+    private long mOwed;
+    private int mRolledUp;
+    private int mDeleted;
+    private long mFreed;
+    private long mSleptNanos;
+    private IOException mError;
+
+    /**
+     * @param rawRetention    milliseconds raw sessions are kept
+     * @param secondRetention milliseconds per-second rollups are kept
+     * @param minuteRetention milliseconds per-minute rollups are kept, 0
+     *                        for ever
+     */
+    public SessionCompactor(long rawRetention, long secondRetention, long minuteRetention) {
+        mRawRetention = rawRetention;
+        mSecondRetention = secondRetention;
+        mMinuteRetention = minuteRetention;
+    }
+
+    /**
+     * Share of the time compact() works rather than sleeps, 1 for flat out.
+     */
+    public void setDutyCycle(double dutyCycle) {
+        mDutyCycle = Math.max(0.01, Math.min(1, dutyCycle));
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Roll up and delete what has aged out of the directory.
+     *
+     * @param active the session being recorded, or null
+     * @param now    the current time
+     * @throws InterruptedException if interrupted while sleeping; what was
+     *         done so far stays done
+     */
+    public void compact(File dir, File active, long now) throws InterruptedException {
+        mRolledUp = 0;
+        mDeleted = 0;
+        mFreed = 0;
+        mSleptNanos = 0;
+        mError = null;
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        // oldest first, the names start with the time
+        Arrays.sort(files);
+        mSliceStart = System.nanoTime();
+        mOwed = 0;
+        for (File file : files) {
+            if (file.equals(active)) continue;
+            String name = file.getName();
+            try {
+                if (name.endsWith(RAW_SUFFIX)) {
+                    if (file.lastModified() < now - mRawRetention) rollUp(file);
+                } else if (name.endsWith(SECONDS_SUFFIX)) {
+                    if (endTime(file) < now - mSecondRetention) delete(file);
+                } else if (name.endsWith(MINUTES_SUFFIX)) {
+                    if (mMinuteRetention > 0 && endTime(file) < now - mMinuteRetention) delete(file);
+                } else if (name.endsWith(BAD_SUFFIX)) {
+                    if (file.lastModified() < now - mSecondRetention) delete(file);
+                } else if (name.endsWith(".tmp") && file.lastModified() < now - MINUTE) {
+                    // left over by a crash while writing a rollup
+                    delete(file);
+                }
+            } catch (IOException e) {
+                // the others go on
+                mError = e;
+            } catch (RuntimeException e) {
+                mError = new IOException(name + ": " + e);
+                mError.initCause(e);
+            }
+            throttle();
+        }
+    }
+
+    /**
+     * Sessions rolled up by the last compact().
+     */
+    public int getRolledUp() {
+        return mRolledUp;
+    }
+
+    /**
+     * Files deleted by the last compact(), sessions included.
+     */
+    public int getDeleted() {
+        return mDeleted;
+    }
+
+    /**
+     * Bytes freed by the last compact(), net of the rollups written.
+     */
+    public long getFreed() {
+        return mFreed;
+    }
+
+    /**
+     * Milliseconds the last compact() slept to keep to the duty cycle.
+     */
+    public long getSlept() {
+        return mSleptNanos / 1000000;
+    }
+
+    /**
+     * The last file the last compact() could not handle, or null.
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * The end of the last bucket of a rollup, or its modification time if
+     * it cannot be read.
+     */
+    private static long endTime(File rollup) {
+        try {
+            return RollupFile.readEndTime(rollup);
+        } catch (IOException e) {
+            return rollup.lastModified();
+        } catch (RuntimeException e) {
+            return rollup.lastModified();
+        }
+    }
+
+    private void rollUp(File session) throws IOException, InterruptedException {
+        String name = session.getName();
+        String base = name.substring(0, name.length() - RAW_SUFFIX.length());
+        File seconds = new File(session.getParentFile(), base + SECONDS_SUFFIX);
+        File minutes = new File(session.getParentFile(), base + MINUTES_SUFFIX);
+        if (!seconds.exists() || !minutes.exists()) {
+            if (session.length() < SessionRecorder.HEADER_SIZE) {
+                // killed before anything was written
+                delete(session);
+                return;
+            }
+            RollupFile.Builder perSecond = new RollupFile.Builder(SECOND);
+            RollupFile.Builder perMinute = new RollupFile.Builder(MINUTE);
+            try {
+                readInto(session, perSecond, perMinute);
+            } catch (IOException e) {
+                quarantine(session);
+                throw e;
+            } catch (RuntimeException e) {
+                // a damaged block, decoded past its end
+                quarantine(session);
+                IOException error = new IOException("cannot roll up " + session + ": " + e);
+                error.initCause(e);
+                throw error;
+            }
+            perSecond.write(seconds);
+            perMinute.write(minutes);
+            mFreed -= seconds.length() + minutes.length();
+        }
+        if (mListener != null) mListener.onRolledUp(session, seconds, minutes);
+        delete(session);
+        mRolledUp++;
+    }
+
+    /**
+     * Add every reading of the session to the rollups.
+     */
+    private void readInto(File session, RollupFile.Builder perSecond, RollupFile.Builder perMinute)
+            throws IOException, InterruptedException {
+        SessionFile file = SessionFile.open(session);
+        for (int device = 0; device < file.getDeviceCount(); device++) {
+            String address = file.getAddress(device);
+            if (address == null) continue;
+            perSecond.beginDevice(address);
+            perMinute.beginDevice(address);
+            SessionFile.Cursor cursor = file.cursor(device);
+            boolean hasPrevious = false;
+            long previous = 0;
+            int slice = 0;
+            while (cursor.next()) {
+                long time = cursor.getTime();
+                int value = cursor.getValue();
+                // the same time above as SessionFile.summarize()
+                long above = value > BlockEncoder.ABOVE_THRESHOLD && hasPrevious ? BlockEncoder.hold(previous, time) : 0;
+                perSecond.add(time, value, above);
+                perMinute.add(time, value, above);
+                previous = time;
+                hasPrevious = true;
+                if (++slice == SLICE) {
+                    slice = 0;
+                    throttle();
+                }
+            }
+        }
+    }
+
+    /**
+     * Move a session that cannot be rolled up out of the way, under
+     * BAD_SUFFIX; it is gone as a session either way.
+     */
+    private void quarantine(File session) {
+        String name = session.getName();
+        File bad = new File(session.getParentFile(), name.substring(0, name.length() - RAW_SUFFIX.length()) + BAD_SUFFIX);
+        if (!session.renameTo(bad) && !session.delete()) return;
+        if (mListener != null) mListener.onDeleted(session);
+    }
+
+    private void delete(File file) throws IOException {
+        long length = file.length();
+        if (!file.delete()) throw new IOException("could not delete " + file);
+        mDeleted++;
+        mFreed += length;
+        if (mListener != null) mListener.onDeleted(file);
+    }
+
+    /**
+     * Sleep long enough for the work since the last call to be the duty
+     * cycle's share. Short sleeps are saved up, sleep() does not do less
+     * than a millisecond; oversleeping is credited.
+     */
+    private void throttle() throws InterruptedException {
+        long now = System.nanoTime();
+        mOwed += (long) ((now - mSliceStart) * (1 - mDutyCycle) / mDutyCycle);
+        if (mOwed >= MIN_SLEEP) {
+            Thread.sleep(mOwed / 1000000, (int) (mOwed % 1000000));
+            long slept = System.nanoTime() - now;
+            mSleptNanos += slept;
+            mOwed -= slept;
+            now += slept;
+        }
+        mSliceStart = now;
+    }
+}
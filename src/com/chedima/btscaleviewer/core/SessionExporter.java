@@ -0,0 +1,190 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams the readings of a SessionFile to CSV or JSON lines, in time
+ * order across devices, in constant memory: one cursor per device and one
+ * output buffer, whatever the length of the session. Rows are formatted
+ * straight into the buffer, nothing is allocated per reading.
+ * <pre>
+ *   time,device,value
+ *   1400000000000,00:11:22:33:44:55,52
+ *
+ *   {"time":1400000000000,"device":"00:11:22:33:44:55","value":52}
+ * </pre>
+ * Times are milliseconds since the epoch.
+ */
+public class SessionExporter {
+
+    public enum Format {
+        CSV, JSONL
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // longest row apart from the device: JSON punctuation and two numbers
+    private static final int MAX_ROW_SIZE = 64;
+
+    private final SessionFile mSession;
+    private Format mFormat = Format.CSV;
+    private long mFrom = Long.MIN_VALUE;
+    private long mTo = Long.MAX_VALUE;
+    private int mEvery = 1;
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mLength;
+    private OutputStream mOut;
+
+    public SessionExporter(SessionFile session) {
+        mSession = session;
+    }
+
+    public SessionExporter format(Format format) {
+        mFormat = format;
+        return this;
+    }
+
+    /**
+     * Export only readings with from <= time < to.
+     */
+    public SessionExporter range(long from, long to) {
+        mFrom = from;
+        mTo = to;
+        return this;
+    }
+
+    /**
+     * Export only every n-th reading of every device in the range.
+     */
+    public SessionExporter every(int n) {
+        if (n < 1) throw new IllegalArgumentException("every " + n);
+        mEvery = n;
+        return this;
+    }
+
+    /**
+     * Write the readings to out, which is flushed but not closed.
+     *
+     * @return the number of rows written
+     */
+    public long export(OutputStream out) throws IOException {
+        mOut = out;
+        mLength = 0;
+        int devices = mSession.getDeviceCount();
+        SessionFile.Cursor[] cursors = new SessionFile.Cursor[devices];
+        boolean[] more = new boolean[devices];
+        int[] skipped = new int[devices];
+        byte[][] names = new byte[devices][];
+        for (int d = 0; d < devices; d++) {
+            cursors[d] = mSession.cursor(d);
+            cursors[d].seek(mFrom);
+            more[d] = cursors[d].next() && cursors[d].getTime() < mTo;
+            names[d] = quote(mSession.getAddress(d));
+        }
+
+        if (mFormat == Format.CSV) append("time,device,value\n");
+        long rows = 0;
+        while (true) {
+            // the device with the earliest pending reading; there are few
+            int next = -1;
+            for (int d = 0; d < devices; d++) {
+                if (more[d] && (next < 0 || cursors[d].getTime() < cursors[next].getTime())) next = d;
+            }
+            if (next < 0) break;
+            SessionFile.Cursor cursor = cursors[next];
+            if (skipped[next] == 0) {
+                writeRow(cursor.getTime(), names[next], cursor.getValue());
+                rows++;
+            }
+            if (++skipped[next] == mEvery) skipped[next] = 0;
+            more[next] = cursor.next() && cursor.getTime() < mTo;
+        }
+        flush();
+        out.flush();
+        mOut = null;
+        return rows;
+    }
+
+    private void writeRow(long time, byte[] device, int value) throws IOException {
+        if (mLength + MAX_ROW_SIZE + device.length > mBuffer.length) flush();
+        if (mFormat == Format.CSV) {
+            appendNumber(time);
+            mBuffer[mLength++] = ',';
+            System.arraycopy(device, 0, mBuffer, mLength, device.length);
+            mLength += device.length;
+            mBuffer[mLength++] = ',';
+            appendNumber(value);
+            mBuffer[mLength++] = '\n';
+        } else {
+            append("{\"time\":");
+            appendNumber(time);
+            append(",\"device\":");
+            System.arraycopy(device, 0, mBuffer, mLength, device.length);
+            mLength += device.length;
+            append(",\"value\":");
+            appendNumber(value);
+            mBuffer[mLength++] = '}';
+            mBuffer[mLength++] = '\n';
+        }
+    }
+
+    /**
+     * The device as a CSV field or JSON string, encoded once per export.
+     */
+    private byte[] quote(String address) {
+        String s = address != null ? address : "";
+        if (mFormat == Format.CSV) {
+            if (s.indexOf(',') >= 0 || s.indexOf('"') >= 0 || s.indexOf('\n') >= 0) {
+                s = '"' + s.replace("\"", "\"\"") + '"';
+            }
+        } else {
+            StringBuilder json = new StringBuilder("\"");
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    json.append('\\').append(c);
+                } else if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int) c));
+                } else {
+                    json.append(c);
+                }
+            }
+            s = json.append('"').toString();
+        }
+        return SessionRecorder.utf8(s);
+    }
+
+    private void append(String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            mBuffer[mLength++] = (byte) ascii.charAt(i);
+        }
+    }
+
+    private void appendNumber(long n) {
+        if (n < 0) {
+            if (n == Long.MIN_VALUE) {
+                append(Long.toString(n));
+                return;
+            }
+            mBuffer[mLength++] = '-';
+            n = -n;
+        }
+        int start = mLength;
+        do {
+            mBuffer[mLength++] = (byte) ('0' + (int) (n % 10));
+            n /= 10;
+        } while (n != 0);
+        // digits came out backwards
+        for (int i = start, j = mLength - 1; i < j; i++, j--) {
+            byte b = mBuffer[i];
+            mBuffer[i] = mBuffer[j];
+            mBuffer[j] = b;
+        }
+    }
+
+    private void flush() throws IOException {
+        mOut.write(mBuffer, 0, mLength);
+        mLength = 0;
+    }
+}
@@ -0,0 +1,451 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Random access to a file written by SessionRecorder. The file is mapped
+ * into memory, so only the blocks actually visited are read from disk.
+ *
+ * The block index comes from the footer the recorder writes on close;
+ * without one, after a crash or while the file is still being recorded,
+ * it is rebuilt by hopping from block header to block header, which
+ * touches a few bytes per block. Per device the index keeps the first and
+ * last time of every data block, so a Cursor seeks with a binary search
+ * and then decodes within one block. It also keeps the block summaries,
+ * so summarize() answers range queries from the index and only decodes
+ * the two blocks at the edges of the range.
+ */
+public class SessionFile {
+
+    private final ByteBuffer mMap;
+    private final long mStartTime;
+    private final List<String> mAddresses = new ArrayList<String>();
+    private final List<DeviceIndex> mIndex = new ArrayList<DeviceIndex>();
+
+    /**
+     * The data blocks of one device in file order, which is time order.
+     */
+    private static class DeviceIndex {
+        // offset of the KIND_HISTOGRAM block, -1 without
+        int histogram = -1;
+        // offsets of the KIND_SPIKE blocks
+        int spikeCount;
+        int[] spikes = new int[4];
+        int count;
+        int[] offsets = new int[16];
+        long[] firstTimes = new long[16];
+        long[] lastTimes = new long[16];
+        int[] counts = new int[16];
+        long[] sums = new long[16];
+        int[] mins = new int[16];
+        int[] maxs = new int[16];
+        int[] timesAbove = new int[16];
+
+        /**
+         * Add the block at offset, described by the header or index entry
+         * at pos.
+         */
+        void add(int offset, ByteBuffer buffer, int pos) {
+            if (count == offsets.length) {
+                offsets = grow(offsets);
+                firstTimes = grow(firstTimes);
+                lastTimes = grow(lastTimes);
+                counts = grow(counts);
+                sums = grow(sums);
+                mins = grow(mins);
+                maxs = grow(maxs);
+                timesAbove = grow(timesAbove);
+            }
+            offsets[count] = offset;
+            firstTimes[count] = BlockDecoder.getFirstTime(buffer, pos);
+            lastTimes[count] = BlockDecoder.getLastTime(buffer, pos);
+            counts[count] = BlockDecoder.getCount(buffer, pos);
+            sums[count] = BlockDecoder.getSum(buffer, pos);
+            mins[count] = BlockDecoder.getMin(buffer, pos);
+            maxs[count] = BlockDecoder.getMax(buffer, pos);
+            timesAbove[count] = BlockDecoder.getTimeAbove(buffer, pos);
+            count++;
+        }
+
+        /**
+         * The last block starting at or before time, or 0.
+         */
+        int find(long time) {
+            int low = 0, high = count - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (firstTimes[mid] <= time) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Map the file and load or rebuild its index.
+     *
+     * @throws IOException if it is not a recorded session
+     */
+    public static SessionFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) throw new IOException("session too large to map: " + file);
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            // the mapping stays valid after the channel is closed
+            return new SessionFile(map);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @param buffer a whole recorded session, big-endian
+     */
+    public SessionFile(ByteBuffer buffer) throws IOException {
+        mMap = buffer;
+        if (buffer.limit() < SessionRecorder.HEADER_SIZE || buffer.getInt(0) != SessionRecorder.MAGIC) {
+            throw new IOException("not a recorded session");
+        }
+        mStartTime = buffer.getLong(4);
+        if (!readIndex()) scan();
+    }
+
+    /**
+     * When recording started, milliseconds since the epoch.
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * Number of device ids, 0 to getDeviceCount() - 1.
+     */
+    public int getDeviceCount() {
+        return mAddresses.size();
+    }
+
+    public String getAddress(int device) {
+        return mAddresses.get(device);
+    }
+
+    /**
+     * The id of the device, or -1 if it is not in the session.
+     */
+    public int getDevice(String address) {
+        return mAddresses.indexOf(address);
+    }
+
+    /**
+     * Number of data blocks of the device.
+     */
+    public int getBlockCount(int device) {
+        return mIndex.get(device).count;
+    }
+
+    /**
+     * Time of the first reading in a data block of the device.
+     */
+    public long getBlockFirstTime(int device, int block) {
+        return mIndex.get(device).firstTimes[block];
+    }
+
+    public long getBlockLastTime(int device, int block) {
+        return mIndex.get(device).lastTimes[block];
+    }
+
+    /**
+     * Time of the first reading of the device, Long.MAX_VALUE if it has none.
+     */
+    public long getFirstTime(int device) {
+        DeviceIndex index = mIndex.get(device);
+        return index.count > 0 ? index.firstTimes[0] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Time of the last reading of the device, Long.MIN_VALUE if it has none.
+     */
+    public long getLastTime(int device) {
+        DeviceIndex index = mIndex.get(device);
+        return index.count > 0 ? index.lastTimes[index.count - 1] : Long.MIN_VALUE;
+    }
+
+    /**
+     * Aggregate the readings of a device with from <= time < to. Blocks
+     * entirely in the range count with their summaries, only the blocks
+     * at the edges are decoded.
+     *
+     * @param result reset and filled in
+     * @return result
+     */
+    public Summary summarize(int device, long from, long to, Summary result) {
+        result.reset();
+        DeviceIndex index = mIndex.get(device);
+        if (index.count == 0) return result;
+        BlockDecoder decoder = null;
+        for (int block = index.find(from); block < index.count && index.firstTimes[block] < to; block++) {
+            if (index.lastTimes[block] < from) continue;
+            if (index.firstTimes[block] >= from && index.lastTimes[block] < to) {
+                result.add(index.counts[block], index.sums[block], index.mins[block], index.maxs[block],
+                        index.timesAbove[block]);
+                continue;
+            }
+
+            if (decoder == null) decoder = new BlockDecoder();
+            decoder.open(mMap, index.offsets[block]);
+            // the first reading stands for the time since the end of the block before
+            boolean hasPrevious = block > 0;
+            long previous = hasPrevious ? index.lastTimes[block - 1] : 0;
+            while (decoder.next()) {
+                long time = decoder.getTime();
+                if (time >= to) break;
+                if (time >= from) {
+                    int value = decoder.getValue();
+                    boolean above = value > BlockEncoder.ABOVE_THRESHOLD && hasPrevious;
+                    result.add(value, above ? BlockEncoder.hold(previous, time) : 0);
+                }
+                previous = time;
+                hasPrevious = true;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add how often each reading of the device occurred to result, so
+     * sessions and devices can be merged. Comes from the histogram block
+     * written on close, a file without one is decoded completely.
+     *
+     * @return result
+     */
+    public Histogram histogram(int device, Histogram result) {
+        DeviceIndex index = mIndex.get(device);
+        if (index.histogram >= 0) {
+            int payload = index.histogram + BlockEncoder.HEADER_SIZE;
+            Histogram histogram = new Histogram();
+            if (histogram.addEncoded(mMap, payload, payload + BlockDecoder.getPayloadLength(mMap, index.histogram))) {
+                result.add(histogram);
+                return result;
+            }
+        }
+        Cursor cursor = cursor(device);
+        while (cursor.next()) {
+            result.add(cursor.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * The number of spikes found in the readings of a device while it
+     * was recorded, in time order.
+     */
+    public int getSpikeCount(int device) {
+        return mIndex.get(device).spikeCount;
+    }
+
+    public long getSpikeTime(int device, int spike) {
+        return BlockDecoder.getFirstTime(mMap, mIndex.get(device).spikes[spike]);
+    }
+
+    /**
+     * The first reading of the spike.
+     */
+    public int getSpikeValue(int device, int spike) {
+        return mMap.getShort(mIndex.get(device).spikes[spike] + BlockEncoder.HEADER_SIZE) & 0xFFFF;
+    }
+
+    /**
+     * The median of the readings before the spike.
+     */
+    public int getSpikeMedian(int device, int spike) {
+        return mMap.getShort(mIndex.get(device).spikes[spike] + BlockEncoder.HEADER_SIZE + 2) & 0xFFFF;
+    }
+
+    /**
+     * A cursor over the readings of one device, positioned before the
+     * first one.
+     */
+    public Cursor cursor(int device) {
+        DeviceIndex index = mIndex.get(device);
+        return new Cursor(index, 0, index.count);
+    }
+
+    /**
+     * A cursor over the readings in the data blocks fromBlock to toBlock,
+     * exclusive, of one device, so separate threads can go through parts
+     * of it.
+     */
+    public Cursor cursor(int device, int fromBlock, int toBlock) {
+        return new Cursor(mIndex.get(device), fromBlock, toBlock);
+    }
+
+    /**
+     * Iterates over the readings of one device, in time order. Seeking and
+     * moving allocate nothing, so one cursor can follow a scrubbing finger.
+     */
+    public class Cursor {
+        private final DeviceIndex mmIndex;
+        private final BlockDecoder mmDecoder = new BlockDecoder();
+        private final int mmFirst;
+        private final int mmEnd;
+        private int mmBlock;
+        // seek() decoded the reading next() has to return
+        private boolean mmPending;
+
+        Cursor(DeviceIndex index, int first, int end) {
+            mmIndex = index;
+            mmFirst = first;
+            mmEnd = end;
+            mmBlock = first - 1;
+        }
+
+        /**
+         * Position the cursor so that next() returns the first reading at
+         * or after the time.
+         */
+        public void seek(long time) {
+            mmPending = false;
+            if (mmEnd <= mmFirst) return;
+            open(Math.max(mmFirst, Math.min(mmEnd - 1, mmIndex.find(time))));
+            while (mmDecoder.next()) {
+                if (mmDecoder.getTime() >= time) {
+                    mmPending = true;
+                    return;
+                }
+            }
+            // the block ended before the time, next() goes on with the next one
+        }
+
+        /**
+         * Advance to the next reading.
+         *
+         * @return false after the last one
+         */
+        public boolean next() {
+            if (mmPending) {
+                mmPending = false;
+                return true;
+            }
+            while (!mmDecoder.next()) {
+                if (mmBlock + 1 >= mmEnd) return false;
+                open(mmBlock + 1);
+            }
+            return true;
+        }
+
+        public long getTime() {
+            return mmDecoder.getTime();
+        }
+
+        public int getValue() {
+            return mmDecoder.getValue();
+        }
+
+        private void open(int block) {
+            mmBlock = block;
+            mmDecoder.open(mMap, mmIndex.offsets[block]);
+        }
+    }
+
+    private DeviceIndex device(int device) {
+        while (mIndex.size() <= device) {
+            mIndex.add(new DeviceIndex());
+            mAddresses.add(null);
+        }
+        return mIndex.get(device);
+    }
+
+    /**
+     * Add the block at offset, described by the header or index entry at
+     * pos.
+     */
+    private void add(int offset, ByteBuffer buffer, int pos) throws IOException {
+        int kind = BlockDecoder.getKind(buffer, pos);
+        int device = BlockDecoder.getDevice(buffer, pos);
+        if (kind == BlockEncoder.KIND_DEVICE) {
+            device(device);
+            mAddresses.set(device, utf8(mMap, offset + BlockEncoder.HEADER_SIZE, BlockDecoder.getPayloadLength(mMap, offset)));
+        } else if (kind == BlockEncoder.KIND_DATA) {
+            device(device).add(offset, buffer, pos);
+        } else if (kind == BlockEncoder.KIND_HISTOGRAM) {
+            device(device).histogram = offset;
+        } else if (kind == BlockEncoder.KIND_SPIKE && BlockDecoder.getPayloadLength(mMap, offset) == 4) {
+            DeviceIndex index = device(device);
+            if (index.spikeCount == index.spikes.length) index.spikes = grow(index.spikes);
+            index.spikes[index.spikeCount++] = offset;
+        }
+    }
+
+    /**
+     * Load the index from the footer.
+     *
+     * @return false if there is no usable footer
+     */
+    private boolean readIndex() throws IOException {
+        ByteBuffer map = mMap;
+        int trailer = map.limit() - SessionRecorder.TRAILER_SIZE;
+        if (trailer < SessionRecorder.HEADER_SIZE || map.getInt(trailer) != SessionRecorder.TRAILER_MAGIC) {
+            return false;
+        }
+        int index = map.getInt(trailer + 4);
+        if (!BlockDecoder.isBlock(map, index) || BlockDecoder.getKind(map, index) != BlockEncoder.KIND_INDEX
+                || index + BlockDecoder.getSize(map, index) != trailer) {
+            return false;
+        }
+        // everything but the device declarations comes from the entries,
+        // the data blocks themselves are not touched
+        int entries = BlockDecoder.getCount(map, index);
+        for (int i = 0, entry = index + BlockEncoder.HEADER_SIZE; i < entries; i++, entry += SessionRecorder.INDEX_ENTRY_SIZE) {
+            int offset = map.getInt(entry);
+            if (offset < SessionRecorder.HEADER_SIZE || offset + BlockEncoder.HEADER_SIZE > index) return false;
+            add(offset, map, entry);
+        }
+        return true;
+    }
+
+    /**
+     * Rebuild the index from the block headers, up to the first incomplete
+     * block.
+     */
+    private void scan() throws IOException {
+        mAddresses.clear();
+        mIndex.clear();
+        ByteBuffer map = mMap;
+        int offset = SessionRecorder.HEADER_SIZE;
+        while (BlockDecoder.isBlock(map, offset)) {
+            add(offset, map, offset);
+            offset += BlockDecoder.getSize(map, offset);
+        }
+    }
+
+    private static String utf8(ByteBuffer buffer, int offset, int length) throws UnsupportedEncodingException {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, "UTF-8");
+    }
+
+    private static int[] grow(int[] a) {
+        int[] grown = new int[a.length * 2];
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+
+    private static long[] grow(long[] a) {
+        long[] grown = new long[a.length * 2];
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+}
@@ -0,0 +1,105 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a file written by SessionRecorder from a stream, block by block.
+ * The readings of one device come in time order, those of different
+ * devices block-wise interleaved. Device declarations are taken care of
+ * on the way; a block cut short by a crash ends the session quietly.
+ */
+public class SessionReader {
+
+    private final DataInputStream mIn;
+    private final long mStartTime;
+    private final List<String> mAddresses = new ArrayList<String>();
+    private final BlockDecoder mDecoder = new BlockDecoder();
+    private ByteBuffer mBlock = ByteBuffer.allocate(BlockEncoder.HEADER_SIZE + SessionRecorder.MAX_PAYLOAD);
+    private int mDevice;
+
+    /**
+     * @throws IOException if the stream is not a recorded session
+     */
+    public SessionReader(InputStream in) throws IOException {
+        mIn = new DataInputStream(in);
+        try {
+            if (mIn.readInt() != SessionRecorder.MAGIC) throw new IOException("not a recorded session");
+            mStartTime = mIn.readLong();
+        } catch (EOFException e) {
+            throw new IOException("not a recorded session");
+        }
+    }
+
+    /**
+     * When recording started, milliseconds since the epoch.
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * Advance to the next reading.
+     *
+     * @return false at the end of the session
+     */
+    public boolean next() throws IOException {
+        while (!mDecoder.next()) {
+            if (!readBlock()) return false;
+        }
+        return true;
+    }
+
+    public long getTime() {
+        return mDecoder.getTime();
+    }
+
+    public int getDeviceId() {
+        return mDevice;
+    }
+
+    public String getAddress() {
+        return mDevice < mAddresses.size() ? mAddresses.get(mDevice) : null;
+    }
+
+    public int getValue() {
+        return mDecoder.getValue();
+    }
+
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private boolean readBlock() throws IOException {
+        try {
+            byte[] block = mBlock.array();
+            mIn.readFully(block, 0, BlockEncoder.HEADER_SIZE);
+            if (mBlock.getInt(0) != BlockEncoder.MAGIC) throw new IOException("corrupt block");
+            int length = BlockDecoder.getPayloadLength(mBlock, 0);
+            if (length < 0) throw new IOException("corrupt block");
+            if (BlockEncoder.HEADER_SIZE + length > block.length) {
+                ByteBuffer bigger = ByteBuffer.allocate(BlockEncoder.HEADER_SIZE + length);
+                bigger.put(block, 0, BlockEncoder.HEADER_SIZE);
+                mBlock = bigger;
+                block = bigger.array();
+            }
+            mIn.readFully(block, BlockEncoder.HEADER_SIZE, length);
+        } catch (EOFException e) {
+            return false;
+        }
+        mDevice = BlockDecoder.getDevice(mBlock, 0);
+        if (BlockDecoder.getKind(mBlock, 0) == BlockEncoder.KIND_DEVICE) {
+            while (mAddresses.size() <= mDevice) mAddresses.add(null);
+            mAddresses.set(mDevice, new String(mBlock.array(), BlockEncoder.HEADER_SIZE,
+                    BlockDecoder.getPayloadLength(mBlock, 0), "UTF-8"));
+        }
+        // a declaration has no readings, next() moves on
+        mDecoder.open(mBlock, 0);
+        return true;
+    }
+}
@@ -0,0 +1,256 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records the decoded readings of all devices into one append-only file.
+ * The file starts with the magic "BSR3" and the time recording started,
+ * 12 bytes; blocks written by BlockEncoder follow, each holding readings
+ * of one device. A device is declared by a KIND_DEVICE block before its
+ * first data block, so devices can join at any point. Spikes are written
+ * as KIND_SPIKE blocks right away, ahead of the block in progress.
+ *
+ * On close() every device gets a KIND_HISTOGRAM block with the histogram
+ * of all its readings, and the file is finished with a KIND_INDEX block
+ * listing every block: an entry is a copy of the block header with the
+ * magic replaced by the offset of the block in the file, so BlockDecoder
+ * reads the times and summaries of entries and headers alike. Last comes an 8-byte
+ * trailer: TRAILER_MAGIC "BSRX" and the offset of the index block. A
+ * file without trailer, after a crash or while it is still being
+ * recorded, is indexed by scanning the block headers instead, see
+ * SessionFile. Offsets are ints, a recording stays well below 2 GB.
+ *
+ * Every device fills a block of its own, which is written out when it is
+ * full, when it spans MAX_BLOCK_MILLIS or on close(). A stable weight
+ * costs one to two bytes per reading instead of the 12 of a plain record.
+ *
+ * Readings arrive on the reader threads and are only encoded there; a
+ * BackgroundFileWriter writes the finished blocks out in batches.
+ */
+public class SessionRecorder extends BackgroundFileWriter {
+
+    static final int MAGIC = 0x42535233;   // "BSR3"
+    public static final int HEADER_SIZE = 12;
+    // readings are clamped to 0..MAX_READING, as by DisplayFilter
+    static final int MAX_READING = 253;
+    static final int INDEX_ENTRY_SIZE = BlockEncoder.HEADER_SIZE;
+    static final int TRAILER_MAGIC = 0x42535258;   // "BSRX"
+    static final int TRAILER_SIZE = 8;
+
+    static final int MAX_PAYLOAD = 4096;
+    // at most this much is lost when the app is killed without closing
+    static final long MAX_BLOCK_MILLIS = 30 * 1000;
+
+    // two buffers of 64 KB hold seconds of 10k readings/s even uncompressed
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Map<String, Device> mDevices = new HashMap<String, Device>();
+    // file offset of the next block, and the index entries of all blocks
+    // so far; guarded by mLock
+    private int mOffset = HEADER_SIZE;
+    private byte[] mIndex = new byte[64 * INDEX_ENTRY_SIZE];
+    private int mIndexLength;
+
+    private static class Device {
+        final int id;
+        final byte[] address;
+        final BlockEncoder encoder = new BlockEncoder(MAX_PAYLOAD);
+        final Histogram histogram = new Histogram();
+        long firstTime;
+        long lastTime;
+        boolean declared;
+
+        Device(int id, byte[] address) {
+            this.id = id;
+            this.address = address;
+        }
+    }
+
+    public SessionRecorder(File file, long startTime) {
+        super(file, BUFFER_SIZE);
+        synchronized (mLock) {
+            putInt(mBuffer, 0, MAGIC);
+            putLong(mBuffer, 4, startTime);
+            mLength = HEADER_SIZE;
+        }
+    }
+
+    /**
+     * The listener to add to the session of a device; every device gets
+     * one id for the whole recording.
+     */
+    public ReadingListener listenerFor(String address) {
+        final Device device;
+        synchronized (mLock) {
+            Device known = mDevices.get(address);
+            if (known == null) {
+                known = new Device(mDevices.size(), utf8(address));
+                mDevices.put(address, known);
+            }
+            device = known;
+        }
+        return new ReadingListener() {
+            public void onReading(long time, int value) {
+                record(device, time, value);
+            }
+        };
+    }
+
+    /**
+     * Record a spike of a device listenerFor() was called for; ignored
+     * for any other.
+     */
+    public void recordSpike(String address, long time, int value, int median) {
+        synchronized (mLock) {
+            Device device = mDevices.get(address);
+            if (device == null) return;
+            int size = BlockEncoder.SPIKE_SIZE;
+            if (!device.declared) size += BlockEncoder.declarationSize(device.address);
+            if (!reserve(size)) return;
+            int pos = declare(device, mLength, time);
+            int end = BlockEncoder.writeSpike(mBuffer, pos, device.id, time, value, median);
+            index(pos, end);
+            mLength = end;
+            appended();
+        }
+    }
+
+    /**
+     * Write out the blocks in progress and the histograms, then close the
+     * file.
+     */
+    @Override
+    public void close() {
+        synchronized (mLock) {
+            for (Device device : mDevices.values()) {
+                flush(device);
+            }
+            for (Device device : mDevices.values()) {
+                writeHistogram(device);
+            }
+            // under the same lock, so no reading slips in between
+            super.close();
+        }
+    }
+
+    private void record(Device device, long time, int value) {
+        // a bad reading must not throw on the reader thread and end the session
+        value = Math.max(0, Math.min(MAX_READING, value));
+        synchronized (mLock) {
+            // in flight while the recording was rotated, or after close()
+            if (!accepting()) return;
+            BlockEncoder encoder = device.encoder;
+            if (encoder.getCount() > 0 && time - encoder.getFirstTime() > MAX_BLOCK_MILLIS) {
+                flush(device);
+            }
+            if (!encoder.add(time, value)) {
+                flush(device);
+                encoder.add(time, value);
+            }
+            if (device.histogram.getCount() == 0) device.firstTime = time;
+            device.lastTime = time;
+            device.histogram.add(value);
+        }
+    }
+
+    /**
+     * Move the block in progress into the buffer, declaring the device
+     * first if needed. A block that does not fit is dropped.
+     */
+    private void flush(Device device) {
+        BlockEncoder encoder = device.encoder;
+        if (encoder.getCount() == 0) return;
+        int size = encoder.getSize();
+        if (!device.declared) size += BlockEncoder.declarationSize(device.address);
+        if (!reserve(size)) {
+            encoder.reset();
+            return;
+        }
+        int pos = declare(device, mLength, encoder.getFirstTime());
+        int end = encoder.writeTo(mBuffer, pos, device.id);
+        index(pos, end);
+        mLength = end;
+        appended();
+    }
+
+    /**
+     * Write the declaration of the device at pos in the buffer unless it
+     * was declared before; the space must be reserved.
+     *
+     * @return the position after it
+     */
+    private int declare(Device device, int pos, long time) {
+        if (device.declared) return pos;
+        int end = BlockEncoder.writeDeclaration(mBuffer, pos, device.id, device.address, time);
+        index(pos, end);
+        device.declared = true;
+        return end;
+    }
+
+    /**
+     * Move the histogram of a device into the buffer, if it was declared;
+     * readings dropped with their block are counted all the same.
+     */
+    private void writeHistogram(Device device) {
+        if (!device.declared || device.histogram.getCount() == 0) return;
+        if (!reserve(BlockEncoder.HEADER_SIZE + Histogram.MAX_ENCODED_SIZE)) return;
+        int pos = mLength;
+        int end = BlockEncoder.writeHistogram(mBuffer, pos, device.id, device.histogram, device.firstTime,
+                device.lastTime);
+        index(pos, end);
+        mLength = end;
+        appended();
+    }
+
+    /**
+     * Add the block just written to the buffer between pos and end to the
+     * index.
+     */
+    private void index(int pos, int end) {
+        if (mIndexLength + INDEX_ENTRY_SIZE > mIndex.length) {
+            byte[] grown = new byte[mIndex.length * 2];
+            System.arraycopy(mIndex, 0, grown, 0, mIndexLength);
+            mIndex = grown;
+        }
+        byte[] block = mBuffer;
+        byte[] index = mIndex;
+        int entry = mIndexLength;
+        System.arraycopy(block, pos, index, entry, INDEX_ENTRY_SIZE);
+        putInt(index, entry, mOffset);
+        mIndexLength += INDEX_ENTRY_SIZE;
+        mOffset += end - pos;
+    }
+
+    @Override
+    protected void writeTrailer(OutputStream out) throws IOException {
+        byte[] index;
+        int length;
+        int offset;
+        synchronized (mLock) {
+            index = mIndex;
+            length = mIndexLength;
+            offset = mOffset;
+        }
+        byte[] header = new byte[BlockEncoder.HEADER_SIZE];
+        BlockEncoder.writeHeader(header, 0, BlockEncoder.KIND_INDEX, 0, length / INDEX_ENTRY_SIZE, length, 0, 0);
+        out.write(header);
+        out.write(index, 0, length);
+        byte[] trailer = new byte[TRAILER_SIZE];
+        putInt(trailer, 0, TRAILER_MAGIC);
+        putInt(trailer, 4, offset);
+        out.write(trailer);
+    }
+
+    static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.chedima.btscaleviewer.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything the app keeps between runs: the devices it knows, the zone
+ * thresholds of the gauge, the display filter, the calibration, how
+ * long recordings are kept and the alarms. A
+ * plain holder, SettingsStore reads and writes it; fields a file does not
+ * have keep their defaults.
+ */
+public class Settings {
+
+    /**
+     * A device we connected to, most recent first in the list.
+     */
+    public static class Device {
+        public final String address;
+        // ConnectStrategy ordinal, -1 for none
+        public int strategy;
+        public long lastConnected;
+        // still in use when the app went away
+        public boolean active;
+
+        public Device(String address, int strategy, long lastConnected, boolean active) {
+            this.address = address;
+            this.strategy = strategy;
+            this.lastConnected = lastConnected;
+            this.active = active;
+        }
+    }
+
+    public final List<Device> devices = new ArrayList<Device>();
+
+    // gauge zones: green up to greenMax, red from redMin, the line in between
+    public int greenMax = 60;
+    public int line = 80;
+    public int redMin = 101;
+
+    // exponential smoothing of the displayed value, 1 for none
+    public float smoothing = 1;
+    public boolean notch;
+    public float notchHz = 50;
+    // look for oscillation in the readings in the background, see
+    // SpectrumAnalyzer, and let the notch follow a strong one
+    public boolean spectrum;
+    public boolean autoNotch;
+
+    // displayed = table[reading] if there is a table, else offset + scale * reading
+    public float offset = 0;
+    public float scale = 1;
+    public float[] table;
+
+    // days recordings are kept raw, per second and per minute, 0 for ever
+    // per minute; see SessionCompactor
+    public int rawDays = 2;
+    public int secondDays = 30;
+    public int minuteDays = 365;
+
+    // who records, stored with every session in the catalog; null if nobody said
+    public String operator;
+
+    // evaluated for every device, see AlarmEngine; a file without them gets
+    // the defaults
+    public final List<AlarmRule> alarms = new ArrayList<AlarmRule>();
+
+    public Settings() {
+        // 5 s above the line, the line crossed 6 times a minute, or 10 s
+        // without data; escalated every 30 s
+        alarms.add(AlarmRule.above(line, 5 * 1000, 2 * 1000, 60 * 1000, 30 * 1000));
+        alarms.add(AlarmRule.crossings(line, 6, 60 * 1000, 10 * 1000, 60 * 1000, 30 * 1000));
+        alarms.add(AlarmRule.silence(10 * 1000, 60 * 1000, 30 * 1000));
+    }
+
+    public float calibrate(int reading) {
+        if (table != null && reading >= 0 && reading < table.length) return table[reading];
+        return offset + scale * reading;
+    }
+}
@@ -0,0 +1,316 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes Settings as a small typed binary file:
+ * <pre>
+ *   int    MAGIC "BSS1"
+ *   section*
+ *   int    CRC32 of everything before
+ * </pre>
+ * where every section is
+ * <pre>
+ *   byte   id, SECTION_*
+ *   byte   version of the section
+ *   int    length of the payload
+ *   payload
+ * </pre>
+ * Sections with an unknown id or a newer version are skipped and leave
+ * their fields at the defaults, so old and new app versions can read each
+ * other's files. The file is encoded into one buffer and written in one
+ * go to a temporary file, synced and renamed over the old one, so it is
+ * either completely old or completely new.
+ */
+public class SettingsStore {
+
+    static final int MAGIC = 0x42535331;   // "BSS1"
+
+    static final int SECTION_DEVICES = 1;
+    static final int SECTION_THRESHOLDS = 2;
+    static final int SECTION_FILTER = 3;
+    static final int SECTION_CALIBRATION = 4;
+    static final int SECTION_RETENTION = 5;
+    static final int SECTION_OPERATOR = 6;
+    static final int SECTION_ALARMS = 7;
+    static final int SECTION_SPECTRUM = 8;
+
+    private static final int SECTION_HEADER_SIZE = 6;
+
+    /**
+     * ByteArrayOutputStream that lets the section length be filled in
+     * afterwards, and the buffer be written without a copy.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(512);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        void putInt(int pos, int n) {
+            buf[pos] = (byte) (n >>> 24);
+            buf[pos + 1] = (byte) (n >>> 16);
+            buf[pos + 2] = (byte) (n >>> 8);
+            buf[pos + 3] = (byte) n;
+        }
+    }
+
+    /**
+     * Read the settings from the file. A missing file gives the defaults;
+     * nothing is created.
+     *
+     * @throws IOException if the file exists but cannot be read or is corrupt
+     */
+    public static Settings load(File file) throws IOException {
+        InputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            return new Settings();
+        }
+        try {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) throw new IOException("settings too large");
+            byte[] data = new byte[(int) length];
+            new DataInputStream(in).readFully(data);
+            return decode(data, data.length);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the settings to the file, atomically: a crash leaves either the
+     * old or the new file.
+     */
+    public static void save(Settings settings, File file) throws IOException {
+        Buffer buffer = encode(settings);
+        write(buffer.array(), buffer.size(), file);
+    }
+
+    static void write(byte[] data, int length, File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data, 0, length);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("could not rename " + temp + " to " + file);
+        }
+    }
+
+    public static byte[] toBytes(Settings settings) throws IOException {
+        return encode(settings).toByteArray();
+    }
+
+    /**
+     * @throws IOException if the data is not valid settings
+     */
+    public static Settings fromBytes(byte[] data) throws IOException {
+        return decode(data, data.length);
+    }
+
+    private static Buffer encode(Settings settings) throws IOException {
+        Buffer buffer = new Buffer();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(MAGIC);
+
+        int start = beginSection(out, SECTION_DEVICES, 1);
+        out.writeByte(settings.devices.size());
+        for (Settings.Device device : settings.devices) {
+            out.writeUTF(device.address);
+            out.writeByte(device.strategy);
+            out.writeLong(device.lastConnected);
+            out.writeBoolean(device.active);
+        }
+        endSection(buffer, start);
+
+        start = beginSection(out, SECTION_THRESHOLDS, 1);
+        out.writeShort(settings.greenMax);
+        out.writeShort(settings.line);
+        out.writeShort(settings.redMin);
+        endSection(buffer, start);
+
+        start = beginSection(out, SECTION_FILTER, 1);
+        out.writeFloat(settings.smoothing);
+        out.writeBoolean(settings.notch);
+        out.writeFloat(settings.notchHz);
+        endSection(buffer, start);
+
+        start = beginSection(out, SECTION_CALIBRATION, 1);
+        out.writeFloat(settings.offset);
+        out.writeFloat(settings.scale);
+        float[] table = settings.table;
+        out.writeInt(table != null ? table.length : -1);
+        if (table != null) {
+            // in one piece, writeFloat() per entry dominates large tables
+            ByteBuffer raw = ByteBuffer.allocate(table.length * 4);
+            raw.asFloatBuffer().put(table);
+            out.write(raw.array());
+        }
+        endSection(buffer, start);
+
+        start = beginSection(out, SECTION_RETENTION, 1);
+        out.writeShort(settings.rawDays);
+        out.writeShort(settings.secondDays);
+        out.writeShort(settings.minuteDays);
+        endSection(buffer, start);
+
+        if (settings.operator != null) {
+            start = beginSection(out, SECTION_OPERATOR, 1);
+            out.writeUTF(settings.operator);
+            endSection(buffer, start);
+        }
+
+        start = beginSection(out, SECTION_SPECTRUM, 1);
+        out.writeBoolean(settings.spectrum);
+        out.writeBoolean(settings.autoNotch);
+        endSection(buffer, start);
+
+        start = beginSection(out, SECTION_ALARMS, 1);
+        out.writeByte(settings.alarms.size());
+        for (AlarmRule rule : settings.alarms) {
+            out.writeByte(rule.kind);
+            out.writeShort(rule.threshold);
+            out.writeShort(rule.crossings);
+            out.writeInt((int) rule.duration);
+            out.writeInt((int) rule.debounce);
+            out.writeInt((int) rule.cooldown);
+            out.writeInt((int) rule.escalateAfter);
+        }
+        endSection(buffer, start);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.size());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+        return buffer;
+    }
+
+    private static int beginSection(DataOutputStream out, int id, int version) throws IOException {
+        out.flush();
+        int start = out.size();
+        out.writeByte(id);
+        out.writeByte(version);
+        out.writeInt(0);
+        return start;
+    }
+
+    private static void endSection(Buffer buffer, int start) {
+        buffer.putInt(start + 2, buffer.size() - start - SECTION_HEADER_SIZE);
+    }
+
+    private static Settings decode(byte[] data, int length) throws IOException {
+        if (length < 8 || getInt(data, 0) != MAGIC) throw new IOException("not a settings file");
+        int end = length - 4;
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, end);
+        if (getInt(data, end) != (int) crc.getValue()) throw new IOException("settings checksum mismatch");
+
+        Settings settings = new Settings();
+        int pos = 4;
+        while (pos < end) {
+            if (pos + SECTION_HEADER_SIZE > end) throw new IOException("settings truncated");
+            int id = data[pos] & 0xFF;
+            int version = data[pos + 1] & 0xFF;
+            int size = getInt(data, pos + 2);
+            pos += SECTION_HEADER_SIZE;
+            if (size < 0 || size > end - pos) throw new IOException("settings truncated");
+            // sections of a newer version keep their defaults
+            if (version == 1) {
+                readSection(id, new DataInputStream(new ByteArrayInputStream(data, pos, size)), size, settings);
+            }
+            pos += size;
+        }
+        return settings;
+    }
+
+    private static int getInt(byte[] b, int pos) {
+        return (b[pos] & 0xFF) << 24 | (b[pos + 1] & 0xFF) << 16 | (b[pos + 2] & 0xFF) << 8 | (b[pos + 3] & 0xFF);
+    }
+
+    private static void readSection(int id, DataInputStream in, int size, Settings settings) throws IOException {
+        switch (id) {
+            case SECTION_DEVICES:
+                for (int i = in.readUnsignedByte(); i > 0; i--) {
+                    String address = in.readUTF();
+                    int strategy = in.readByte();
+                    long lastConnected = in.readLong();
+                    boolean active = in.readBoolean();
+                    settings.devices.add(new Settings.Device(address, strategy, lastConnected, active));
+                }
+                break;
+            case SECTION_THRESHOLDS:
+                settings.greenMax = in.readShort();
+                settings.line = in.readShort();
+                settings.redMin = in.readShort();
+                break;
+            case SECTION_FILTER:
+                settings.smoothing = in.readFloat();
+                settings.notch = in.readBoolean();
+                settings.notchHz = in.readFloat();
+                break;
+            case SECTION_CALIBRATION:
+                settings.offset = in.readFloat();
+                settings.scale = in.readFloat();
+                int n = in.readInt();
+                if (n > (size - 12) / 4) throw new IOException("calibration table truncated");
+                if (n >= 0) {
+                    byte[] raw = new byte[n * 4];
+                    in.readFully(raw);
+                    float[] table = new float[n];
+                    ByteBuffer.wrap(raw).asFloatBuffer().get(table);
+                    settings.table = table;
+                }
+                break;
+            case SECTION_RETENTION:
+                settings.rawDays = in.readShort();
+                settings.secondDays = in.readShort();
+                settings.minuteDays = in.readShort();
+                break;
+            case SECTION_OPERATOR:
+                settings.operator = in.readUTF();
+                break;
+            case SECTION_SPECTRUM:
+                settings.spectrum = in.readBoolean();
+                settings.autoNotch = in.readBoolean();
+                break;
+            case SECTION_ALARMS:
+                // the stored rules replace the defaults, also when there are none
+                settings.alarms.clear();
+                for (int i = in.readUnsignedByte(); i > 0; i--) {
+                    int kind = in.readUnsignedByte();
+                    int threshold = in.readShort();
+                    int crossings = in.readShort();
+                    long duration = in.readInt();
+                    long debounce = in.readInt();
+                    long cooldown = in.readInt();
+                    long escalateAfter = in.readInt();
+                    settings.alarms.add(new AlarmRule(kind, threshold, crossings, duration, debounce, cooldown,
+                            escalateAfter));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+}
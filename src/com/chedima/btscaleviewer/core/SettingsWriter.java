@@ -0,0 +1,161 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Does all reading and writing of a settings file on a thread of its own,
+ * so callers on the UI thread never touch the disk. save() only encodes a
+ * snapshot; the file is written once the settings have been quiet for the
+ * delay, so a burst of changes costs one write. Every save() of that burst
+ * gets the same Future, which completes when the snapshot is on disk.
+ * Loading runs on the same thread, so it always sees the last save.
+ */
+public class SettingsWriter {
+
+    public interface LoadCallback {
+        /**
+         * Called on the writer thread.
+         *
+         * @param settings what was read, or the defaults if it failed
+         * @param error why reading failed, null if it did not
+         */
+        void onLoaded(Settings settings, IOException error);
+    }
+
+    private final File mFile;
+    private final long mDelay;
+    private final ScheduledExecutorService mExecutor;
+
+    // the encoded snapshot waiting to be written and its task, guarded by this
+    private byte[] mPending;
+    private FutureTask<Void> mTask;
+    private volatile IOException mError;
+
+    public SettingsWriter(File file, long delayMillis) {
+        mFile = file;
+        mDelay = delayMillis;
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SettingsWriter " + mFile.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Read the settings on the writer thread, after any save still pending.
+     */
+    public void load(final LoadCallback callback) {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                Settings settings;
+                IOException error = null;
+                try {
+                    settings = SettingsStore.load(mFile);
+                } catch (IOException e) {
+                    error = e;
+                    settings = new Settings();
+                }
+                callback.onLoaded(settings, error);
+            }
+        });
+    }
+
+    /**
+     * Take a snapshot of the settings and write it after the delay, unless
+     * another save comes first. Encoding is the only work done on the
+     * calling thread.
+     *
+     * @return completes when this or a later snapshot has been written, and
+     *         throws its error if writing failed
+     */
+    public Future<Void> save(Settings settings) {
+        byte[] data;
+        try {
+            data = SettingsStore.toBytes(settings);
+        } catch (IOException e) {
+            // encoding into memory does not fail
+            throw new IllegalStateException(e);
+        }
+        synchronized (this) {
+            mPending = data;
+            if (mTask == null) {
+                mTask = new FutureTask<Void>(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        return write();
+                    }
+                });
+                mExecutor.schedule(mTask, mDelay, TimeUnit.MILLISECONDS);
+            }
+            return mTask;
+        }
+    }
+
+    /**
+     * Write the pending snapshot now instead of after the delay, for
+     * moments the process may die, like the activity being paused.
+     *
+     * @return completes when nothing is pending anymore
+     */
+    public Future<Void> flush() {
+        FutureTask<Void> task;
+        synchronized (this) {
+            task = mTask;
+            if (task == null) {
+                // queued behind whatever is running
+                task = new FutureTask<Void>(new Runnable() {
+                    public void run() {
+                    }
+                }, null);
+            }
+        }
+        // a FutureTask runs once, the scheduled run becomes a no-op
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Flush and let the thread end once the write is done; does not wait.
+     */
+    public void close() {
+        flush();
+        mExecutor.shutdown();
+    }
+
+    /**
+     * The error of the last write, null if it succeeded.
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    private Void write() throws IOException {
+        byte[] data;
+        synchronized (this) {
+            data = mPending;
+            mPending = null;
+            mTask = null;
+        }
+        try {
+            SettingsStore.write(data, data.length, mFile);
+            mError = null;
+        } catch (IOException e) {
+            mError = e;
+            throw e;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,213 @@
+package com.chedima.btscaleviewer.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The strongest periodic oscillation in the recent readings of a device,
+ * from a Hann-windowed FFT of the last SIZE readings: its frequency, its
+ * amplitude in reading units and the rate the readings came at.
+ *
+ * onReading() only stores the reading in a ring, on the reader thread.
+ * analyze() copies the newest SIZE readings out of it and does the
+ * transform, on a background thread, in buffers allocated once with the
+ * analyzer; if the reader laps the copy it gives up until the next time.
+ * Results are published for any thread like the snapshots of
+ * RunningStats.
+ *
+ * The readings arrive in chunks that share a time, so the rate is taken
+ * over the whole window; the frequency is interpolated between the bins
+ * of the transform.
+ */
+public class SpectrumAnalyzer implements ReadingListener {
+
+    public static final int SIZE = 256;
+    private static final int RING = 2 * SIZE;
+
+    /**
+     * A consistent copy of the last analysis; reusable.
+     */
+    public static class Snapshot {
+        /**
+         * Of the strongest oscillation in Hz, NaN before the first
+         * analysis.
+         */
+        public double frequency;
+        public double amplitude;
+        public double sampleRate;
+        /**
+         * Time of the newest reading analysed, 0 before the first
+         * analysis.
+         */
+        public long time;
+    }
+
+    // written by onReading() only; a slot is published by mWritten
+    private final long[] mTimes = new long[RING];
+    private final int[] mValues = new int[RING];
+    private final AtomicLong mWritten = new AtomicLong();
+
+    // used by analyze() only
+    private final double[] mRe = new double[SIZE];
+    private final double[] mIm = new double[SIZE];
+    private final double[] mWindow = new double[SIZE];
+    private final double mWindowSum;
+    private final double[] mCos = new double[SIZE / 2];
+    private final double[] mSin = new double[SIZE / 2];
+    private final int[] mReversed = new int[SIZE];
+
+    private final AtomicInteger mSequence = new AtomicInteger();
+    // written by readers only for its ordering
+    private volatile int mFence;
+
+    // written only by analyze(), between the odd and the even sequence
+    private double mFrequency = Double.NaN;
+    private double mAmplitude = Double.NaN;
+    private double mSampleRate = Double.NaN;
+    private long mTime;
+
+    public SpectrumAnalyzer() {
+        double sum = 0;
+        for (int i = 0; i < SIZE; i++) {
+            mWindow[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (SIZE - 1));
+            sum += mWindow[i];
+        }
+        mWindowSum = sum;
+        for (int i = 0; i < SIZE / 2; i++) {
+            mCos[i] = Math.cos(2 * Math.PI * i / SIZE);
+            mSin[i] = -Math.sin(2 * Math.PI * i / SIZE);
+        }
+        int bits = Integer.numberOfTrailingZeros(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            mReversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    @Override
+    public void onReading(long time, int value) {
+        long written = mWritten.get();
+        int slot = (int) written & (RING - 1);
+        mTimes[slot] = time;
+        mValues[slot] = value;
+        mWritten.lazySet(written + 1);
+    }
+
+    /**
+     * Analyse the newest readings; the work of one background thread.
+     *
+     * @return false if there were not enough readings, they did not span
+     *         any time, or came too fast to copy
+     */
+    public boolean analyze() {
+        long end = mWritten.get();
+        if (end < SIZE) return false;
+        double[] re = mRe;
+        double[] im = mIm;
+        long first = mTimes[(int) (end - SIZE) & (RING - 1)];
+        long last = mTimes[(int) (end - 1) & (RING - 1)];
+        double mean = 0;
+        for (int i = 0; i < SIZE; i++) {
+            re[i] = mValues[(int) (end - SIZE + i) & (RING - 1)];
+            mean += re[i];
+        }
+        // the slots copied were not written over meanwhile; the first is
+        // being written once the count reaches this
+        if (mWritten.get() - end >= RING - SIZE) return false;
+        if (last <= first) return false;
+        double rate = (SIZE - 1) * 1000.0 / (last - first);
+
+        mean /= SIZE;
+        for (int i = 0; i < SIZE; i++) {
+            re[i] = (re[i] - mean) * mWindow[i];
+            im[i] = 0;
+        }
+        transform(re, im);
+
+        int peak = 1;
+        double peakPower = 0;
+        for (int k = 1; k < SIZE / 2; k++) {
+            double power = re[k] * re[k] + im[k] * im[k];
+            if (power > peakPower) {
+                peakPower = power;
+                peak = k;
+            }
+        }
+        double offset = 0;
+        if (peak > 1 && peak < SIZE / 2 - 1) {
+            double before = Math.sqrt(re[peak - 1] * re[peak - 1] + im[peak - 1] * im[peak - 1]);
+            double at = Math.sqrt(peakPower);
+            double after = Math.sqrt(re[peak + 1] * re[peak + 1] + im[peak + 1] * im[peak + 1]);
+            double curvature = before - 2 * at + after;
+            if (curvature < 0) offset = 0.5 * (before - after) / curvature;
+        }
+
+        int sequence = mSequence.get();
+        mSequence.set(sequence + 1);
+        mFrequency = (peak + offset) * rate / SIZE;
+        // a sine of amplitude A gives A / 2 times the window sum at its bin
+        mAmplitude = 2 * Math.sqrt(peakPower) / mWindowSum;
+        mSampleRate = rate;
+        mTime = last;
+        mSequence.lazySet(sequence + 2);
+        return true;
+    }
+
+    /**
+     * Copy the last analysis; never blocks the analysis.
+     *
+     * @return into
+     */
+    public Snapshot snapshot(Snapshot into) {
+        while (true) {
+            int sequence = mSequence.get();
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            into.frequency = mFrequency;
+            into.amplitude = mAmplitude;
+            into.sampleRate = mSampleRate;
+            into.time = mTime;
+            // the volatile store keeps the reads above from moving after
+            // the check below
+            mFence = sequence;
+            if (mSequence.get() == sequence) return into;
+        }
+    }
+
+    /**
+     * In-place iterative radix-2 FFT of SIZE points.
+     */
+    private void transform(double[] re, double[] im) {
+        int[] reversed = mReversed;
+        for (int i = 0; i < SIZE; i++) {
+            int j = reversed[i];
+            if (j > i) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for (int length = 2; length <= SIZE; length <<= 1) {
+            int half = length >> 1;
+            int step = SIZE / length;
+            for (int start = 0; start < SIZE; start += length) {
+                for (int k = 0; k < half; k++) {
+                    double cos = mCos[k * step];
+                    double sin = mSin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    double tre = re[b] * cos - im[b] * sin;
+                    double tim = re[b] * sin + im[b] * cos;
+                    re[b] = re[a] - tre;
+                    im[b] = im[a] - tim;
+                    re[a] += tre;
+                    im[a] += tim;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.chedima.btscaleviewer.core;
+
+/**
+ * Finds spikes in the readings of a device as they arrive: a reading is
+ * anomalous when its robust z-score against the last readings, the
+ * distance to their median in units of their median absolute deviation
+ * (MAD), is above a threshold, and it is at least a minimum distance away
+ * from the median, so a scale that has been dead still for a while does
+ * not report every step. A run of anomalous readings is one spike,
+ * reported on its first reading.
+ *
+ * Readings are 0..253, so the window is kept as a count per value next to
+ * the ring of its readings, like the window of RunningStats. The median
+ * moves by a value or two per reading and the MAD is found by walking
+ * outwards from the median, so both cost a few steps instead of a sort;
+ * the memory is fixed by the window.
+ *
+ * Each reading is compared to the window before it joins it, so a spike
+ * does not hide itself. One that lasts for half the window becomes the
+ * median, a new level rather than a spike.
+ *
+ * onReading() runs on the reader thread, and so does the listener. Not
+ * thread safe.
+ */
+public class SpikeDetector implements ReadingListener {
+
+    // the median absolute deviation of normally distributed readings is
+    // this times their standard deviation
+    private static final double MAD_TO_SIGMA = 0.6745;
+
+    public interface Listener {
+        /**
+         * A spike starts with this reading.
+         *
+         * @param median the median of the readings before it
+         */
+        void onSpike(long time, int value, int median);
+    }
+
+    private final int[] mRing;
+    private final int[] mCounts = new int[Histogram.VALUES];
+    private final double mScore;
+    private final int mMinDeviation;
+    private final Listener mListener;
+    private int mPos;
+    private int mSize;
+    // the median, and how many readings in the window are below it
+    private int mMedian;
+    private int mBelow;
+    private boolean mInSpike;
+    private long mSpikes;
+
+    /**
+     * @param window       number of readings the median is taken over
+     * @param score        lowest robust z-score of a spike
+     * @param minDeviation lowest distance of a spike from the median
+     * @param listener     told about every spike
+     */
+    public SpikeDetector(int window, double score, int minDeviation, Listener listener) {
+        mRing = new int[window];
+        mScore = score;
+        mMinDeviation = minDeviation;
+        mListener = listener;
+    }
+
+    /**
+     * The number of spikes so far.
+     */
+    public long getCount() {
+        return mSpikes;
+    }
+
+    @Override
+    public void onReading(long time, int value) {
+        // half a window is enough for a median
+        if (mSize >= (mRing.length + 1) / 2) {
+            if (isSpike(value)) {
+                if (!mInSpike) {
+                    mInSpike = true;
+                    mSpikes++;
+                    mListener.onSpike(time, value, mMedian);
+                }
+            } else {
+                mInSpike = false;
+            }
+        }
+
+        if (mSize == mRing.length) {
+            int old = mRing[mPos];
+            mCounts[old]--;
+            if (old < mMedian) mBelow--;
+        } else {
+            mSize++;
+        }
+        mRing[mPos] = value;
+        mPos = mPos + 1 == mRing.length ? 0 : mPos + 1;
+        mCounts[value]++;
+        if (value < mMedian) mBelow++;
+        updateMedian();
+    }
+
+    private boolean isSpike(int value) {
+        int deviation = Math.abs(value - mMedian);
+        return deviation >= mMinDeviation && MAD_TO_SIGMA * deviation > mScore * mad();
+    }
+
+    /**
+     * Move the median to the lower middle of the window again: the
+     * smallest value with more than half of the readings at or below it,
+     * counting from 1.
+     */
+    private void updateMedian() {
+        int rank = (mSize + 1) / 2;
+        int[] counts = mCounts;
+        while (mBelow >= rank) {
+            mMedian--;
+            mBelow -= counts[mMedian];
+        }
+        while (mBelow + counts[mMedian] < rank) {
+            mBelow += counts[mMedian];
+            mMedian++;
+        }
+    }
+
+    /**
+     * The median of the distances of the window to its median, found by
+     * taking the readings at distance 0, 1, 2... until half are counted.
+     */
+    private int mad() {
+        int rank = (mSize + 1) / 2;
+        int[] counts = mCounts;
+        int median = mMedian;
+        int seen = counts[median];
+        int distance = 0;
+        while (seen < rank) {
+            distance++;
+            if (median - distance >= 0) seen += counts[median - distance];
+            if (median + distance < Histogram.VALUES) seen += counts[median + distance];
+        }
+        return distance;
+    }
+}
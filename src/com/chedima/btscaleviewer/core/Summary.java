@@ -0,0 +1,99 @@
+package com.chedima.btscaleviewer.core;
+
+/**
+ * Aggregates of the readings in a time range: count, sum, minimum,
+ * maximum and the time spent above BlockEncoder.ABOVE_THRESHOLD. Built
+ * from whole block summaries and single readings alike; reusable.
+ */
+public class Summary {
+
+    private long mCount;
+    private long mSum;
+    private int mMin;
+    private int mMax;
+    private long mTimeAbove;
+
+    public Summary() {
+        reset();
+    }
+
+    public void reset() {
+        mCount = 0;
+        mSum = 0;
+        mMin = Integer.MAX_VALUE;
+        mMax = Integer.MIN_VALUE;
+        mTimeAbove = 0;
+    }
+
+    /**
+     * Add one reading.
+     *
+     * @param timeAbove the time it stands for if it is above the
+     *                  threshold, else 0
+     */
+    public void add(int value, long timeAbove) {
+        mCount++;
+        mSum += value;
+        if (value < mMin) mMin = value;
+        if (value > mMax) mMax = value;
+        mTimeAbove += timeAbove;
+    }
+
+    /**
+     * Add the summary of a block or another range.
+     */
+    public void add(long count, long sum, int min, int max, long timeAbove) {
+        if (count == 0) return;
+        mCount += count;
+        mSum += sum;
+        if (min < mMin) mMin = min;
+        if (max > mMax) mMax = max;
+        mTimeAbove += timeAbove;
+    }
+
+    public void add(Summary other) {
+        add(other.mCount, other.mSum, other.mMin, other.mMax, other.mTimeAbove);
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getSum() {
+        return mSum;
+    }
+
+    /**
+     * The smallest reading, Integer.MAX_VALUE if there is none.
+     */
+    public int getMin() {
+        return mMin;
+    }
+
+    /**
+     * The largest reading, Integer.MIN_VALUE if there is none.
+     */
+    public int getMax() {
+        return mMax;
+    }
+
+    /**
+     * The mean reading, NaN if there is none.
+     */
+    public double getMean() {
+        return mCount > 0 ? (double) mSum / mCount : Double.NaN;
+    }
+
+    /**
+     * Milliseconds above the threshold.
+     */
+    public long getTimeAbove() {
+        return mTimeAbove;
+    }
+
+    @Override
+    public String toString() {
+        return "count " + mCount + ", min " + mMin + ", max " + mMax
+                + ", mean " + getMean() + ", above " + mTimeAbove + " ms";
+    }
+}
@@ -0,0 +1,308 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates the FF/value/FE frame protocol without a scale, for load and
+ * soak testing. The byte stream depends only on the settings and the
+ * seed, so field problems can be reproduced exactly:
+ * <ul>
+ * <li>rate: frames per second, 1 Hz to 100 kHz; 0 produces bytes as fast
+ *     as they are read, for measuring maximum throughput</li>
+ * <li>level, drift, noise: the weight, a random walk around it and
+ *     gaussian noise on top</li>
+ * <li>garbage: probability of a few random bytes between two frames</li>
+ * <li>corruption: probability of a frame with a missing start or end
+ *     byte or an illegal value</li>
+ * <li>burst: frames are held back and released together every so many
+ *     milliseconds, like a module that buffers</li>
+ * <li>silence: every so many milliseconds the scale goes quiet for a
+ *     while; longer than the read timeout this reproduces the
+ *     timeout-induced reconnect storm</li>
+ * <li>spikes: every so many frames one is raised by a fixed height, for
+ *     checking what SpikeDetector finds</li>
+ * <li>oscillation: a sine of a frequency and amplitude on top, at the
+ *     nominal times of the frames, like machinery shaking the scale</li>
+ * </ul>
+ * Frame k is due at k / rate seconds after open(), shifted by bursts;
+ * frames falling into a silence are not sent at all.
+ */
+public class SyntheticScaleSource implements ScaleTransport {
+
+    public static final String SCHEME = "sim://";
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final long MAX_PARK_NANOS = 50 * 1000 * 1000L;
+
+    /**
+     * Settings of a simulated scale, setters return this for chaining.
+     */
+    public static class Factory implements ScaleTransport.Factory {
+        private final String mName;
+        double rate = 10;
+        long frames;
+        long seed = 1;
+        double level = 50;
+        double drift;
+        double noise = 1;
+        double garbage;
+        double corruption;
+        long burstMillis;
+        long silenceEveryMillis;
+        long silenceMillis;
+        long spikeEvery;
+        int spikeHeight;
+        double oscillationHz;
+        double oscillationAmplitude;
+
+        private volatile SyntheticScaleSource mLast;
+
+        public Factory(String name) {
+            mName = name;
+        }
+
+        /** Frames per second, 0 for as fast as possible. */
+        public Factory rate(double framesPerSecond) {
+            rate = framesPerSecond;
+            return this;
+        }
+
+        /** Stop after this many frames, 0 for endless. */
+        public Factory frames(long count) {
+            frames = count;
+            return this;
+        }
+
+        public Factory seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Factory level(double level) {
+            this.level = level;
+            return this;
+        }
+
+        /** Standard deviation of the random walk step per frame. */
+        public Factory drift(double drift) {
+            this.drift = drift;
+            return this;
+        }
+
+        /** Standard deviation of the noise added to every frame. */
+        public Factory noise(double noise) {
+            this.noise = noise;
+            return this;
+        }
+
+        public Factory garbage(double probability) {
+            garbage = probability;
+            return this;
+        }
+
+        public Factory corruption(double probability) {
+            corruption = probability;
+            return this;
+        }
+
+        public Factory burst(long millis) {
+            burstMillis = millis;
+            return this;
+        }
+
+        public Factory silence(long everyMillis, long lengthMillis) {
+            silenceEveryMillis = everyMillis;
+            silenceMillis = lengthMillis;
+            return this;
+        }
+
+        /**
+         * Add height to every frame k with k % every == every - 1, a
+         * spike of one frame.
+         */
+        public Factory spikes(long every, int height) {
+            spikeEvery = every;
+            spikeHeight = height;
+            return this;
+        }
+
+        public Factory oscillation(double hz, double amplitude) {
+            oscillationHz = hz;
+            oscillationAmplitude = amplitude;
+            return this;
+        }
+
+        public String getAddress() {
+            return SCHEME + mName;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public ScaleTransport create() {
+            SyntheticScaleSource source = new SyntheticScaleSource(this);
+            mLast = source;
+            return source;
+        }
+
+        /**
+         * The transport created last, for benchmarks that need its clock.
+         */
+        public SyntheticScaleSource getLast() {
+            return mLast;
+        }
+    }
+
+    private final Factory mSettings;
+    private final Random mRandom;
+    private final long mPeriodNanos;
+    private final byte[] mChunk = new byte[CHUNK_SIZE + 16];
+    private volatile boolean mClosed;
+    private volatile long mStartNanos;
+    private long mFrame;
+    private double mWalk;
+
+    private SyntheticScaleSource(Factory settings) {
+        mSettings = settings;
+        mRandom = new Random(settings.seed);
+        mPeriodNanos = settings.rate > 0 ? (long) (1e9 / settings.rate) : 0;
+    }
+
+    /**
+     * System.nanoTime() when the stream was opened.
+     */
+    public long getStartNanos() {
+        return mStartNanos;
+    }
+
+    /**
+     * When frame k is due relative to open(), in nanoseconds, or -1 if it
+     * falls into a silence and is never sent.
+     */
+    public long dueNanos(long k) {
+        long nominal = k * mPeriodNanos;
+        if (mSettings.silenceEveryMillis > 0) {
+            long every = mSettings.silenceEveryMillis * 1000000L;
+            if (nominal % every < mSettings.silenceMillis * 1000000L) return -1;
+        }
+        if (mSettings.burstMillis > 0) {
+            long burst = mSettings.burstMillis * 1000000L;
+            nominal = (nominal / burst + 1) * burst;
+        }
+        return nominal;
+    }
+
+    public InputStream open() throws IOException {
+        if (mClosed) throw new IOException("canceled");
+        mStartNanos = System.nanoTime();
+        return new InputStream() {
+            private int mmPos, mmEnd;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                while (mmPos == mmEnd) {
+                    if (mClosed) throw new IOException("closed");
+                    if (mSettings.frames > 0 && mFrame >= mSettings.frames) return -1;
+                    mmPos = 0;
+                    mmEnd = fill();
+                }
+                int n = Math.min(length, mmEnd - mmPos);
+                System.arraycopy(mChunk, mmPos, buffer, offset, n);
+                mmPos += n;
+                return n;
+            }
+
+            @Override
+            public void close() {
+                SyntheticScaleSource.this.close();
+            }
+        };
+    }
+
+    public void close() {
+        mClosed = true;
+    }
+
+    /**
+     * Generate all frames due by now into the chunk, waiting for the next
+     * one if none is due yet.
+     *
+     * @return number of bytes in the chunk, possibly 0
+     */
+    private int fill() {
+        int end = 0;
+        long limit = mSettings.frames > 0 ? mSettings.frames : Long.MAX_VALUE;
+        long now = mPeriodNanos > 0 ? System.nanoTime() - mStartNanos : Long.MAX_VALUE;
+        while (end < CHUNK_SIZE && mFrame < limit) {
+            long due = mPeriodNanos > 0 ? dueNanos(mFrame) : 0;
+            if (due < 0) {
+                // silenced, the value still walks on
+                nextValue();
+                mFrame++;
+                continue;
+            }
+            if (due > now) {
+                if (end == 0) LockSupport.parkNanos(Math.min(due - now, MAX_PARK_NANOS));
+                break;
+            }
+            end = writeFrame(end);
+            mFrame++;
+        }
+        return end;
+    }
+
+    private int nextValue() {
+        if (mSettings.drift > 0) mWalk += mRandom.nextGaussian() * mSettings.drift;
+        double level = mSettings.level + mWalk + mRandom.nextGaussian() * mSettings.noise;
+        if (mSettings.oscillationAmplitude > 0 && mSettings.rate > 0) {
+            level += mSettings.oscillationAmplitude * Math.sin(2 * Math.PI * mSettings.oscillationHz * mFrame / mSettings.rate);
+        }
+        long value = Math.round(level);
+        return (int) Math.max(0, Math.min(253, value));
+    }
+
+    private int writeFrame(int end) {
+        byte[] chunk = mChunk;
+        int value = nextValue();
+        if (mSettings.spikeEvery > 0 && mFrame % mSettings.spikeEvery == mSettings.spikeEvery - 1) {
+            value = Math.max(0, Math.min(253, value + mSettings.spikeHeight));
+        }
+        if (mSettings.garbage > 0 && mRandom.nextDouble() < mSettings.garbage) {
+            for (int i = 1 + mRandom.nextInt(4); i > 0; i--) {
+                chunk[end++] = (byte) mRandom.nextInt(256);
+            }
+        }
+        if (mSettings.corruption > 0 && mRandom.nextDouble() < mSettings.corruption) {
+            switch (mRandom.nextInt(3)) {
+                case 0:
+                    chunk[end++] = (byte) value;
+                    chunk[end++] = (byte) FrameDecoder.FRAME_END;
+                    break;
+                case 1:
+                    chunk[end++] = (byte) FrameDecoder.FRAME_START;
+                    chunk[end++] = (byte) value;
+                    break;
+                default:
+                    chunk[end++] = (byte) FrameDecoder.FRAME_START;
+                    chunk[end++] = (byte) (mRandom.nextBoolean() ? FrameDecoder.FRAME_START : FrameDecoder.FRAME_END);
+                    chunk[end++] = (byte) FrameDecoder.FRAME_END;
+                    break;
+            }
+            return end;
+        }
+        chunk[end++] = (byte) FrameDecoder.FRAME_START;
+        chunk[end++] = (byte) value;
+        chunk[end++] = (byte) FrameDecoder.FRAME_END;
+        return end;
+    }
+}
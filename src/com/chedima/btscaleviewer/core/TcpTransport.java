@@ -0,0 +1,96 @@
+package com.chedima.btscaleviewer.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Plain TCP connection, for scales behind a serial-to-Ethernet adapter
+ * and for feeding the pipeline from a generator on another machine.
+ * Addresses look like tcp://host:port.
+ */
+public class TcpTransport implements ScaleTransport {
+
+    public static final String SCHEME = "tcp://";
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    public static class Factory implements ScaleTransport.Factory {
+        private final String mHost;
+        private final int mPort;
+
+        public Factory(String host, int port) {
+            mHost = host;
+            mPort = port;
+        }
+
+        /**
+         * @param address tcp://host:port
+         * @throws IllegalArgumentException if the address is malformed
+         */
+        public static Factory parse(String address) {
+            if (!isTcpAddress(address)) {
+                throw new IllegalArgumentException("not a tcp address: " + address);
+            }
+            String hostPort = address.substring(SCHEME.length());
+            int colon = hostPort.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("port missing: " + address);
+            }
+            int port;
+            try {
+                port = Integer.parseInt(hostPort.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad port: " + address);
+            }
+            if (port < 1 || port > 65535) throw new IllegalArgumentException("bad port: " + address);
+            return new Factory(hostPort.substring(0, colon), port);
+        }
+
+        public String getAddress() {
+            return SCHEME + mHost + ":" + mPort;
+        }
+
+        public String getName() {
+            return mHost + ":" + mPort;
+        }
+
+        public ScaleTransport create() {
+            return new TcpTransport(mHost, mPort);
+        }
+    }
+
+    public static boolean isTcpAddress(String address) {
+        return address != null && address.startsWith(SCHEME);
+    }
+
+    private final String mHost;
+    private final int mPort;
+    private volatile Socket mSocket;
+    private volatile boolean mClosed;
+
+    public TcpTransport(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    public InputStream open() throws IOException {
+        Socket socket = new Socket();
+        mSocket = socket;
+        if (mClosed) throw new IOException("canceled");
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT);
+        return socket.getInputStream();
+    }
+
+    public void close() {
+        mClosed = true;
+        Socket socket = mSocket;
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.chedima.btscaleviewer.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The least-squares line through the readings of a device in a sliding
+ * time window, and when it reaches the line and the red zone at its
+ * slope. The fit is over the times the readings arrived, so gaps and
+ * bursts weigh as what they are rather than as evenly spaced samples.
+ *
+ * The window keeps its readings in a ring, like RunningStats, and the
+ * exact integer sums of times, values, squared times and products, so a
+ * reading leaving it is subtracted without rounding. Times count from an
+ * origin that moves up to the oldest reading every REBASE ms, the sums
+ * being recomputed from the ring then; that keeps every product in a
+ * long for windows up to MAX_WINDOW.
+ *
+ * onReading() runs on the reader thread and is the only writer; snapshots
+ * are taken without locking, like those of RunningStats, and do the
+ * divisions.
+ */
+public class Trend implements ReadingListener {
+
+    public static final long MAX_WINDOW = 1 << 15;
+    private static final long REBASE = 1 << 16;
+    // fewer readings make no line worth projecting
+    private static final int MIN_COUNT = 5;
+
+    /**
+     * A consistent copy of the fit; reusable.
+     */
+    public static class Snapshot {
+        public int count;
+        /**
+         * Change per second, NaN without a fit.
+         */
+        public double slope;
+        /**
+         * The line at the newest reading.
+         */
+        public double level;
+        /**
+         * Milliseconds until the readings on the line go above the line
+         * of the gauge and into the red zone, or back out of them going
+         * down, -1 if it is not heading there.
+         */
+        public long toLine;
+        public long toRed;
+        public long time;
+    }
+
+    private final long mWindow;
+    private final int mLine;
+    private final int mRedMin;
+    private final long[] mTimes;
+    private final int[] mValues;
+    private final int mMask;
+    private int mHead;
+    private int mTail;
+    private long mOrigin;
+
+    private final AtomicInteger mSequence = new AtomicInteger();
+    // written by readers only for its ordering
+    private volatile int mFence;
+
+    // written only by onReading(), between the odd and the even sequence;
+    // times relative to mOrigin
+    private long mSumT;
+    private long mSumV;
+    private long mSumTT;
+    private long mSumTV;
+    private long mBase;
+    private long mTime;
+
+    /**
+     * @param windowMillis length of the window, at most MAX_WINDOW
+     * @param capacity     most readings the window holds, rounded up to a
+     *                     power of two
+     * @param line         the line of the gauge
+     * @param redMin       the lowest red reading
+     */
+    public Trend(long windowMillis, int capacity, int line, int redMin) {
+        if (windowMillis > MAX_WINDOW) throw new IllegalArgumentException("window too long: " + windowMillis);
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mWindow = windowMillis;
+        mLine = line;
+        mRedMin = redMin;
+        mTimes = new long[size];
+        mValues = new int[size];
+        mMask = size - 1;
+    }
+
+    @Override
+    public void onReading(long time, int value) {
+        int sequence = mSequence.get();
+        mSequence.set(sequence + 1);
+
+        int mask = mMask;
+        long cutoff = time - mWindow;
+        // and all of them when the clock went back
+        while (mTail - mHead > 0 && (mTimes[mHead & mask] <= cutoff || mTail - mHead > mask
+                || mTimes[mHead & mask] > time)) {
+            int slot = mHead & mask;
+            long t = mTimes[slot] - mOrigin;
+            int v = mValues[slot];
+            mSumT -= t;
+            mSumV -= v;
+            mSumTT -= t * t;
+            mSumTV -= t * v;
+            mHead++;
+        }
+        if (mTail == mHead || time - mOrigin >= REBASE) rebase(time);
+        int slot = mTail & mask;
+        mTimes[slot] = time;
+        mValues[slot] = value;
+        long t = time - mOrigin;
+        mSumT += t;
+        mSumV += value;
+        mSumTT += t * t;
+        mSumTV += t * value;
+        mTail++;
+        mBase = mOrigin;
+        mTime = time;
+
+        mSequence.lazySet(sequence + 2);
+    }
+
+    /**
+     * Copy the fit as of one reading; never blocks the writer.
+     *
+     * @return into
+     */
+    public Snapshot snapshot(Snapshot into) {
+        while (true) {
+            int sequence = mSequence.get();
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            long n = mTail - mHead;
+            long sumT = mSumT;
+            long sumV = mSumV;
+            long sumTT = mSumTT;
+            long sumTV = mSumTV;
+            long base = mBase;
+            long time = mTime;
+            // the volatile store keeps the reads above from moving after
+            // the check below
+            mFence = sequence;
+            if (mSequence.get() != sequence) continue;
+
+            into.count = (int) n;
+            into.time = time;
+            // exact in longs, times are below REBASE
+            long sxx = n * sumTT - sumT * sumT;
+            if (n < MIN_COUNT || sxx <= 0) {
+                into.slope = Double.NaN;
+                into.level = n > 0 ? (double) sumV / n : Double.NaN;
+                into.toLine = -1;
+                into.toRed = -1;
+                return into;
+            }
+            double slope = (double) (n * sumTV - sumT * sumV) / sxx;
+            double level = ((double) sumV + slope * ((time - base) * n - sumT)) / n;
+            into.slope = slope * 1000;
+            into.level = level;
+            into.toLine = until(level, slope, mLine + 0.5);
+            into.toRed = until(level, slope, mRedMin - 0.5);
+            return into;
+        }
+    }
+
+    /**
+     * Milliseconds until level reaches target at slope per millisecond,
+     * -1 if it moves away or already is there.
+     */
+    private static long until(double level, double slope, double target) {
+        double millis = (target - level) / slope;
+        return millis > 0 && millis < Long.MAX_VALUE ? (long) millis : -1;
+    }
+
+    /**
+     * Move the origin to the oldest reading, or to time if there is none,
+     * and recompute the sums.
+     */
+    private void rebase(long time) {
+        int mask = mMask;
+        mOrigin = mTail - mHead > 0 ? mTimes[mHead & mask] : time;
+        long sumT = 0, sumV = 0, sumTT = 0, sumTV = 0;
+        for (int i = mHead; i != mTail; i++) {
+            long t = mTimes[i & mask] - mOrigin;
+            int v = mValues[i & mask];
+            sumT += t;
+            sumV += v;
+            sumTT += t * t;
+            sumTV += t * v;
+        }
+        mSumT = sumT;
+        mSumV = sumV;
+        mSumTT = sumTT;
+        mSumTV = sumTV;
+    }
+}
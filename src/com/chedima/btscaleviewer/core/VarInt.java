@@ -0,0 +1,55 @@
+package com.chedima.btscaleviewer.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Varints as the capture, session and rollup files store them: seven bits
+ * a byte, least significant first, the high bit set on all but the last
+ * byte. Signed numbers are zigzag encoded first, so small negative ones
+ * stay short too. A long takes at most MAX_SIZE bytes.
+ */
+final class VarInt {
+
+    static final int MAX_SIZE = 10;
+
+    private VarInt() {
+    }
+
+    static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    /**
+     * @return the position after the varint
+     */
+    static int putVarLong(byte[] out, int pos, long n) {
+        while ((n & ~0x7FL) != 0) {
+            out[pos++] = (byte) ((n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        out[pos++] = (byte) n;
+        return pos;
+    }
+
+    /**
+     * @return the position after the varint, stored in result[0], or -1 if
+     *         it runs past limit
+     */
+    static int readVarLong(ByteBuffer buffer, int pos, int limit, long[] result) {
+        long n = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (pos >= limit || shift > 63) return -1;
+            b = buffer.get(pos++);
+            n |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        result[0] = n;
+        return pos;
+    }
+}
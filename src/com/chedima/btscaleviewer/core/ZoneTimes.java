@@ -0,0 +1,157 @@
+package com.chedima.btscaleviewer.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How long the readings of a device sat in each zone of the gauge, green,
+ * yellow and red, and above the line, over everything since it was
+ * created and over a rolling window. Every reading stands for the time
+ * since the reading before, at most BlockEncoder.MAX_HOLD, like the time
+ * above the threshold of the block summaries, so a lost connection does
+ * not count.
+ *
+ * The window is a ring of buckets of a fixed length, the current one
+ * filling up; a bucket is subtracted as a whole when it falls out, so the
+ * window covers between buckets - 1 and buckets bucket lengths. Updates
+ * cost the same at any rate and the memory is fixed.
+ *
+ * onReading() runs on the reader thread and is the only writer; snapshots
+ * are taken without locking, like those of RunningStats.
+ */
+public class ZoneTimes implements ReadingListener {
+
+    public static final int GREEN = 0;
+    public static final int YELLOW = 1;
+    public static final int RED = 2;
+    public static final int ABOVE_LINE = 3;
+    public static final int ZONES = 4;
+
+    /**
+     * A consistent copy of the times, in milliseconds; reusable.
+     */
+    public static class Snapshot {
+        public final long[] session = new long[ZONES];
+        public final long[] window = new long[ZONES];
+
+        /**
+         * The time the window covers: its length once the readings go
+         * back that far.
+         */
+        public long windowSpan;
+    }
+
+    private final int mGreenMax;
+    private final int mLine;
+    private final int mRedMin;
+    private final long mBucketMillis;
+    // per bucket and zone, the bucket of mBucket at mBucket % buckets
+    private final long[] mBuckets;
+    private final int mBucketCount;
+    private long mBucket = Long.MIN_VALUE;
+    // where mBucket is in mBuckets, and when the next one starts
+    private int mSlot;
+    private long mBucketEnd;
+    private long mFirstBucket;
+    private long mLastTime;
+    private boolean mHasLast;
+
+    private final AtomicInteger mSequence = new AtomicInteger();
+    // written by readers only for its ordering
+    private volatile int mFence;
+
+    // written only by onReading(), between the odd and the even sequence
+    private final long[] mSession = new long[ZONES];
+    private final long[] mWindow = new long[ZONES];
+    private long mWindowSpan;
+
+    /**
+     * @param greenMax     the highest green reading
+     * @param line         readings above it count as above the line
+     * @param redMin       the lowest red reading
+     * @param windowMillis length of the rolling window
+     * @param buckets      number of buckets it is divided into
+     */
+    public ZoneTimes(int greenMax, int line, int redMin, long windowMillis, int buckets) {
+        mGreenMax = greenMax;
+        mLine = line;
+        mRedMin = redMin;
+        mBucketCount = buckets;
+        mBucketMillis = Math.max(1, windowMillis / buckets);
+        mBuckets = new long[buckets * ZONES];
+    }
+
+    @Override
+    public void onReading(long time, int value) {
+        int sequence = mSequence.get();
+        mSequence.set(sequence + 1);
+
+        long hold = mHasLast ? BlockEncoder.hold(mLastTime, time) : 0;
+        mLastTime = time;
+        mHasLast = true;
+
+        if (mBucket == Long.MIN_VALUE) {
+            mBucket = time / mBucketMillis;
+            mFirstBucket = mBucket;
+            mSlot = (int) (mBucket % mBucketCount) * ZONES;
+            mBucketEnd = (mBucket + 1) * mBucketMillis;
+        }
+        // a step back in time stays in the current bucket
+        if (time >= mBucketEnd) advance(time / mBucketMillis);
+
+        int zone = value <= mGreenMax ? GREEN : value >= mRedMin ? RED : YELLOW;
+        int slot = mSlot;
+        mBuckets[slot + zone] += hold;
+        mSession[zone] += hold;
+        mWindow[zone] += hold;
+        if (value > mLine) {
+            mBuckets[slot + ABOVE_LINE] += hold;
+            mSession[ABOVE_LINE] += hold;
+            mWindow[ABOVE_LINE] += hold;
+        }
+        mWindowSpan = Math.min(mBucketCount * mBucketMillis, time - mFirstBucket * mBucketMillis);
+
+        mSequence.lazySet(sequence + 2);
+    }
+
+    /**
+     * Copy the times as of one reading; never blocks the writer.
+     *
+     * @return into
+     */
+    public Snapshot snapshot(Snapshot into) {
+        while (true) {
+            int sequence = mSequence.get();
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            for (int zone = 0; zone < ZONES; zone++) {
+                into.session[zone] = mSession[zone];
+                into.window[zone] = mWindow[zone];
+            }
+            into.windowSpan = mWindowSpan;
+            // the volatile store keeps the reads above from moving after
+            // the check below
+            mFence = sequence;
+            if (mSequence.get() == sequence) return into;
+        }
+    }
+
+    /**
+     * Move on to a later bucket, dropping the ones it replaces in the
+     * ring from the window.
+     */
+    private void advance(long bucket) {
+        long steps = Math.min(bucket - mBucket, mBucketCount);
+        for (long b = bucket - steps + 1; b <= bucket; b++) {
+            int slot = (int) (b % mBucketCount) * ZONES;
+            for (int zone = 0; zone < ZONES; zone++) {
+                mWindow[zone] -= mBuckets[slot + zone];
+                mBuckets[slot + zone] = 0;
+            }
+        }
+        mBucket = bucket;
+        mSlot = (int) (bucket % mBucketCount) * ZONES;
+        mBucketEnd = (bucket + 1) * mBucketMillis;
+    }
+}
@@ -0,0 +1,180 @@
+package com.chedima.btscaleviewer.tools;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.chedima.btscaleviewer.core.CaptureReader;
+import com.chedima.btscaleviewer.core.CaptureTransport;
+import com.chedima.btscaleviewer.core.CaptureWriter;
+import com.chedima.btscaleviewer.core.DeviceSession;
+import com.chedima.btscaleviewer.core.FrameDecoder;
+import com.chedima.btscaleviewer.core.ReadingListener;
+import com.chedima.btscaleviewer.core.ScaleTransport;
+import com.chedima.btscaleviewer.core.SyntheticScaleSource;
+import com.chedima.btscaleviewer.core.TcpTransport;
+
+/**
+ * Records and replays raw captures on a desktop JVM, compiled like
+ * PipelineBenchmark:
+ * <pre>
+ *   java -cp out com.chedima.btscaleviewer.tools.CaptureTool record FILE SECONDS [tcp://host:port]
+ *   java -cp out com.chedima.btscaleviewer.tools.CaptureTool replay FILE [SPEED]
+ *   java -cp out com.chedima.btscaleviewer.tools.CaptureTool bench FILE [SECONDS]
+ * </pre>
+ * <ul>
+ * <li>record: capture a TCP scale, or a noisy simulated one at 10 Hz</li>
+ * <li>replay: play the capture through a DeviceSession at SPEED times the
+ *     recorded pace (default 1) and print every reading</li>
+ * <li>bench: feed the capture through the frame decoder from memory over
+ *     and over, decoder throughput on real data</li>
+ * </ul>
+ */
+public class CaptureTool {
+
+    private static final ExecutorService sPool = Executors.newCachedThreadPool();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: CaptureTool record|replay|bench FILE [...]");
+            return;
+        }
+        File file = new File(args[1]);
+        try {
+            if ("record".equals(args[0])) {
+                ScaleTransport.Factory factory = args.length > 3
+                        ? TcpTransport.Factory.parse(args[3])
+                        : new SyntheticScaleSource.Factory("sim").rate(10).noise(2).garbage(0.05).corruption(0.02);
+                record(factory, file, args.length > 2 ? Integer.parseInt(args[2]) : 10);
+            } else if ("replay".equals(args[0])) {
+                replay(file, args.length > 2 ? Double.parseDouble(args[2]) : 1);
+            } else if ("bench".equals(args[0])) {
+                bench(file, args.length > 2 ? Integer.parseInt(args[2]) : 5);
+            } else {
+                System.err.println("unknown command " + args[0]);
+            }
+        } finally {
+            sPool.shutdownNow();
+        }
+    }
+
+    private static void record(ScaleTransport.Factory factory, File file, int seconds) throws InterruptedException {
+        CaptureWriter writer = new CaptureWriter(file);
+        DeviceSession session = new DeviceSession(factory, new PrintingCallback(null));
+        session.setChunkListener(writer);
+        session.connect(sPool);
+        Thread.sleep(seconds * 1000L);
+        session.stop();
+        writer.close();
+        writer.awaitClose(10000);
+        System.out.printf("recorded %s: %d bytes, %d chunks dropped%n", file, file.length(), writer.getDropped());
+    }
+
+    private static void replay(File file, double speed) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        DeviceSession session = new DeviceSession(new CaptureTransport.Factory(file, speed), new PrintingCallback(done));
+        session.addListener(new ReadingListener() {
+            public void onReading(long time, int value) {
+                System.out.printf("%tF %<tT.%<tL %3d%n", time, value);
+            }
+        });
+        session.connect(sPool);
+        done.await();
+        session.stop();
+    }
+
+    private static void bench(File file, int seconds) throws IOException {
+        // load the chunks back to back, with their boundaries
+        CaptureReader reader = new CaptureReader(new BufferedInputStream(new FileInputStream(file), 8192));
+        byte[] data = new byte[(int) file.length()];
+        int[] ends = new int[1024];
+        int chunks = 0, size = 0;
+        long duration;
+        try {
+            while (reader.next()) {
+                System.arraycopy(reader.getBuffer(), 0, data, size, reader.getLength());
+                size += reader.getLength();
+                if (chunks == ends.length) {
+                    int[] grown = new int[chunks * 2];
+                    System.arraycopy(ends, 0, grown, 0, chunks);
+                    ends = grown;
+                }
+                ends[chunks++] = size;
+            }
+            duration = reader.getTime() - reader.getStartTime();
+        } finally {
+            reader.close();
+        }
+        if (size == 0) {
+            System.out.println(file + ": empty capture");
+            return;
+        }
+
+        CountingListener counter = new CountingListener();
+        FrameDecoder decoder = new FrameDecoder();
+        feed(decoder, data, ends, chunks, counter);
+        long perPass = counter.count;
+        System.out.printf("%s: %d chunks, %d bytes, %d readings over %.1f s%n",
+                file, chunks, size, perPass, duration / 1e3);
+
+        long passes = 0;
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long now;
+        do {
+            feed(decoder, data, ends, chunks, counter);
+            passes++;
+        } while ((now = System.nanoTime()) < end);
+        double elapsed = (now - start) / 1e9;
+        System.out.printf("decoder: %.1f MB/s, %.0f readings/s, %.2f ns/byte%n",
+                passes * size / elapsed / 1e6, passes * perPass / elapsed, elapsed * 1e9 / (passes * size));
+    }
+
+    private static void feed(FrameDecoder decoder, byte[] data, int[] ends, int chunks, ReadingListener listener) {
+        int start = 0;
+        for (int i = 0; i < chunks; i++) {
+            decoder.feed(data, start, ends[i] - start, 0, listener);
+            start = ends[i];
+        }
+    }
+
+    private static class CountingListener implements ReadingListener {
+        long count;
+
+        public void onReading(long time, int value) {
+            count++;
+        }
+    }
+
+    private static class PrintingCallback implements DeviceSession.Callback {
+        private final CountDownLatch mDone;
+
+        PrintingCallback(CountDownLatch done) {
+            mDone = done;
+        }
+
+        public void onConnecting(DeviceSession session, long generation) {
+        }
+
+        public void onConnected(DeviceSession session, ScaleTransport transport) {
+            System.err.println(session.address + ": connected");
+        }
+
+        public void onConnectionFailed(DeviceSession session, IOException e) {
+            System.err.println(session.address + ": connection failed: " + e);
+            if (mDone != null) mDone.countDown();
+        }
+
+        public void onConnectionLost(DeviceSession session, IOException e) {
+            System.err.println(session.address + ": " + (e != null ? e : "end of stream"));
+            if (mDone != null) mDone.countDown();
+        }
+
+        public void onTimeout(DeviceSession session, long silence) {
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package com.chedima.btscaleviewer.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.chedima.btscaleviewer.core.ChunkListener;
+import com.chedima.btscaleviewer.core.ConnectionStateMachine;
+import com.chedima.btscaleviewer.core.DeviceSession;
+import com.chedima.btscaleviewer.core.ScaleTransport;
+
+/**
+ * Checks the connection lifecycle of DeviceSession against a fake
+ * transport on a desktop JVM, compiled like PipelineBenchmark:
+ * <pre>
+ *   java -cp out com.chedima.btscaleviewer.tools.ConnectionCheck [rounds]
+ * </pre>
+ * The transport blocks in open() until the check lets it through and in
+ * read() until the check feeds it or it is closed, and every connection runs on a thread of its
+ * own that the check joins, so each case sees the same interleaving every
+ * time:
+ * <ul>
+ * <li>stale: after a newer connect() the old attempt failing while it
+ *     opens, and the old connection being lost, are not reported</li>
+ * <li>stop: stop() while open() blocks ends in NONE with the transport
+ *     closed and nothing reported, whether open() then fails or
+ *     succeeds</li>
+ * <li>supersede: a newer connect() closes the transport of the connected
+ *     one before it returns</li>
+ * <li>timeout: a silent connection times out and is lost exactly once,
+ *     however often the watchdog checks it</li>
+ * <li>throwing: an open() that throws a RuntimeException fails the
+ *     attempt, and a listener that throws one loses the connection,
+ *     both ending in NONE with the transport closed</li>
+ * </ul>
+ * Throws on the first case that goes wrong.
+ */
+public class ConnectionCheck {
+
+    public static void main(String[] args) throws InterruptedException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        for (int round = 0; round < rounds; round++) {
+            stale();
+            stop(true);
+            stop(false);
+            supersede();
+            timeout();
+            throwing();
+        }
+        System.out.println("connection: " + rounds + " rounds of stale, stop, supersede, timeout and throwing ok");
+    }
+
+    private static void stale() throws InterruptedException {
+        GatedTransport first = new GatedTransport(true);
+        GatedTransport second = new GatedTransport(true);
+        GatedTransport third = new GatedTransport(true);
+        Harness h = new Harness(first, second, third);
+
+        h.session.connect(h.pool);
+        first.awaitOpening();
+        h.session.connect(h.pool);
+        h.pool.join(0);
+        check(first.isClosed(), "stale: first transport not closed");
+        check(h.failed.get() == 0, "stale: failure of a superseded attempt reported");
+        checkState(h.session, ConnectionStateMachine.STATE_CONNECTING, "stale");
+
+        second.awaitOpening();
+        second.release();
+        h.awaitConnected(1);
+        checkState(h.session, ConnectionStateMachine.STATE_CONNECTED, "stale");
+        h.session.connect(h.pool);
+        h.pool.join(1);
+        check(second.isClosed(), "stale: second transport not closed");
+        check(h.lost.get() == 0, "stale: loss of a superseded connection reported");
+        checkState(h.session, ConnectionStateMachine.STATE_CONNECTING, "stale");
+
+        h.session.stop();
+        h.pool.joinAll();
+        check(third.isClosed(), "stale: third transport not closed");
+        check(h.failed.get() == 0 && h.lost.get() == 0 && h.connected.get() == 1,
+                "stale: " + h.failed + " failed, " + h.lost + " lost, " + h.connected + " connected");
+    }
+
+    /**
+     * @param failOnClose whether closing makes the blocked open() fail, as
+     *                    a socket does, or open() still succeeds later
+     */
+    private static void stop(boolean failOnClose) throws InterruptedException {
+        GatedTransport transport = new GatedTransport(failOnClose);
+        Harness h = new Harness(transport);
+
+        h.session.connect(h.pool);
+        transport.awaitOpening();
+        h.session.stop();
+        check(transport.isClosed(), "stop: transport not closed by stop()");
+        checkState(h.session, ConnectionStateMachine.STATE_NONE, "stop");
+        transport.release();
+        h.pool.joinAll();
+        check(transport.isClosed(), "stop: transport open after the attempt ended");
+        checkState(h.session, ConnectionStateMachine.STATE_NONE, "stop");
+        check(h.failed.get() == 0 && h.connected.get() == 0 && h.lost.get() == 0,
+                "stop: " + h.failed + " failed, " + h.connected + " connected, " + h.lost + " lost");
+    }
+
+    private static void supersede() throws InterruptedException {
+        GatedTransport first = new GatedTransport(true);
+        GatedTransport second = new GatedTransport(true);
+        Harness h = new Harness(first, second);
+
+        h.session.connect(h.pool);
+        first.release();
+        h.awaitConnected(1);
+        h.session.connect(h.pool);
+        // closed by connect() itself, not by the reader finding out later
+        check(first.isClosed(), "supersede: old connection not cancelled by connect()");
+        h.pool.join(0);
+        check(h.lost.get() == 0, "supersede: superseded connection reported lost");
+        second.release();
+        h.awaitConnected(2);
+        checkState(h.session, ConnectionStateMachine.STATE_CONNECTED, "supersede");
+        check(!second.isClosed(), "supersede: new transport closed");
+
+        h.session.stop();
+        h.pool.joinAll();
+        check(second.isClosed() && h.lost.get() == 0, "supersede: stop() left the new connection");
+    }
+
+    private static void timeout() throws InterruptedException {
+        GatedTransport transport = new GatedTransport(true);
+        Harness h = new Harness(transport);
+
+        h.session.connect(h.pool);
+        transport.release();
+        h.awaitConnected(1);
+        long later = System.currentTimeMillis() + 10000;
+        h.session.checkTimeout(later, 1000);
+        h.pool.joinAll();
+        h.session.checkTimeout(later, 1000);
+        h.session.checkTimeout(later + 1000, 1000);
+        check(transport.isClosed(), "timeout: transport not closed");
+        check(h.timeouts.get() == 1, "timeout: " + h.timeouts + " timeouts");
+        check(h.lost.get() == 1, "timeout: " + h.lost + " losses");
+        checkState(h.session, ConnectionStateMachine.STATE_NONE, "timeout");
+    }
+
+    private static void throwing() throws InterruptedException {
+        GatedTransport transport = new GatedTransport(true);
+        transport.failOpen(new IllegalArgumentException("port out of range"));
+        Harness h = new Harness(transport);
+        h.session.connect(h.pool);
+        h.pool.joinAll();
+        check(transport.isClosed(), "throwing: transport not closed after open() threw");
+        check(h.failed.get() == 1, "throwing: " + h.failed + " failures reported for open()");
+        checkState(h.session, ConnectionStateMachine.STATE_NONE, "throwing");
+
+        transport = new GatedTransport(true);
+        h = new Harness(transport);
+        h.session.setChunkListener(new ChunkListener() {
+            @Override
+            public void onChunk(long time, byte[] buffer, int offset, int length) {
+                throw new IllegalStateException("listener failed");
+            }
+        });
+        h.session.connect(h.pool);
+        transport.release();
+        h.awaitConnected(1);
+        transport.feed(new byte[]{'1', '\n'});
+        h.pool.joinAll();
+        check(transport.isClosed(), "throwing: transport not closed after a listener threw");
+        check(h.lost.get() == 1, "throwing: " + h.lost + " losses reported for the listener");
+        checkState(h.session, ConnectionStateMachine.STATE_NONE, "throwing");
+    }
+
+    private static void checkState(DeviceSession session, int expected, String name) {
+        int state = session.getState();
+        check(state == expected, name + ": state " + ConnectionStateMachine.stateName(state)
+                + ", expected " + ConnectionStateMachine.stateName(expected));
+    }
+
+    private static void check(boolean condition, String error) {
+        if (!condition) throw new IllegalStateException(error);
+    }
+
+    /**
+     * A session over given transports, one per connect(), counting what
+     * it reports.
+     */
+    private static class Harness implements DeviceSession.Callback, ScaleTransport.Factory {
+        final ThreadPool pool = new ThreadPool();
+        final DeviceSession session;
+        final AtomicInteger connected = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger lost = new AtomicInteger();
+        final AtomicInteger timeouts = new AtomicInteger();
+        private final LinkedList<GatedTransport> mTransports = new LinkedList<GatedTransport>();
+
+        Harness(GatedTransport... transports) {
+            for (GatedTransport transport : transports) {
+                mTransports.add(transport);
+            }
+            session = new DeviceSession(this, this);
+        }
+
+        synchronized void awaitConnected(int count) throws InterruptedException {
+            while (connected.get() < count) wait();
+        }
+
+        @Override
+        public String getAddress() {
+            return "gated";
+        }
+
+        @Override
+        public String getName() {
+            return null;
+        }
+
+        @Override
+        public synchronized ScaleTransport create() {
+            return mTransports.removeFirst();
+        }
+
+        @Override
+        public void onConnecting(DeviceSession session, long generation) {
+        }
+
+        @Override
+        public synchronized void onConnected(DeviceSession session, ScaleTransport transport) {
+            connected.incrementAndGet();
+            notifyAll();
+        }
+
+        @Override
+        public void onConnectionFailed(DeviceSession session, IOException e) {
+            failed.incrementAndGet();
+        }
+
+        @Override
+        public void onConnectionLost(DeviceSession session, IOException e) {
+            lost.incrementAndGet();
+        }
+
+        @Override
+        public void onTimeout(DeviceSession session, long silence) {
+            timeouts.incrementAndGet();
+        }
+    }
+
+    /**
+     * Runs every task on a new thread and joins them on request.
+     */
+    private static class ThreadPool implements Executor {
+        private final List<Thread> mThreads = new ArrayList<Thread>();
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            Thread thread = new Thread(task);
+            mThreads.add(thread);
+            thread.start();
+        }
+
+        void join(int task) throws InterruptedException {
+            Thread thread;
+            synchronized (this) {
+                thread = mThreads.get(task);
+            }
+            thread.join(10000);
+            check(!thread.isAlive(), "connection " + task + " did not end");
+        }
+
+        void joinAll() throws InterruptedException {
+            int count;
+            synchronized (this) {
+                count = mThreads.size();
+            }
+            for (int task = 0; task < count; task++) {
+                join(task);
+            }
+        }
+    }
+
+    /**
+     * open() blocks until release() or, if asked to, close(); the stream
+     * returns what was fed and otherwise blocks until close(), then fails
+     * like a closed socket.
+     */
+    private static class GatedTransport implements ScaleTransport {
+        private final boolean mFailOnClose;
+        private RuntimeException mOpenError;
+        private byte[] mData = new byte[0];
+        private boolean mOpening;
+        private boolean mReleased;
+        private boolean mClosed;
+
+        GatedTransport(boolean failOnClose) {
+            mFailOnClose = failOnClose;
+        }
+
+        @Override
+        public synchronized InputStream open() throws IOException {
+            if (mOpenError != null) throw mOpenError;
+            mOpening = true;
+            notifyAll();
+            while (!mReleased && !(mFailOnClose && mClosed)) {
+                await();
+            }
+            if (!mReleased) throw new IOException("closed while opening");
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    return take(buffer, offset, length);
+                }
+            };
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        synchronized boolean isClosed() {
+            return mClosed;
+        }
+
+        synchronized void awaitOpening() throws InterruptedException {
+            while (!mOpening) wait();
+        }
+
+        synchronized void failOpen(RuntimeException error) {
+            mOpenError = error;
+        }
+
+        synchronized void feed(byte[] data) {
+            byte[] joined = new byte[mData.length + data.length];
+            System.arraycopy(mData, 0, joined, 0, mData.length);
+            System.arraycopy(data, 0, joined, mData.length, data.length);
+            mData = joined;
+            notifyAll();
+        }
+
+        synchronized void release() {
+            mReleased = true;
+            notifyAll();
+        }
+
+        private synchronized int take(byte[] buffer, int offset, int length) throws IOException {
+            while (!mClosed && mData.length == 0) {
+                await();
+            }
+            if (mClosed) throw new IOException("closed");
+            int n = Math.min(length, mData.length);
+            System.arraycopy(mData, 0, buffer, offset, n);
+            byte[] rest = new byte[mData.length - n];
+            System.arraycopy(mData, n, rest, 0, rest.length);
+            mData = rest;
+            return n;
+        }
+
+        private void await() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.chedima.btscaleviewer.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.chedima.btscaleviewer.core.SessionExporter;
+import com.chedima.btscaleviewer.core.SessionFile;
+
+/**
+ * Exports a recorded session on a desktop JVM, compiled like
+ * PipelineBenchmark:
+ * <pre>
+ *   java -cp out com.chedima.btscaleviewer.tools.ExportTool [options] SESSION.rec
+ *     -f csv|jsonl   format, csv by default
+ *     -from MILLIS   first time to export, milliseconds since the epoch
+ *     -to MILLIS     time to stop at, exclusive
+ *     -every N       only every n-th reading of every device
+ *     -o FILE        write to FILE instead of standard output
+ * </pre>
+ */
+public class ExportTool {
+
+    public static void main(String[] args) throws IOException {
+        SessionExporter.Format format = SessionExporter.Format.CSV;
+        long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+        int every = 1;
+        String output = null, input = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 < args.length && arg.startsWith("-")) {
+                String value = args[++i];
+                if ("-f".equals(arg)) {
+                    format = SessionExporter.Format.valueOf(value.toUpperCase());
+                } else if ("-from".equals(arg)) {
+                    from = Long.parseLong(value);
+                } else if ("-to".equals(arg)) {
+                    to = Long.parseLong(value);
+                } else if ("-every".equals(arg)) {
+                    every = Integer.parseInt(value);
+                } else if ("-o".equals(arg)) {
+                    output = value;
+                } else {
+                    usage("unknown option " + arg);
+                    return;
+                }
+            } else {
+                input = arg;
+            }
+        }
+        if (input == null) {
+            usage("no session given");
+            return;
+        }
+
+        SessionFile session = SessionFile.open(new File(input));
+        OutputStream out = output != null ? new FileOutputStream(output) : System.out;
+        long start = System.nanoTime();
+        try {
+            long rows = new SessionExporter(session).format(format).range(from, to).every(every).export(out);
+            System.err.printf("%d rows in %.2f s%n", rows, (System.nanoTime() - start) / 1e9);
+        } finally {
+            if (out != System.out) out.close();
+        }
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("usage: ExportTool [-f csv|jsonl] [-from MILLIS] [-to MILLIS] [-every N] [-o FILE] SESSION.rec");
+    }
+}
@@ -0,0 +1,778 @@
+package com.chedima.btscaleviewer.tools;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.chedima.btscaleviewer.core.AlarmEngine;
+import com.chedima.btscaleviewer.core.AlarmRule;
+import com.chedima.btscaleviewer.core.BlockEncoder;
+import com.chedima.btscaleviewer.core.DeviceSession;
+import com.chedima.btscaleviewer.core.DisplayFilter;
+import com.chedima.btscaleviewer.core.LiveAnalysis;
+import com.chedima.btscaleviewer.core.ReadingListener;
+import com.chedima.btscaleviewer.core.RunningStats;
+import com.chedima.btscaleviewer.core.ScaleTransport;
+import com.chedima.btscaleviewer.core.SessionReader;
+import com.chedima.btscaleviewer.core.SessionRecorder;
+import com.chedima.btscaleviewer.core.Settings;
+import com.chedima.btscaleviewer.core.SpectrumAnalyzer;
+import com.chedima.btscaleviewer.core.SpikeDetector;
+import com.chedima.btscaleviewer.core.SyntheticScaleSource;
+import com.chedima.btscaleviewer.core.Trend;
+import com.chedima.btscaleviewer.core.ZoneTimes;
+
+/**
+ * Drives DeviceSessions from SyntheticScaleSources on a desktop JVM.
+ * The tools package is not part of the Android build, compile it together
+ * with the core package:
+ * <pre>
+ *   javac -d out src/com/chedima/btscaleviewer/core/*.java src/com/chedima/btscaleviewer/tools/*.java
+ *   java -cp out com.chedima.btscaleviewer.tools.PipelineBenchmark throughput|scaling|storm|record|stats|spikes|alarms|trend|spectrum [seconds]
+ * </pre>
+ * <ul>
+ * <li>throughput: one device generating as fast as it is read, with some
+ *     garbage and corruption; the maximum sustainable frame rate</li>
+ * <li>scaling: 1, 4 and 8 devices at 1 kHz each; CPU per reading and
+ *     latency from the frame being due to the listener seeing it</li>
+ * <li>storm: one device at 10 Hz going silent for 1.5 s every 5 s,
+ *     reconnected 1.5 s after every loss like BluetoothViewer does</li>
+ * <li>record: 8 devices at 1250 Hz, 10k readings/s in total, recorded by
+ *     a SessionRecorder, then as fast as one device generates; readings
+ *     dropped and CPU, checked against the file read back</li>
+ * <li>stats: RunningStats fed as fast as possible, alone and with another
+ *     thread taking snapshots all the time; time per reading, snapshots
+ *     taken, and the result checked against a plain recomputation; the
+ *     same for ZoneTimes</li>
+ * <li>spikes: 4 devices at 1 kHz with a spike every 500 frames, each
+ *     through a LiveAnalysis on its reader thread; spikes found, missed
+ *     and false, and latency from the spike frame being due to the
+ *     detector reporting it; then SpikeDetector alone as fast as
+ *     possible</li>
+ * <li>alarms: a scripted device checked against the times its alarms
+ *     must be raised, escalated and cleared at; then 48 rules on 8
+ *     devices fed as fast as possible, time per reading and rule and
+ *     bytes allocated by the evaluation</li>
+ * <li>trend: Trend fed a noisy ramp at irregular times, bursts and gaps
+ *     included, as fast as possible; time per reading and the fit checked
+ *     against a plain least-squares fit of the last window</li>
+ * <li>spectrum: 4 devices at 1 kHz oscillating at 37 to 187 Hz, analysed every 100 ms on a
+ *     minimum priority thread that moves the notch of a DisplayFilter
+ *     like BluetoothViewerService does; frequencies found, time per
+ *     analysis, oscillation left after the filter, and reader latency
+ *     with and without the analysis</li>
+ * </ul>
+ */
+public class PipelineBenchmark {
+
+    // same as BluetoothViewerService
+    private static final int MAX_SESSIONS = 8;
+    private static final long READ_TIMEOUT = 1000;
+    private static final long WATCHDOG_PERIOD = 250;
+    private static final long RECONNECT_DELAY = 1500;
+
+    private final ExecutorService mPool = Executors.newFixedThreadPool(MAX_SESSIONS);
+    private final ScheduledExecutorService mScheduler = Executors.newScheduledThreadPool(1);
+
+    public static void main(String[] args) throws Exception {
+        String scenario = args.length > 0 ? args[0] : "throughput";
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        PipelineBenchmark benchmark = new PipelineBenchmark();
+        try {
+            if ("throughput".equals(scenario)) {
+                benchmark.throughput(seconds);
+            } else if ("scaling".equals(scenario)) {
+                for (int devices : new int[]{ 1, 4, 8 }) {
+                    benchmark.scaling(devices, 1000, seconds);
+                }
+            } else if ("storm".equals(scenario)) {
+                benchmark.storm(Math.max(seconds, 30));
+            } else if ("record".equals(scenario)) {
+                benchmark.record(8, 1250, seconds);
+                benchmark.record(1, 0, seconds);
+            } else if ("stats".equals(scenario)) {
+                stats(false);
+                stats(true);
+                zones();
+            } else if ("spikes".equals(scenario)) {
+                benchmark.spikes(4, 1000, seconds);
+                spikeCost();
+            } else if ("alarms".equals(scenario)) {
+                alarmScript();
+                alarmCost();
+            } else if ("spectrum".equals(scenario)) {
+                benchmark.spectrum(4, 1000, seconds, false);
+                benchmark.spectrum(4, 1000, seconds, true);
+            } else if ("trend".equals(scenario)) {
+                trend();
+            } else {
+                System.err.println("unknown scenario " + scenario);
+            }
+        } finally {
+            benchmark.mPool.shutdownNow();
+            benchmark.mScheduler.shutdownNow();
+        }
+    }
+
+    private void throughput(int seconds) throws InterruptedException {
+        SyntheticScaleSource.Factory factory = new SyntheticScaleSource.Factory("max")
+                .rate(0).noise(2).garbage(0.01).corruption(0.01);
+        final AtomicLong readings = new AtomicLong();
+        DeviceSession session = new DeviceSession(factory, new QuietCallback());
+        session.addListener(new ReadingListener() {
+            public void onReading(long time, int value) {
+                readings.lazySet(readings.get() + 1);
+            }
+        });
+
+        long cpu = totalCpuNanos();
+        long start = System.nanoTime();
+        session.connect(mPool);
+        Thread.sleep(seconds * 1000L);
+        long count = readings.get();
+        long elapsed = System.nanoTime() - start;
+        cpu = totalCpuNanos() - cpu;
+        session.stop();
+
+        System.out.printf("throughput: %d readings in %.1f s = %.0f readings/s (%.1f MB/s raw), %.1f ns CPU/reading%n",
+                count, elapsed / 1e9, count * 1e9 / elapsed, count * 3 * 1e3 / elapsed, (double) cpu / count);
+    }
+
+    private void scaling(int devices, double rate, int seconds) throws InterruptedException {
+        DeviceSession[] sessions = new DeviceSession[devices];
+        LatencyListener[] listeners = new LatencyListener[devices];
+        for (int i = 0; i < devices; i++) {
+            SyntheticScaleSource.Factory factory = new SyntheticScaleSource.Factory("dev" + i)
+                    .rate(rate).seed(i).noise(2);
+            sessions[i] = new DeviceSession(factory, new QuietCallback());
+            listeners[i] = new LatencyListener(factory, seconds * (int) rate + 1000);
+            sessions[i].addListener(listeners[i]);
+        }
+
+        long cpu = totalCpuNanos();
+        long start = System.nanoTime();
+        for (DeviceSession session : sessions) {
+            session.connect(mPool);
+        }
+        Thread.sleep(seconds * 1000L);
+        for (DeviceSession session : sessions) {
+            session.stop();
+        }
+        long elapsed = System.nanoTime() - start;
+        cpu = totalCpuNanos() - cpu;
+
+        long count = 0;
+        long[] all = new long[0];
+        for (LatencyListener l : listeners) {
+            count += l.mCount;
+            int n = (int) Math.min(l.mCount, l.mLatencies.length);
+            long[] merged = new long[all.length + n];
+            System.arraycopy(all, 0, merged, 0, all.length);
+            System.arraycopy(l.mLatencies, 0, merged, all.length, n);
+            all = merged;
+        }
+        Arrays.sort(all);
+        System.out.printf("scaling: %d device(s) x %.0f Hz: %d readings, CPU %.1f%% of one core, %.0f ns CPU/reading, "
+                        + "latency p50 %.2f ms p99 %.2f ms max %.2f ms%n",
+                devices, rate, count, cpu * 100.0 / elapsed, (double) cpu / Math.max(count, 1),
+                percentile(all, 0.5) / 1e6, percentile(all, 0.99) / 1e6, percentile(all, 1) / 1e6);
+    }
+
+    private void record(int devices, double rate, int seconds) throws IOException, InterruptedException {
+        File file = File.createTempFile("benchmark", ".rec");
+        file.deleteOnExit();
+        SessionRecorder recorder = new SessionRecorder(file, System.currentTimeMillis());
+        final AtomicLong readings = new AtomicLong();
+        ReadingListener counter = new ReadingListener() {
+            public void onReading(long time, int value) {
+                readings.incrementAndGet();
+            }
+        };
+        DeviceSession[] sessions = new DeviceSession[devices];
+        for (int i = 0; i < devices; i++) {
+            SyntheticScaleSource.Factory factory = new SyntheticScaleSource.Factory("dev" + i)
+                    .rate(rate).seed(i).noise(2);
+            sessions[i] = new DeviceSession(factory, new QuietCallback());
+            sessions[i].addListener(recorder.listenerFor(sessions[i].address));
+            sessions[i].addListener(counter);
+        }
+
+        long cpu = totalCpuNanos();
+        long start = System.nanoTime();
+        for (DeviceSession session : sessions) {
+            session.connect(mPool);
+        }
+        Thread.sleep(seconds * 1000L);
+        for (DeviceSession session : sessions) {
+            session.stop();
+        }
+        long elapsed = System.nanoTime() - start;
+        cpu = totalCpuNanos() - cpu;
+        recorder.close();
+        recorder.awaitClose(10000);
+
+        long recorded = 0;
+        SessionReader reader = new SessionReader(new BufferedInputStream(new FileInputStream(file), 65536));
+        try {
+            while (reader.next()) recorded++;
+        } finally {
+            reader.close();
+        }
+        System.out.printf("record: %d device(s) x %s: %.0f readings/s, %d recorded, %d dropped, "
+                        + "%.1f MB, CPU %.1f%% of one core%n",
+                devices, rate > 0 ? String.format("%.0f Hz", rate) : "max",
+                readings.get() * 1e9 / elapsed, recorded, recorder.getDropped(),
+                file.length() / 1e6, cpu * 100.0 / elapsed);
+        file.delete();
+    }
+
+    private void spikes(int devices, double rate, int seconds) throws InterruptedException {
+        int every = 500;
+        DeviceSession[] sessions = new DeviceSession[devices];
+        SpikeListener[] listeners = new SpikeListener[devices];
+        for (int i = 0; i < devices; i++) {
+            SyntheticScaleSource.Factory factory = new SyntheticScaleSource.Factory("dev" + i)
+                    .rate(rate).seed(i).level(60).drift(0.05).noise(2).spikes(every, 30);
+            sessions[i] = new DeviceSession(factory, new QuietCallback());
+            listeners[i] = new SpikeListener(factory, every, seconds * (int) rate / every + 100);
+            sessions[i].addListener(listeners[i]);
+        }
+        for (DeviceSession session : sessions) {
+            session.connect(mPool);
+        }
+        Thread.sleep(seconds * 1000L);
+        for (DeviceSession session : sessions) {
+            session.stop();
+        }
+
+        long readings = 0, injected = 0, found = 0, wrong = 0;
+        long[] all = new long[0];
+        for (SpikeListener l : listeners) {
+            readings += l.mCount;
+            injected += l.mCount / every;
+            found += l.mFound;
+            wrong += l.mWrong;
+            int n = (int) Math.min(l.mFound, l.mLatencies.length);
+            long[] merged = new long[all.length + n];
+            System.arraycopy(all, 0, merged, 0, all.length);
+            System.arraycopy(l.mLatencies, 0, merged, all.length, n);
+            all = merged;
+        }
+        Arrays.sort(all);
+        System.out.printf("spikes: %d device(s) x %.0f Hz: %d readings, %d spikes injected, %d found, %d missed, "
+                        + "%d false; latency p50 %.2f ms p99 %.2f ms max %.2f ms%n",
+                devices, rate, readings, injected, found, injected - found, wrong,
+                percentile(all, 0.5) / 1e6, percentile(all, 0.99) / 1e6, percentile(all, 1) / 1e6);
+    }
+
+    private static void spikeCost() {
+        final long[] spikes = new long[1];
+        SpikeDetector detector = new SpikeDetector(LiveAnalysis.SPIKE_WINDOW, LiveAnalysis.SPIKE_SCORE,
+                LiveAnalysis.SPIKE_MIN_DEVIATION, new SpikeDetector.Listener() {
+            public void onSpike(long time, int value, int median) {
+                spikes[0]++;
+            }
+        });
+        // a noisy ramp at 100 Hz with a spike every 1000 readings
+        int count = 20 * 1000 * 1000;
+        int[] values = new int[count];
+        Random random = new Random(3);
+        for (int i = 0; i < count; i++) {
+            int spike = i % 1000 == 999 ? 40 : 0;
+            values[i] = Math.max(0, Math.min(253, (i / 1000) % 200 + random.nextInt(11) - 5 + spike));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            detector.onReading(i * 10L, values[i]);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("spike detector: %.1f ns/reading, %d spikes of %d injected%n",
+                (double) elapsed / count, spikes[0], count / 1000);
+    }
+
+    private static void alarmScript() {
+        List<AlarmRule> rules = new ArrayList<AlarmRule>();
+        rules.add(AlarmRule.above(80, 5000, 2000, 60000, 30000));
+        rules.add(AlarmRule.crossings(80, 3, 60000, 10000, 60000, 0));
+        rules.add(AlarmRule.silence(10000, 60000, 0));
+        final StringBuilder log = new StringBuilder();
+        AlarmEngine engine = new AlarmEngine(rules, new AlarmEngine.Listener() {
+            public void onAlarm(String address, int index, AlarmRule rule, int level, long time) {
+                log.append(' ').append(index).append('@').append(time / 100).append('L').append(level);
+            }
+
+            public void onAlarmCleared(String address, int index, AlarmRule rule, long time) {
+                log.append(' ').append(index).append('@').append(time / 100).append('C');
+            }
+        });
+        AlarmEngine.Device device = engine.add("script", 0);
+        // 10 Hz: 90 from 1 s to 70 s with dips to 70 at 3 s and 5 s, then
+        // 50, then silence from 80 s to 100 s; ticks every 250 ms
+        long tick = 0;
+        for (long time = 0; time <= 120000; time += 100) {
+            while (tick + 250 <= time) device.tick(tick += 250);
+            if (time >= 80000 && time < 100000) continue;
+            boolean dip = time == 3000 || time == 5000;
+            device.onReading(time, time >= 1000 && time < 70000 && !dip ? 90 : 50);
+        }
+        // in tenths of a second: 3 crossings by 5.1 s, they age out at
+        // 61.1 and clear 10 s later; above raised 5 s after the last dip,
+        // escalated 30 s later and cleared 2 s after 70 s; silent from
+        // 79.9 s, raised on the tick at 90 and cleared by the reading at 100
+        String expected = " 1@51L1 0@101L1 0@401L2 1@711C 0@720C 2@900L1 2@1000C";
+        System.out.println("alarms: " + (expected.equals(log.toString()) ? "script ok" : "script FAILED:" + log
+                + " expected" + expected));
+    }
+
+    private static void alarmCost() {
+        List<AlarmRule> rules = new ArrayList<AlarmRule>();
+        for (int i = 0; i < 16; i++) {
+            rules.add(AlarmRule.above(60 + i * 4, 1000 + i * 500, 2000, 60000, 30000));
+            rules.add(AlarmRule.crossings(60 + i * 4, 3 + i, 60000, 10000, 60000, 30000));
+            rules.add(AlarmRule.silence(2000 + i * 1000, 60000, 30000));
+        }
+        final long[] events = new long[1];
+        AlarmEngine engine = new AlarmEngine(rules, new AlarmEngine.Listener() {
+            public void onAlarm(String address, int index, AlarmRule rule, int level, long time) {
+                events[0]++;
+            }
+
+            public void onAlarmCleared(String address, int index, AlarmRule rule, long time) {
+                events[0]++;
+            }
+        });
+        int devices = 8;
+        AlarmEngine.Device[] states = new AlarmEngine.Device[devices];
+        for (int i = 0; i < devices; i++) {
+            states[i] = engine.add("dev" + i, 0);
+        }
+        // a slow noisy wave through all zones at 100 Hz per device
+        int count = 1000 * 1000;
+        int[] values = new int[count];
+        Random random = new Random(4);
+        for (int i = 0; i < count; i++) {
+            values[i] = (int) (80 + 60 * Math.sin(i / 3000.0)) + random.nextInt(21) - 10;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        // what asking costs, so only the evaluation is left
+        long overhead = -threads.getThreadAllocatedBytes(thread) + threads.getThreadAllocatedBytes(thread);
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long time = i * 10L;
+            for (int d = 0; d < devices; d++) {
+                states[d].onReading(time, values[(i + d * 1000) % count]);
+            }
+            if (i % 25 == 0) {
+                for (int d = 0; d < devices; d++) {
+                    states[d].tick(time);
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated - overhead;
+        long readings = (long) count * devices;
+        System.out.printf("alarms: %d rules x %d devices: %.1f ns/reading, %.2f ns/rule, %d alarms raised, "
+                        + "escalated or cleared, %d bytes allocated%n",
+                rules.size(), devices, (double) elapsed / readings, (double) elapsed / readings / rules.size(),
+                events[0], allocated);
+    }
+
+    private void spectrum(int devices, double rate, int seconds, final boolean analyze) throws InterruptedException {
+        DeviceSession[] sessions = new DeviceSession[devices];
+        LatencyListener[] latencies = new LatencyListener[devices];
+        final SpectrumAnalyzer[] spectra = new SpectrumAnalyzer[devices];
+        final DisplayFilter[] filters = new DisplayFilter[devices];
+        final RunningStats[] raw = new RunningStats[devices];
+        final RunningStats[] filtered = new RunningStats[devices];
+        double[] hz = new double[devices];
+        for (int i = 0; i < devices; i++) {
+            hz[i] = 37 + 50 * i;
+            SyntheticScaleSource.Factory factory = new SyntheticScaleSource.Factory("dev" + i)
+                    .rate(rate).seed(i).noise(1).oscillation(hz[i], 6);
+            sessions[i] = new DeviceSession(factory, new QuietCallback());
+            latencies[i] = new LatencyListener(factory, seconds * (int) rate + 1000);
+            spectra[i] = new SpectrumAnalyzer();
+            raw[i] = new RunningStats(1000, 4096);
+            filtered[i] = new RunningStats(1000, 4096);
+            filters[i] = new DisplayFilter(filtered[i], 1, 0);
+            sessions[i].addListener(latencies[i]);
+            sessions[i].addListener(spectra[i]);
+            sessions[i].addListener(raw[i]);
+            sessions[i].addListener(filters[i]);
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong analyses = new AtomicLong();
+        final AtomicLong analysisNanos = new AtomicLong();
+        Thread background = new Thread(new Runnable() {
+            public void run() {
+                SpectrumAnalyzer.Snapshot snapshot = new SpectrumAnalyzer.Snapshot();
+                while (!done.get()) {
+                    for (int i = 0; i < spectra.length; i++) {
+                        long start = System.nanoTime();
+                        if (!spectra[i].analyze()) continue;
+                        analysisNanos.addAndGet(System.nanoTime() - start);
+                        analyses.incrementAndGet();
+                        spectra[i].snapshot(snapshot);
+                        filters[i].setNotch(snapshot.amplitude >= 2 ? snapshot.frequency : 0);
+                    }
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        background.setPriority(Thread.MIN_PRIORITY);
+        if (analyze) background.start();
+
+        for (DeviceSession session : sessions) {
+            session.connect(mPool);
+        }
+        Thread.sleep(seconds * 1000L);
+        for (DeviceSession session : sessions) {
+            session.stop();
+        }
+        done.set(true);
+        if (analyze) background.join();
+
+        long[] all = new long[0];
+        StringBuilder found = new StringBuilder();
+        RunningStats.Snapshot before = new RunningStats.Snapshot();
+        RunningStats.Snapshot after = new RunningStats.Snapshot();
+        SpectrumAnalyzer.Snapshot snapshot = new SpectrumAnalyzer.Snapshot();
+        for (int i = 0; i < devices; i++) {
+            LatencyListener l = latencies[i];
+            int n = (int) Math.min(l.mCount, l.mLatencies.length);
+            long[] merged = new long[all.length + n];
+            System.arraycopy(all, 0, merged, 0, all.length);
+            System.arraycopy(l.mLatencies, 0, merged, all.length, n);
+            all = merged;
+            if (!analyze) continue;
+            spectra[i].snapshot(snapshot);
+            raw[i].snapshot(before);
+            filtered[i].snapshot(after);
+            found.append(String.format(" %.0f Hz: found %.2f Hz amplitude %.2f, sd %.2f -> %.2f;", hz[i],
+                    snapshot.frequency, snapshot.amplitude, before.windowStdDev, after.windowStdDev));
+        }
+        Arrays.sort(all);
+        System.out.printf("spectrum%s: %d device(s) x %.0f Hz: latency p50 %.2f ms p99 %.2f ms max %.2f ms%s%n",
+                analyze ? " analysed" : " off", devices, rate, percentile(all, 0.5) / 1e6, percentile(all, 0.99) / 1e6,
+                percentile(all, 1) / 1e6, analyze ? String.format(", %d analyses of %.1f us;%s", analyses.get(),
+                        analysisNanos.get() / 1e3 / Math.max(1, analyses.get()), found) : "");
+    }
+
+    private static void trend() {
+        long window = LiveAnalysis.TREND_WINDOW;
+        Trend trend = new Trend(window, LiveAnalysis.TREND_CAPACITY, 80, 101);
+        // a ramp of 0.5 per second, readings 5 to 30 ms apart with a burst
+        // of 20 at once and a gap of 3 s now and then
+        int count = 10 * 1000 * 1000;
+        long[] times = new long[count];
+        int[] values = new int[count];
+        Random random = new Random(5);
+        long time = 1400000000000L;
+        for (int i = 0; i < count; i++) {
+            if (i % 5000 == 0) {
+                time += 3000;
+            } else if (i % 1000 >= 20) {
+                time += 5 + random.nextInt(26);
+            }
+            times[i] = time;
+            values[i] = (int) Math.max(0, Math.min(253, Math.round(20 + (time / 2000) % 100 + random.nextGaussian() * 2)));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            trend.onReading(times[i], values[i]);
+        }
+        long elapsed = System.nanoTime() - start;
+        Trend.Snapshot snapshot = trend.snapshot(new Trend.Snapshot());
+
+        // the same window fitted plainly in doubles, newest first until the
+        // window or the ring runs out
+        long last = times[count - 1];
+        double n = 0, st = 0, sv = 0, stt = 0, stv = 0;
+        for (int i = count - 1; i >= 0 && times[i] > last - window && n < LiveAnalysis.TREND_CAPACITY; i--) {
+            double t = (times[i] - last) / 1000.0;
+            n++;
+            st += t;
+            sv += values[i];
+            stt += t * t;
+            stv += t * values[i];
+        }
+        double slope = (n * stv - st * sv) / (n * stt - st * st);
+        double level = sv / n - slope * st / n;
+        System.out.printf("trend: %.1f ns/reading; %d readings slope %.6f/s level %.4f, to 80 %d ms to 101 %d ms "
+                        + "(expected %.0f slope %.6f/s level %.4f, to 80 %.0f ms to 101 %.0f ms)%n",
+                (double) elapsed / count, snapshot.count, snapshot.slope, snapshot.level, snapshot.toLine,
+                snapshot.toRed, n, slope, level, (80.5 - level) / slope * 1000, (100.5 - level) / slope * 1000);
+    }
+
+    private static void stats(boolean contended) throws InterruptedException {
+        final long window = 60 * 1000;
+        final RunningStats stats = new RunningStats(window, 4096);
+        final AtomicLong snapshots = new AtomicLong();
+        final AtomicInteger torn = new AtomicInteger();
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                RunningStats.Snapshot snapshot = new RunningStats.Snapshot();
+                long n = 0;
+                while (!done.get()) {
+                    stats.snapshot(snapshot);
+                    // a torn copy mixes readings of different times
+                    if (snapshot.count > 0 && (snapshot.windowMin > snapshot.windowMean
+                            || snapshot.windowMean > snapshot.windowMax || snapshot.windowCount > 4096
+                            || snapshot.min > snapshot.mean || snapshot.mean > snapshot.max)) {
+                        torn.incrementAndGet();
+                    }
+                    n++;
+                }
+                snapshots.set(n);
+            }
+        });
+        if (contended) reader.start();
+
+        // a noisy ramp at 100 Hz
+        int count = 20 * 1000 * 1000;
+        int[] values = new int[count];
+        Random random = new Random(1);
+        for (int i = 0; i < count; i++) {
+            values[i] = Math.max(0, Math.min(253, (i / 1000) % 254 + random.nextInt(11) - 5));
+        }
+        long total = 0, totalSquares = 0;
+        for (int value : values) {
+            total += value;
+            totalSquares += (long) value * value;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            stats.onReading(i * 10L, values[i]);
+        }
+        long elapsed = System.nanoTime() - start;
+        done.set(true);
+        if (contended) reader.join();
+
+        // 60 s at 100 Hz are more than the ring holds, the window is its last 4096 readings
+        int n = 4096;
+        long sum = 0, squares = 0;
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int i = count - n; i < count; i++) {
+            sum += values[i];
+            squares += (long) values[i] * values[i];
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+        }
+        RunningStats.Snapshot snapshot = stats.snapshot(new RunningStats.Snapshot());
+        double mean = (double) sum / n;
+        double stdDev = Math.sqrt((squares - n * mean * mean) / (n - 1));
+        double totalMean = (double) total / count;
+        double totalStdDev = Math.sqrt((totalSquares - count * totalMean * totalMean) / (count - 1));
+        System.out.printf("stats%s: %.1f ns/reading, %d snapshots, %d torn; window %d readings %d..%d mean %.3f sd %.3f "
+                        + "(expected %d %d..%d mean %.3f sd %.3f); session mean %.6f sd %.6f (expected %.6f %.6f)%n",
+                contended ? " with snapshots" : "", (double) elapsed / count, snapshots.get(), torn.get(),
+                snapshot.windowCount, snapshot.windowMin, snapshot.windowMax, snapshot.windowMean, snapshot.windowStdDev,
+                n, min, max, mean, stdDev, snapshot.mean, snapshot.stdDev, totalMean, totalStdDev);
+    }
+
+    private static void zones() {
+        Settings settings = new Settings();
+        long window = LiveAnalysis.ZONE_WINDOW;
+        ZoneTimes zones = new ZoneTimes(settings.greenMax, settings.line, settings.redMin, window, LiveAnalysis.ZONE_BUCKETS);
+        // 100 Hz through all zones, with a gap of 5 s every 100000 readings
+        int count = 20 * 1000 * 1000;
+        long[] times = new long[count];
+        int[] values = new int[count];
+        Random random = new Random(2);
+        long time = 0;
+        for (int i = 0; i < count; i++) {
+            time += i % 100000 == 0 ? 5000 : 10;
+            times[i] = time;
+            values[i] = Math.max(0, Math.min(253, (i / 500) % 254 + random.nextInt(11) - 5));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            zones.onReading(times[i], values[i]);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long[] session = new long[ZoneTimes.ZONES];
+        long[] inWindow = new long[ZoneTimes.ZONES];
+        long bucket = window / LiveAnalysis.ZONE_BUCKETS;
+        // the window starts with the oldest bucket still in the ring
+        long windowStart = (times[count - 1] / bucket - LiveAnalysis.ZONE_BUCKETS + 1) * bucket;
+        for (int i = 1; i < count; i++) {
+            long hold = BlockEncoder.hold(times[i - 1], times[i]);
+            int value = values[i];
+            int zone = value <= settings.greenMax ? ZoneTimes.GREEN : value >= settings.redMin ? ZoneTimes.RED : ZoneTimes.YELLOW;
+            session[zone] += hold;
+            if (value > settings.line) session[ZoneTimes.ABOVE_LINE] += hold;
+            if (times[i] >= windowStart) {
+                inWindow[zone] += hold;
+                if (value > settings.line) inWindow[ZoneTimes.ABOVE_LINE] += hold;
+            }
+        }
+        ZoneTimes.Snapshot snapshot = zones.snapshot(new ZoneTimes.Snapshot());
+        System.out.printf("zones: %.1f ns/reading; session %s (expected %s), window %s (expected %s)%n",
+                (double) elapsed / count, Arrays.toString(snapshot.session), Arrays.toString(session),
+                Arrays.toString(snapshot.window), Arrays.toString(inWindow));
+    }
+
+    private void storm(int seconds) throws InterruptedException {
+        SyntheticScaleSource.Factory factory = new SyntheticScaleSource.Factory("storm")
+                .rate(10).silence(5000, 1500);
+        final AtomicInteger connects = new AtomicInteger();
+        final AtomicInteger losses = new AtomicInteger();
+        final long start = System.currentTimeMillis();
+        final DeviceSession[] holder = new DeviceSession[1];
+        final DeviceSession session = new DeviceSession(factory, new QuietCallback() {
+            @Override
+            public void onConnected(DeviceSession session, ScaleTransport transport) {
+                connects.incrementAndGet();
+                log(start, "connected");
+            }
+
+            @Override
+            public void onConnectionLost(DeviceSession session, IOException e) {
+                losses.incrementAndGet();
+                log(start, "lost, reconnecting in " + RECONNECT_DELAY + " ms");
+                mScheduler.schedule(new Runnable() {
+                    public void run() {
+                        holder[0].connect(mPool);
+                    }
+                }, RECONNECT_DELAY, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public void onTimeout(DeviceSession session, long silence) {
+                log(start, "no data for " + silence + " ms");
+            }
+        });
+        holder[0] = session;
+        startWatchdog(session);
+        session.connect(mPool);
+        Thread.sleep(seconds * 1000L);
+        session.stop();
+        System.out.printf("storm: %d connects, %d losses in %d s%n", connects.get(), losses.get(), seconds);
+    }
+
+    private void startWatchdog(final DeviceSession session) {
+        mScheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                session.checkTimeout(System.currentTimeMillis(), READ_TIMEOUT);
+            }
+        }, WATCHDOG_PERIOD, WATCHDOG_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    private static void log(long start, String message) {
+        System.out.printf("%8.3f %s%n", (System.currentTimeMillis() - start) / 1e3, message);
+    }
+
+    private static long totalCpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long id : threads.getAllThreadIds()) {
+            long cpu = threads.getThreadCpuTime(id);
+            if (cpu > 0) total += cpu;
+        }
+        return total;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        return sorted[(int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)))];
+    }
+
+    /**
+     * Frames are sent clean and in order, so the n-th reading is frame n
+     * and its due time is known.
+     */
+    private static class LatencyListener implements ReadingListener {
+        private final SyntheticScaleSource.Factory mFactory;
+        final long[] mLatencies;
+        volatile long mCount;
+
+        LatencyListener(SyntheticScaleSource.Factory factory, int capacity) {
+            mFactory = factory;
+            mLatencies = new long[capacity];
+        }
+
+        public void onReading(long time, int value) {
+            SyntheticScaleSource source = mFactory.getLast();
+            long latency = System.nanoTime() - source.getStartNanos() - source.dueNanos(mCount);
+            if (mCount < mLatencies.length) mLatencies[(int) mCount] = latency;
+            mCount++;
+        }
+    }
+
+    /**
+     * Runs a LiveAnalysis and checks its spikes against the frames the
+     * source raised; clean frames in order, so the n-th reading is frame
+     * n, like LatencyListener.
+     */
+    private static class SpikeListener implements ReadingListener, SpikeDetector.Listener {
+        private final SyntheticScaleSource.Factory mFactory;
+        private final int mEvery;
+        private final LiveAnalysis mAnalysis = new LiveAnalysis(new Settings(), this);
+        final long[] mLatencies;
+        volatile long mCount;
+        volatile long mFound;
+        volatile long mWrong;
+
+        SpikeListener(SyntheticScaleSource.Factory factory, int every, int capacity) {
+            mFactory = factory;
+            mEvery = every;
+            mLatencies = new long[capacity];
+        }
+
+        public void onReading(long time, int value) {
+            mAnalysis.onReading(time, value);
+            mCount++;
+        }
+
+        public void onSpike(long time, int value, int median) {
+            SyntheticScaleSource source = mFactory.getLast();
+            long latency = System.nanoTime() - source.getStartNanos() - source.dueNanos(mCount);
+            if (mCount % mEvery != mEvery - 1) {
+                mWrong++;
+                return;
+            }
+            if (mFound < mLatencies.length) mLatencies[(int) mFound] = latency;
+            mFound++;
+        }
+    }
+
+    private static class QuietCallback implements DeviceSession.Callback {
+        public void onConnecting(DeviceSession session, long generation) {
+        }
+
+        public void onConnected(DeviceSession session, ScaleTransport transport) {
+        }
+
+        public void onConnectionFailed(DeviceSession session, IOException e) {
+            System.err.println(session.address + ": connection failed: " + e);
+        }
+
+        public void onConnectionLost(DeviceSession session, IOException e) {
+        }
+
+        public void onTimeout(DeviceSession session, long silence) {
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.chedima.btscaleviewer.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.chedima.btscaleviewer.core.BatchAnalytics;
+import com.chedima.btscaleviewer.core.SessionCompactor;
+import com.chedima.btscaleviewer.core.Settings;
+import com.chedima.btscaleviewer.core.Summary;
+import com.chedima.btscaleviewer.core.ZoneTimes;
+
+/**
+ * Reports on many recorded sessions at once with BatchAnalytics, on a
+ * desktop JVM, compiled like PipelineBenchmark:
+ * <pre>
+ *   java -cp out com.chedima.btscaleviewer.tools.ReportTool [options] SESSION.rec|DIR...
+ *     -from MILLIS   first time to report on, milliseconds since the epoch
+ *     -to MILLIS     time to stop at, exclusive
+ *     -threads N     threads to use, the number of processors by default
+ *     -green N -line N -red N
+ *                    the zones of the gauge, those of Settings by default
+ * </pre>
+ * A directory stands for the sessions in it. Prints a line per device and
+ * one for all of them: readings, minimum, mean, maximum, quantiles and the
+ * minutes in each zone.
+ */
+public class ReportTool {
+
+    public static void main(String[] args) throws InterruptedException {
+        Settings settings = new Settings();
+        long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 < args.length && arg.startsWith("-")) {
+                String value = args[++i];
+                if ("-from".equals(arg)) {
+                    from = Long.parseLong(value);
+                } else if ("-to".equals(arg)) {
+                    to = Long.parseLong(value);
+                } else if ("-threads".equals(arg)) {
+                    threads = Integer.parseInt(value);
+                } else if ("-green".equals(arg)) {
+                    settings.greenMax = Integer.parseInt(value);
+                } else if ("-line".equals(arg)) {
+                    settings.line = Integer.parseInt(value);
+                } else if ("-red".equals(arg)) {
+                    settings.redMin = Integer.parseInt(value);
+                } else {
+                    usage("unknown option " + arg);
+                    return;
+                }
+            } else {
+                File file = new File(arg);
+                if (file.isDirectory()) {
+                    File[] sessions = file.listFiles();
+                    if (sessions == null) continue;
+                    Arrays.sort(sessions);
+                    for (File session : sessions) {
+                        if (session.getName().endsWith(SessionCompactor.RAW_SUFFIX)) files.add(session);
+                    }
+                } else {
+                    files.add(file);
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            usage("no sessions given");
+            return;
+        }
+
+        long start = System.nanoTime();
+        BatchAnalytics.Report report = new BatchAnalytics(settings).range(from, to).threads(threads).run(files);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("device\treadings\tmin\tmean\tmax\tp50\tp95\tp99\tgreen min\tyellow min\tred min\tabove line min");
+        for (Map.Entry<String, BatchAnalytics.Aggregate> entry : report.devices.entrySet()) {
+            print(entry.getKey(), entry.getValue());
+        }
+        print("all", report.total);
+        for (File file : report.failed) {
+            System.err.println("not a session: " + file);
+        }
+        System.err.printf("%d sessions, %d readings in %.2f s on %d threads%n",
+                report.sessions, report.total.summary.getCount(), seconds, threads);
+    }
+
+    private static void print(String name, BatchAnalytics.Aggregate aggregate) {
+        Summary summary = aggregate.summary;
+        if (summary.getCount() == 0) {
+            System.out.println(name + "\t0");
+            return;
+        }
+        long[] zones = aggregate.zones;
+        System.out.printf("%s\t%d\t%d\t%.1f\t%d\t%d\t%d\t%d\t%.1f\t%.1f\t%.1f\t%.1f%n", name,
+                summary.getCount(), summary.getMin(), summary.getMean(), summary.getMax(),
+                aggregate.histogram.quantile(0.5), aggregate.histogram.quantile(0.95), aggregate.histogram.quantile(0.99),
+                zones[ZoneTimes.GREEN] / 60000.0, zones[ZoneTimes.YELLOW] / 60000.0,
+                zones[ZoneTimes.RED] / 60000.0, zones[ZoneTimes.ABOVE_LINE] / 60000.0);
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("usage: ReportTool [-from MILLIS] [-to MILLIS] [-threads N] [-green N] [-line N] [-red N] SESSION.rec|DIR...");
+    }
+}
@@ -0,0 +1,406 @@
+package com.chedima.btscaleviewer.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.chedima.btscaleviewer.core.Settings;
+import com.chedima.btscaleviewer.core.SettingsStore;
+
+/**
+ * Compares SettingsStore with the SerializeObject way of keeping state on
+ * a desktop JVM, compiled like PipelineBenchmark:
+ * <pre>
+ *   java -cp out com.chedima.btscaleviewer.tools.SettingsBenchmark [rounds]
+ * </pre>
+ * SerializeObject needs a Context and android.util.Base64, neither of
+ * which is on a desktop JVM, so its pipeline is repeated here step by
+ * step with Base64 streams that write the same bytes: ObjectOutputStream into a byte[], Base64 with line
+ * breaks into a second buffer, a String, an OutputStreamWriter; reading
+ * goes line by line into a StringBuffer, getBytes(), Base64 and
+ * ObjectInputStream. writeObject() and readObject(), which stream through
+ * Base64 with no whole copies, are repeated the same way; keep them in
+ * step with SerializeObject, which is built with the app. The same
+ * content is stored in every way, as the HashMap SerializeObject would
+ * be given, with a small and a large calibration table. SettingsStore
+ * also syncs and renames, which the old path never did, so its save time
+ * is shown with and without. Allocation is per operation on the calling
+ * thread, the memory a load or save churns through.
+ */
+public class SettingsBenchmark {
+
+    // same as SerializeObject
+    private static final int BUFFER_SIZE = 8192;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        for (int tableSize : new int[]{ 254, 65536 }) {
+            Settings settings = sample(tableSize);
+            HashMap<String, Serializable> legacy = toLegacy(settings);
+            File legacyFile = new File(dir, "benchmark-settings.ser");
+            File streamFile = new File(dir, "benchmark-settings.b64");
+            File storeFile = new File(dir, "benchmark-settings.dat");
+
+            long[] legacySave = new long[rounds], legacyLoad = new long[rounds];
+            long[] streamSave = new long[rounds], streamLoad = new long[rounds];
+            long[] storeSave = new long[rounds], storeWrite = new long[rounds], storeLoad = new long[rounds];
+            long legacySaveBytes = 0, legacyLoadBytes = 0, streamSaveBytes = 0, streamLoadBytes = 0;
+            for (int i = 0; i < rounds; i++) {
+                long a = allocatedBytes();
+                long t = System.nanoTime();
+                writeSettings(legacyFile, objectToString(legacy));
+                legacySave[i] = System.nanoTime() - t;
+                legacySaveBytes += allocatedBytes() - a;
+                a = allocatedBytes();
+                t = System.nanoTime();
+                Object read = stringToObject(readSettings(legacyFile));
+                legacyLoad[i] = System.nanoTime() - t;
+                legacyLoadBytes += allocatedBytes() - a;
+                if (!(read instanceof HashMap)) throw new IllegalStateException("legacy round trip");
+
+                a = allocatedBytes();
+                t = System.nanoTime();
+                writeObject(streamFile, legacy);
+                streamSave[i] = System.nanoTime() - t;
+                streamSaveBytes += allocatedBytes() - a;
+                a = allocatedBytes();
+                t = System.nanoTime();
+                read = readObject(streamFile);
+                streamLoad[i] = System.nanoTime() - t;
+                streamLoadBytes += allocatedBytes() - a;
+                if (!Arrays.equals((float[]) ((HashMap<?, ?>) read).get("table"), settings.table)) {
+                    throw new IllegalStateException("streaming round trip");
+                }
+
+                t = System.nanoTime();
+                SettingsStore.save(settings, storeFile);
+                storeSave[i] = System.nanoTime() - t;
+                t = System.nanoTime();
+                FileOutputStream out = new FileOutputStream(storeFile);
+                out.write(SettingsStore.toBytes(settings));
+                out.close();
+                storeWrite[i] = System.nanoTime() - t;
+                t = System.nanoTime();
+                Settings loaded = SettingsStore.load(storeFile);
+                storeLoad[i] = System.nanoTime() - t;
+                if (!Arrays.equals(loaded.table, settings.table) || loaded.devices.size() != settings.devices.size()) {
+                    throw new IllegalStateException("store round trip");
+                }
+            }
+            System.out.printf("table %5d: SerializeObject %7d bytes, save %6.3f ms (%7.0f kB allocated), load %6.3f ms (%7.0f kB)%n",
+                    tableSize, legacyFile.length(), median(legacySave), legacySaveBytes / 1e3 / rounds,
+                    median(legacyLoad), legacyLoadBytes / 1e3 / rounds);
+            System.out.printf("table %5d: streaming       %7d bytes, save %6.3f ms (%7.0f kB allocated), load %6.3f ms (%7.0f kB)%n",
+                    tableSize, streamFile.length(), median(streamSave), streamSaveBytes / 1e3 / rounds,
+                    median(streamLoad), streamLoadBytes / 1e3 / rounds);
+            System.out.printf("table %5d: SettingsStore   %7d bytes, save %6.3f ms (%6.3f ms without sync and rename), load %6.3f ms%n",
+                    tableSize, storeFile.length(), median(storeSave), median(storeWrite), median(storeLoad));
+            legacyFile.delete();
+            streamFile.delete();
+            storeFile.delete();
+        }
+    }
+
+    private static Settings sample(int tableSize) {
+        Settings settings = new Settings();
+        for (int i = 0; i < 8; i++) {
+            settings.devices.add(new Settings.Device("00:11:22:33:44:" + (10 + i), i % 3, 1400000000000L + i, i < 4));
+        }
+        settings.smoothing = 0.3f;
+        settings.notch = true;
+        settings.table = new float[tableSize];
+        for (int i = 0; i < tableSize; i++) {
+            settings.table[i] = i * 0.98f + 0.5f;
+        }
+        return settings;
+    }
+
+    private static HashMap<String, Serializable> toLegacy(Settings settings) {
+        ArrayList<HashMap<String, Serializable>> devices = new ArrayList<HashMap<String, Serializable>>();
+        for (Settings.Device device : settings.devices) {
+            HashMap<String, Serializable> d = new HashMap<String, Serializable>();
+            d.put("address", device.address);
+            d.put("strategy", device.strategy);
+            d.put("lastConnected", device.lastConnected);
+            d.put("active", device.active);
+            devices.add(d);
+        }
+        HashMap<String, Serializable> map = new HashMap<String, Serializable>();
+        map.put("devices", devices);
+        map.put("greenMax", settings.greenMax);
+        map.put("line", settings.line);
+        map.put("redMin", settings.redMin);
+        map.put("smoothing", settings.smoothing);
+        map.put("notch", settings.notch);
+        map.put("notchHz", settings.notchHz);
+        map.put("offset", settings.offset);
+        map.put("scale", settings.scale);
+        map.put("table", settings.table);
+        return map;
+    }
+
+    // SerializeObject.objectToString()
+    private static String objectToString(Serializable object) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ObjectOutputStream(out).writeObject(object);
+        byte[] data = out.toByteArray();
+        out.close();
+        return new String(Base64.encode(data));
+    }
+
+    // SerializeObject.stringToObject()
+    private static Object stringToObject(String encoded) throws IOException, ClassNotFoundException {
+        return new ObjectInputStream(new ByteArrayInputStream(Base64.decode(encoded.getBytes()))).readObject();
+    }
+
+    // SerializeObject.WriteSettings()
+    private static void writeSettings(File file, String data) throws IOException {
+        OutputStreamWriter osw = new OutputStreamWriter(new FileOutputStream(file));
+        try {
+            osw.write(data);
+            osw.flush();
+        } finally {
+            osw.close();
+        }
+    }
+
+    // SerializeObject.ReadSettings()
+    private static String readSettings(File file) throws IOException {
+        StringBuffer dataBuffer = new StringBuffer();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                dataBuffer.append(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return dataBuffer.toString();
+    }
+
+    // SerializeObject.writeObject(), without the sync and rename
+    private static void writeObject(File file, Serializable object) throws IOException {
+        ObjectOutputStream oos = new ObjectOutputStream(new Base64.Encoder(
+                new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)));
+        try {
+            oos.writeObject(object);
+        } finally {
+            oos.close();
+        }
+    }
+
+    // SerializeObject.readObject()
+    private static Object readObject(File file) throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new Base64.Decoder(
+                new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)));
+        try {
+            return ois.readObject();
+        } finally {
+            ois.close();
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static double median(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2] / 1e6;
+    }
+
+    /**
+     * android.util.Base64 with DEFAULT flags: padded, a line break after
+     * every 76 characters and at the end.
+     */
+    static class Base64 {
+        private static final byte[] ALPHABET =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+        private static final int LINE_GROUPS = 19;
+
+        static byte[] encode(byte[] data) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4 / 3 + data.length / 57 + 8);
+            int groups = 0;
+            for (int i = 0; i < data.length; i += 3) {
+                int n = (data[i] & 0xFF) << 16;
+                if (i + 1 < data.length) n |= (data[i + 1] & 0xFF) << 8;
+                if (i + 2 < data.length) n |= data[i + 2] & 0xFF;
+                out.write(ALPHABET[n >>> 18 & 63]);
+                out.write(ALPHABET[n >>> 12 & 63]);
+                out.write(i + 1 < data.length ? ALPHABET[n >>> 6 & 63] : '=');
+                out.write(i + 2 < data.length ? ALPHABET[n & 63] : '=');
+                if (++groups == LINE_GROUPS) {
+                    out.write('\n');
+                    groups = 0;
+                }
+            }
+            if (groups > 0) out.write('\n');
+            return out.toByteArray();
+        }
+
+        private static final int[] VALUES = new int[128];
+
+        static {
+            Arrays.fill(VALUES, -1);
+            for (int i = 0; i < ALPHABET.length; i++) {
+                VALUES[ALPHABET[i]] = i;
+            }
+        }
+
+        static byte[] decode(byte[] text) {
+            int[] values = VALUES;
+            ByteArrayOutputStream out = new ByteArrayOutputStream(text.length * 3 / 4);
+            int n = 0, bits = 0;
+            for (byte b : text) {
+                int v = b >= 0 ? values[b] : -1;
+                if (v < 0) continue;
+                n = n << 6 | v;
+                bits += 6;
+                if (bits >= 8) {
+                    bits -= 8;
+                    out.write(n >>> bits & 0xFF);
+                }
+            }
+            return out.toByteArray();
+        }
+
+        /**
+         * android.util.Base64OutputStream: encodes as it goes, the last
+         * group and line break are written by close().
+         */
+        static class Encoder extends FilterOutputStream {
+            private final byte[] mLine = new byte[LINE_GROUPS * 4 + 1];
+            private int mLineLength;
+            private int mGroup, mGroupLength;
+
+            Encoder(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                mGroup = mGroup << 8 | (b & 0xFF);
+                if (++mGroupLength == 3) {
+                    putGroup(4);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                for (int i = off; i < off + len; i++) {
+                    write(b[i]);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (mGroupLength > 0) {
+                    int chars = mGroupLength + 1;
+                    mGroup <<= 8 * (3 - mGroupLength);
+                    putGroup(chars);
+                }
+                if (mLineLength > 0) {
+                    mLine[mLineLength++] = '\n';
+                    out.write(mLine, 0, mLineLength);
+                }
+                super.close();
+            }
+
+            private void putGroup(int chars) throws IOException {
+                byte[] line = mLine;
+                int n = mGroup;
+                for (int i = 0; i < 4; i++) {
+                    line[mLineLength++] = i < chars ? ALPHABET[n >>> 18 - 6 * i & 63] : (byte) '=';
+                }
+                mGroup = 0;
+                mGroupLength = 0;
+                if (mLineLength == LINE_GROUPS * 4) {
+                    line[mLineLength++] = '\n';
+                    out.write(line, 0, mLineLength);
+                    mLineLength = 0;
+                }
+            }
+        }
+
+        /**
+         * android.util.Base64InputStream: decodes a buffer of text at a
+         * time, skipping line breaks.
+         */
+        static class Decoder extends FilterInputStream {
+            private final byte[] mText = new byte[BUFFER_SIZE];
+            private final byte[] mData = new byte[BUFFER_SIZE];
+            private int mPos, mEnd;
+            private int mBits, mValue;
+
+            Decoder(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (mPos == mEnd && !fill()) return -1;
+                return mData[mPos++] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                if (mPos == mEnd && !fill()) return -1;
+                int n = Math.min(len, mEnd - mPos);
+                System.arraycopy(mData, mPos, b, off, n);
+                mPos += n;
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return mEnd - mPos;
+            }
+
+            private boolean fill() throws IOException {
+                int end = 0;
+                while (end == 0) {
+                    int n = in.read(mText, 0, mText.length);
+                    if (n < 0) return false;
+                    for (int i = 0; i < n; i++) {
+                        byte c = mText[i];
+                        int v = c >= 0 ? VALUES[c] : -1;
+                        if (v < 0) continue;
+                        mValue = mValue << 6 | v;
+                        mBits += 6;
+                        if (mBits >= 8) {
+                            mBits -= 8;
+                            mData[end++] = (byte) (mValue >>> mBits);
+                        }
+                    }
+                }
+                mPos = 0;
+                mEnd = end;
+                return true;
+            }
+        }
+    }
+}
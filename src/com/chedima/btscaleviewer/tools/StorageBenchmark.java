@@ -0,0 +1,732 @@
+package com.chedima.btscaleviewer.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.chedima.btscaleviewer.core.BatchAnalytics;
+import com.chedima.btscaleviewer.core.BlockDecoder;
+import com.chedima.btscaleviewer.core.BlockEncoder;
+import com.chedima.btscaleviewer.core.Histogram;
+import com.chedima.btscaleviewer.core.ReadingListener;
+import com.chedima.btscaleviewer.core.RollupFile;
+import com.chedima.btscaleviewer.core.SessionCompactor;
+import com.chedima.btscaleviewer.core.SessionExporter;
+import com.chedima.btscaleviewer.core.SessionFile;
+import com.chedima.btscaleviewer.core.SessionRecorder;
+import com.chedima.btscaleviewer.core.Settings;
+import com.chedima.btscaleviewer.core.Summary;
+import com.chedima.btscaleviewer.core.ZoneTimes;
+
+/**
+ * Measures the session storage format on a desktop JVM, compiled like
+ * PipelineBenchmark:
+ * <pre>
+ *   java -cp out com.chedima.btscaleviewer.tools.StorageBenchmark codec|seek|month|export|retention|quantiles|report [seconds]
+ * </pre>
+ * <ul>
+ * <li>codec: compression against 12-byte fixed records and encode and
+ *     decode cost per reading, for a stable weight, a noisy one, a slow
+ *     ramp and a 1 kHz scale whose readings arrive in chunks</li>
+ * <li>seek: a day of 4 devices at 10 Hz recorded with SessionRecorder;
+ *     opening it with and without the index footer, random seeks and
+ *     sequential reading through SessionFile, checked against the data</li>
+ * <li>month: 30 days of one device at 10 Hz, rising above the 80 line
+ *     every afternoon and dropping out now and then; range summaries of an
+ *     hour, a day and the month against decoding everything</li>
+ * <li>export: 10M readings of 4 devices streamed to CSV and JSON lines
+ *     files, rows and heap checked</li>
+ * <li>retention: 4 devices at 10 Hz recorded into hourly files for 30
+ *     days, compacted every simulated day with SessionCompactor keeping 2
+ *     days raw and 7 days per second; disk use per day, compaction cost
+ *     and rollups checked against the sessions they replace</li>
+ * <li>quantiles: a day of 4 devices at 10 Hz recorded into hourly files;
+ *     the histograms the recorder stores checked against the readings,
+ *     read against decoding every reading, and a month of hourly
+ *     histograms of every device, as the catalog stores them, merged</li>
+ * <li>report: a week of 4 devices at 10 Hz recorded into hourly files;
+ *     BatchAnalytics over all of them and over three days of them on 1, 2,
+ *     4... threads up to twice the processors, checked against decoding
+ *     every session in turn</li>
+ * </ul>
+ */
+public class StorageBenchmark {
+
+    private static final int READINGS = 1000000;
+    private static final int FIXED_RECORD_SIZE = 12;
+    private static final int MAX_PAYLOAD = 4096;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String scenario = args.length > 0 ? args[0] : "codec";
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        if ("codec".equals(scenario)) {
+            codec("stable 10 Hz", 100, 2, 50, 0.3, 0, 1, seconds);
+            codec("noisy 10 Hz", 100, 2, 50, 2, 0, 1, seconds);
+            codec("ramp 10 Hz", 100, 2, 20, 0.3, 0.02, 1, seconds);
+            codec("stable 1 kHz, 8 per chunk", 1, 0, 50, 0.3, 0, 8, seconds);
+        } else if ("seek".equals(scenario)) {
+            seek(4, 24 * 3600 * 10, seconds);
+        } else if ("month".equals(scenario)) {
+            month(30, seconds);
+        } else if ("export".equals(scenario)) {
+            export(4, 2500000);
+        } else if ("retention".equals(scenario)) {
+            retention(4, 30);
+        } else if ("quantiles".equals(scenario)) {
+            quantiles(4, seconds);
+        } else if ("report".equals(scenario)) {
+            report(4, 7, seconds);
+        } else {
+            System.err.println("unknown scenario " + scenario);
+        }
+    }
+
+    /**
+     * @param period  milliseconds between readings
+     * @param jitter  standard deviation of the arrival time
+     * @param slope   value change per reading
+     * @param chunk   readings arriving together with one time stamp
+     */
+    private static void codec(String name, long period, double jitter, double level, double noise,
+                              double slope, int chunk, int seconds) {
+        long[] times = new long[READINGS];
+        int[] values = new int[READINGS];
+        generate(times, values, period, jitter, level, noise, slope, chunk);
+
+        byte[] out = new byte[READINGS * FIXED_RECORD_SIZE];
+        BlockEncoder encoder = new BlockEncoder(MAX_PAYLOAD);
+        int size = encode(encoder, times, values, out);
+        checkRoundTrip(out, size, times, values);
+
+        long passes = 0;
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long now;
+        do {
+            encode(encoder, times, values, out);
+            passes++;
+        } while ((now = System.nanoTime()) < end);
+        double encodeNanos = (double) (now - start) / (passes * READINGS);
+
+        ByteBuffer buffer = ByteBuffer.wrap(out, 0, size);
+        BlockDecoder decoder = new BlockDecoder();
+        long sum = 0;
+        passes = 0;
+        start = System.nanoTime();
+        end = start + seconds * 1000000000L;
+        do {
+            sum += decode(decoder, buffer, size);
+            passes++;
+        } while ((now = System.nanoTime()) < end);
+        double decodeNanos = (double) (now - start) / (passes * READINGS);
+
+        System.out.printf("%-26s %5.2f bytes/reading, %5.1fx smaller, encode %5.1f ns/reading, decode %5.1f ns/reading (%d)%n",
+                name, (double) size / READINGS, (double) READINGS * FIXED_RECORD_SIZE / size,
+                encodeNanos, decodeNanos, sum % 10);
+    }
+
+    private static void seek(int devices, int readings, int seconds) throws IOException, InterruptedException {
+        long[][] times = new long[devices][readings];
+        int[][] values = new int[devices][readings];
+        for (int d = 0; d < devices; d++) {
+            generate(times[d], values[d], 100, 2, 40 + 10 * d, 0.5, 0, 1);
+        }
+        File file = File.createTempFile("benchmark", ".rec");
+        file.deleteOnExit();
+        record(file, times, values);
+
+        // the last of a few rounds, warm
+        SessionFile session = null;
+        double openMillis = 0, scanMillis = 0;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            session = SessionFile.open(file);
+            openMillis = (System.nanoTime() - start) / 1e6;
+            ByteBuffer withoutFooter = map(file);
+            withoutFooter.limit(withoutFooter.limit() - 8);
+            start = System.nanoTime();
+            new SessionFile(withoutFooter);
+            scanMillis = (System.nanoTime() - start) / 1e6;
+        }
+        int blocks = 0;
+        for (int d = 0; d < session.getDeviceCount(); d++) {
+            blocks += session.getBlockCount(d);
+        }
+        System.out.printf("seek: %d readings in %d blocks, %.1f MB; open %.2f ms from footer, %.2f ms by scanning%n",
+                devices * readings, blocks, file.length() / 1e6, openMillis, scanMillis);
+
+        // random seeks, each checked against the generated data
+        Random random = new Random(2);
+        SessionFile.Cursor[] cursors = new SessionFile.Cursor[devices];
+        for (int d = 0; d < devices; d++) {
+            cursors[d] = session.cursor(session.getDevice("dev" + d));
+        }
+        long first = times[0][0], span = times[0][readings - 1] - first;
+        long seeks = 0;
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long now;
+        do {
+            int d = random.nextInt(devices);
+            long time = first + (long) (random.nextDouble() * span);
+            cursors[d].seek(time);
+            if (seeks % 1024 == 0) checkSeek(cursors[d], times[d], values[d], time);
+            seeks++;
+        } while ((now = System.nanoTime()) < end);
+        double seekMicros = (now - start) / 1e3 / seeks;
+
+        // sequential, the whole day of one device, checked once and then timed
+        SessionFile.Cursor cursor = cursors[0];
+        cursor.seek(Long.MIN_VALUE);
+        int i = 0;
+        while (cursor.next()) {
+            if (cursor.getTime() != times[0][i] || cursor.getValue() != values[0][i]) {
+                throw new IllegalStateException("mismatch at reading " + i);
+            }
+            i++;
+        }
+        if (i != readings) throw new IllegalStateException(i + " readings of " + readings);
+        long sum = 0;
+        int passes = 0;
+        start = System.nanoTime();
+        end = start + seconds * 1000000000L;
+        do {
+            cursor.seek(Long.MIN_VALUE);
+            while (cursor.next()) sum += cursor.getValue();
+            passes++;
+        } while ((now = System.nanoTime()) < end);
+        double iterateNanos = (double) (now - start) / ((long) passes * readings);
+        System.out.printf("seek: %.2f us per random seek, %.1f ns per reading sequentially (%d)%n",
+                seekMicros, iterateNanos, sum % 10);
+        file.delete();
+    }
+
+    private static void month(int days, int seconds) throws IOException, InterruptedException {
+        File file = File.createTempFile("benchmark", ".rec");
+        file.deleteOnExit();
+        long day = 24 * 3600 * 1000L;
+        long first = 1400000000000L;
+        long last = first + days * day;
+
+        long start = System.nanoTime();
+        SessionRecorder recorder = new SessionRecorder(file, first);
+        recorder.setBlocking(true);
+        ReadingListener listener = recorder.listenerFor("dev0");
+        Random random = new Random(3);
+        long readings = 0;
+        for (long time = first; time < last; time += 100) {
+            // five minutes of silence about every six hours
+            if (random.nextInt(6 * 36000) == 0) time += 5 * 60 * 1000;
+            double phase = 2 * Math.PI * ((time - first) % day) / day;
+            long value = Math.round(60 + 30 * Math.sin(phase) + random.nextGaussian());
+            listener.onReading(time + random.nextInt(3), (int) Math.max(0, Math.min(253, value)));
+            readings++;
+        }
+        recorder.close();
+        recorder.awaitClose(60000);
+        double recordSeconds = (System.nanoTime() - start) / 1e9;
+
+        SessionFile session = SessionFile.open(file);
+        int device = session.getDevice("dev0");
+        System.out.printf("month: %d readings in %d blocks, %.1f MB, recorded in %.1f s%n",
+                readings, session.getBlockCount(device), file.length() / 1e6, recordSeconds);
+
+        Summary summary = new Summary();
+        Summary expected = new Summary();
+        long[] spans = { 3600 * 1000L, day, last - first };
+        String[] names = { "hour", "day", "month" };
+        for (int i = 0; i < spans.length; i++) {
+            // a few checked against decoding everything, which is also timed
+            double scanMillis = 0;
+            for (int k = 0; k < 3; k++) {
+                long from = first + (long) (random.nextDouble() * (last - first - spans[i]));
+                long t = System.nanoTime();
+                scan(session, device, from, from + spans[i], expected);
+                scanMillis = (System.nanoTime() - t) / 1e6;
+                session.summarize(device, from, from + spans[i], summary);
+                if (!summary.toString().equals(expected.toString())) {
+                    throw new IllegalStateException(names[i] + " from " + from + ": " + summary + ", expected " + expected);
+                }
+            }
+
+            long queries = 0;
+            long t = System.nanoTime();
+            long end = t + seconds * 1000000000L / spans.length;
+            long now;
+            do {
+                long from = first + (long) (random.nextDouble() * (last - first - spans[i]));
+                session.summarize(device, from, from + spans[i], summary);
+                queries++;
+            } while ((now = System.nanoTime()) < end);
+            System.out.printf("month: %-5s summary %8.2f us, decoding from the start %7.1f ms (%s)%n",
+                    names[i], (now - t) / 1e3 / queries, scanMillis, summary);
+        }
+        file.delete();
+    }
+
+    private static void export(int devices, int readings) throws IOException, InterruptedException {
+        long[][] times = new long[devices][readings];
+        int[][] values = new int[devices][readings];
+        for (int d = 0; d < devices; d++) {
+            generate(times[d], values[d], 100, 2, 40 + 10 * d, 0.5, 0, 1);
+        }
+        File file = File.createTempFile("benchmark", ".rec");
+        file.deleteOnExit();
+        record(file, times, values);
+        times = null;
+        values = null;
+        System.gc();
+
+        SessionFile session = SessionFile.open(file);
+        File out = File.createTempFile("benchmark", ".txt");
+        out.deleteOnExit();
+        for (SessionExporter.Format format : SessionExporter.Format.values()) {
+            Runtime runtime = Runtime.getRuntime();
+            long heap = runtime.totalMemory() - runtime.freeMemory();
+            long start = System.nanoTime();
+            OutputStream stream = new FileOutputStream(out);
+            long rows;
+            try {
+                rows = new SessionExporter(session).format(format).export(stream);
+            } finally {
+                stream.close();
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            heap = runtime.totalMemory() - runtime.freeMemory() - heap;
+            if (rows != (long) devices * readings) throw new IllegalStateException(rows + " rows");
+            System.out.printf("export: %-5s %d rows in %.2f s, %.1f M rows/s, %.0f MB, heap grew %.1f MB%n",
+                    format, rows, elapsed, rows / elapsed / 1e6, out.length() / 1e6, heap / 1e6);
+        }
+        out.delete();
+        file.delete();
+    }
+
+    private static void retention(int devices, int days) throws IOException, InterruptedException {
+        File dir = File.createTempFile("benchmark", ".dir");
+        dir.delete();
+        dir.mkdirs();
+        long hour = 3600 * 1000L;
+        long day = 24 * hour;
+        long first = 1400000000000L;
+        SessionCompactor compactor = new SessionCompactor(2 * day, 7 * day, 365 * day);
+        compactor.setDutyCycle(1);
+        Random random = new Random(4);
+        double[] levels = new double[devices];
+        Arrays.fill(levels, 60);
+        long readings = 0;
+        double compactSeconds = 0;
+        boolean checked = false;
+        for (int d = 1; d <= days; d++) {
+            for (int h = 0; h < 24; h++) {
+                long start = first + (d - 1) * day + h * hour;
+                File file = new File(dir, String.format("%05d%s", (d - 1) * 24 + h, SessionCompactor.RAW_SUFFIX));
+                SessionRecorder recorder = new SessionRecorder(file, start);
+                recorder.setBlocking(true);
+                ReadingListener[] listeners = new ReadingListener[devices];
+                for (int k = 0; k < devices; k++) {
+                    listeners[k] = recorder.listenerFor("dev" + k);
+                }
+                for (long time = start; time < start + hour; time += 100) {
+                    for (int k = 0; k < devices; k++) {
+                        levels[k] = Math.max(0, Math.min(253, levels[k] + random.nextGaussian() * 0.05));
+                        long value = Math.round(levels[k] + random.nextGaussian() * 0.5);
+                        listeners[k].onReading(time + k, (int) Math.max(0, Math.min(253, value)));
+                    }
+                    readings += devices;
+                }
+                recorder.close();
+                recorder.awaitClose(60000);
+                file.setLastModified(start + hour);
+            }
+            long now = first + d * day;
+            // the oldest session about to be rolled up, summarized before it goes
+            File oldest = new File(dir, String.format("%05d%s", (d - 3) * 24, SessionCompactor.RAW_SUFFIX));
+            Summary[] before = null;
+            if (!checked && oldest.exists()) {
+                SessionFile session = SessionFile.open(oldest);
+                before = new Summary[session.getDeviceCount()];
+                for (int k = 0; k < before.length; k++) {
+                    before[k] = session.summarize(session.getDevice("dev" + k), Long.MIN_VALUE, Long.MAX_VALUE, new Summary());
+                }
+            }
+            long t = System.nanoTime();
+            compactor.compact(dir, null, now);
+            compactSeconds += (System.nanoTime() - t) / 1e9;
+            if (compactor.getError() != null) throw compactor.getError();
+            if (before != null) {
+                String base = oldest.getPath().substring(0, oldest.getPath().length() - SessionCompactor.RAW_SUFFIX.length());
+                for (String suffix : new String[]{ SessionCompactor.SECONDS_SUFFIX, SessionCompactor.MINUTES_SUFFIX }) {
+                    RollupFile rollup = RollupFile.open(new File(base + suffix));
+                    for (int k = 0; k < before.length; k++) {
+                        Summary after = rollup.summarize(rollup.getDevice("dev" + k), Long.MIN_VALUE, Long.MAX_VALUE, new Summary());
+                        if (!after.toString().equals(before[k].toString())) {
+                            throw new IllegalStateException(suffix + " dev" + k + ": " + after + ", expected " + before[k]);
+                        }
+                    }
+                }
+                checked = true;
+            }
+            long raw = 0, seconds = 0, minutes = 0;
+            for (File file : dir.listFiles()) {
+                String name = file.getName();
+                if (name.endsWith(SessionCompactor.RAW_SUFFIX)) raw += file.length();
+                else if (name.endsWith(SessionCompactor.SECONDS_SUFFIX)) seconds += file.length();
+                else if (name.endsWith(SessionCompactor.MINUTES_SUFFIX)) minutes += file.length();
+            }
+            if (d % 5 == 0 || d <= 3 || d == 8 || d == 9) {
+                System.out.printf("retention: day %2d: raw %5.1f MB, per second %5.1f MB, per minute %5.2f MB, total %5.1f MB%n",
+                        d, raw / 1e6, seconds / 1e6, minutes / 1e6, (raw + seconds + minutes) / 1e6);
+            }
+        }
+        if (!checked) throw new IllegalStateException("no rollup checked");
+        System.out.printf("retention: %d readings; compaction %.2f s in total, %.0f ns per reading rolled up%n",
+                readings, compactSeconds, compactSeconds * 1e9 / (readings - 2L * 24 * 36000 * devices));
+
+        // the same work throttled to a quarter of a core
+        File session = new File(dir, "throttled" + SessionCompactor.RAW_SUFFIX);
+        long[][] times = new long[devices][24 * 36000];
+        int[][] values = new int[devices][24 * 36000];
+        for (int k = 0; k < devices; k++) {
+            generate(times[k], values[k], 100, 2, 40 + 10 * k, 0.5, 0, 1);
+        }
+        record(session, times, values);
+        session.setLastModified(first);
+        compactor.setDutyCycle(0.25);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpu = threads.getCurrentThreadCpuTime();
+        long t = System.nanoTime();
+        compactor.compact(dir, null, first + 3 * day);
+        double wall = (System.nanoTime() - t) / 1e9;
+        cpu = threads.getCurrentThreadCpuTime() - cpu;
+        System.out.printf("retention: a day of %d devices at a duty cycle of 0.25: %.2f s, CPU %.0f%% of one core, slept %.2f s%n",
+                devices, wall, cpu / 1e7 / wall, compactor.getSlept() / 1e3);
+
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private static void quantiles(int devices, int seconds) throws IOException, InterruptedException {
+        File dir = File.createTempFile("benchmark", ".dir");
+        dir.delete();
+        dir.mkdirs();
+        long hour = 3600 * 1000L;
+        int hours = 24;
+        File[] files = new File[hours];
+        for (int h = 0; h < hours; h++) {
+            files[h] = new File(dir, String.format("%05d%s", h, SessionCompactor.RAW_SUFFIX));
+            long[][] times = new long[devices][36000];
+            int[][] values = new int[devices][36000];
+            for (int k = 0; k < devices; k++) {
+                generate(times[k], values[k], 100, 2, 40 + 20 * k + (h % 8) * 5, 2, 0.001, 1);
+                for (int i = 0; i < times[k].length; i++) {
+                    times[k][i] += h * hour;
+                }
+            }
+            record(files[h], times, values);
+        }
+
+        // from the histogram blocks against decoding every reading
+        byte[][] encoded = new byte[hours * devices][];
+        Histogram day = new Histogram();
+        long stored = 0, decoded = 0, passes = 0;
+        long end = System.nanoTime() + seconds * 1000000000L;
+        do {
+            long t = System.nanoTime();
+            for (int h = 0; h < hours; h++) {
+                SessionFile session = SessionFile.open(files[h]);
+                for (int k = 0; k < devices; k++) {
+                    Histogram histogram = session.histogram(k, new Histogram());
+                    encoded[h * devices + k] = histogram.toBytes();
+                    if (passes == 0) day.add(histogram);
+                }
+            }
+            stored += System.nanoTime() - t;
+            t = System.nanoTime();
+            Histogram check = new Histogram();
+            for (int h = 0; h < hours; h++) {
+                SessionFile session = SessionFile.open(files[h]);
+                for (int k = 0; k < devices; k++) {
+                    SessionFile.Cursor cursor = session.cursor(k);
+                    while (cursor.next()) check.add(cursor.getValue());
+                }
+            }
+            decoded += System.nanoTime() - t;
+            if (passes == 0) {
+                for (int v = 0; v < Histogram.VALUES; v++) {
+                    if (check.getCount(v) != day.getCount(v)) {
+                        throw new IllegalStateException("value " + v + ": " + day.getCount(v) + ", expected " + check.getCount(v));
+                    }
+                }
+            }
+            passes++;
+        } while (System.nanoTime() < end);
+        int size = 0;
+        for (byte[] bytes : encoded) {
+            size += bytes.length;
+        }
+        System.out.printf("quantiles: a day of %d devices, %s; %d bytes per session and device%n",
+                devices, day, size / encoded.length);
+        System.out.printf("quantiles: histograms of %d sessions from their blocks %.2f ms, decoding every reading %.1f ms%n",
+                hours, stored / 1e6 / passes, decoded / 1e6 / passes);
+
+        // a month of sessions as the catalog holds them
+        int month = 30 * hours * devices;
+        long merged = 0;
+        passes = 0;
+        Histogram total = new Histogram();
+        end = System.nanoTime() + seconds * 1000000000L;
+        do {
+            long t = System.nanoTime();
+            total.reset();
+            for (int i = 0; i < month; i++) {
+                total.addEncoded(encoded[i % encoded.length]);
+            }
+            int p99 = total.quantile(0.99);
+            merged += System.nanoTime() - t;
+            passes += p99 >= 0 ? 1 : 0;
+        } while (System.nanoTime() < end);
+        System.out.printf("quantiles: merging a month, %d histograms: %.2f ms, %s%n", month, merged / 1e6 / passes, total);
+
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private static void report(int devices, int days, int seconds) throws IOException, InterruptedException {
+        File dir = File.createTempFile("benchmark", ".dir");
+        dir.delete();
+        dir.mkdirs();
+        long hour = 3600 * 1000L;
+        int hours = days * 24;
+        List<File> files = new ArrayList<File>();
+        for (int h = 0; h < hours; h++) {
+            File file = new File(dir, String.format("%05d%s", h, SessionCompactor.RAW_SUFFIX));
+            long[][] times = new long[devices][36000];
+            int[][] values = new int[devices][36000];
+            for (int k = 0; k < devices; k++) {
+                generate(times[k], values[k], 100, 2, 40 + 20 * k + (h % 8) * 5, 2, 0.001, 1);
+                for (int i = 0; i < times[k].length; i++) {
+                    times[k][i] += h * hour;
+                }
+            }
+            record(file, times, values);
+            files.add(file);
+        }
+        long start = SessionFile.open(files.get(0)).getStartTime();
+        Settings settings = new Settings();
+
+        long[][] ranges = {{Long.MIN_VALUE, Long.MAX_VALUE}, {start + 24 * hour + hour / 2, start + 4 * 24 * hour}};
+        for (long[] range : ranges) {
+            long t = System.nanoTime();
+            BatchAnalytics.Aggregate expected = reportOneByOne(files, settings, range[0], range[1]);
+            double oneByOne = (System.nanoTime() - t) / 1e6;
+            String name = range[0] == Long.MIN_VALUE ? "the week" : "three days";
+            System.out.printf("report: %s, %d sessions one by one %.0f ms; %s%n", name, files.size(), oneByOne, expected);
+
+            int processors = Runtime.getRuntime().availableProcessors();
+            double single = 0;
+            for (int threads = 1; threads <= 2 * processors; threads *= 2) {
+                BatchAnalytics.Report report = null;
+                long best = Long.MAX_VALUE;
+                long end = System.nanoTime() + seconds * 1000000000L;
+                do {
+                    t = System.nanoTime();
+                    report = new BatchAnalytics(settings).range(range[0], range[1]).threads(threads).run(files);
+                    best = Math.min(best, System.nanoTime() - t);
+                } while (System.nanoTime() < end);
+                checkReport(report.total, expected);
+                if (threads == 1) single = best;
+                System.out.printf("report: %s on %d threads, %d tasks: %.0f ms, %.2fx%n",
+                        name, threads, report.tasks, best / 1e6, single / best);
+            }
+        }
+
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * The report the slow way: every session in turn, every reading of
+     * every device.
+     */
+    private static BatchAnalytics.Aggregate reportOneByOne(List<File> files, Settings settings, long from, long to)
+            throws IOException {
+        BatchAnalytics.Aggregate result = new BatchAnalytics.Aggregate();
+        for (File file : files) {
+            SessionFile session = SessionFile.open(file);
+            for (int device = 0; device < session.getDeviceCount(); device++) {
+                SessionFile.Cursor cursor = session.cursor(device);
+                boolean hasPrevious = false;
+                long previous = 0;
+                while (cursor.next()) {
+                    long time = cursor.getTime();
+                    if (time >= to) break;
+                    if (time >= from) {
+                        int value = cursor.getValue();
+                        long hold = hasPrevious ? BlockEncoder.hold(previous, time) : 0;
+                        result.summary.add(value, value > BlockEncoder.ABOVE_THRESHOLD ? hold : 0);
+                        result.histogram.add(value);
+                        int zone = value <= settings.greenMax ? ZoneTimes.GREEN
+                                : value >= settings.redMin ? ZoneTimes.RED : ZoneTimes.YELLOW;
+                        result.zones[zone] += hold;
+                        if (value > settings.line) result.zones[ZoneTimes.ABOVE_LINE] += hold;
+                    }
+                    previous = time;
+                    hasPrevious = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void checkReport(BatchAnalytics.Aggregate actual, BatchAnalytics.Aggregate expected) {
+        Summary a = actual.summary, e = expected.summary;
+        if (a.getCount() != e.getCount() || a.getSum() != e.getSum() || a.getMin() != e.getMin()
+                || a.getMax() != e.getMax() || a.getTimeAbove() != e.getTimeAbove()) {
+            throw new IllegalStateException("summary " + a + ", expected " + e);
+        }
+        for (int v = 0; v < Histogram.VALUES; v++) {
+            if (actual.histogram.getCount(v) != expected.histogram.getCount(v)) {
+                throw new IllegalStateException("value " + v + ": " + actual.histogram.getCount(v)
+                        + ", expected " + expected.histogram.getCount(v));
+            }
+        }
+        if (!Arrays.equals(actual.zones, expected.zones)) {
+            throw new IllegalStateException("zones " + Arrays.toString(actual.zones)
+                    + ", expected " + Arrays.toString(expected.zones));
+        }
+    }
+
+    /**
+     * The summary the slow way: every reading of the device.
+     */
+    private static void scan(SessionFile session, int device, long from, long to, Summary result) {
+        result.reset();
+        SessionFile.Cursor cursor = session.cursor(device);
+        boolean hasPrevious = false;
+        long previous = 0;
+        while (cursor.next()) {
+            long time = cursor.getTime();
+            if (time >= to) break;
+            if (time >= from) {
+                int value = cursor.getValue();
+                boolean above = value > BlockEncoder.ABOVE_THRESHOLD && hasPrevious;
+                result.add(value, above ? BlockEncoder.hold(previous, time) : 0);
+            }
+            previous = time;
+            hasPrevious = true;
+        }
+    }
+
+    private static void checkSeek(SessionFile.Cursor cursor, long[] times, int[] values, long time) {
+        int i = 0;
+        while (i < times.length && times[i] < time) i++;
+        if (!cursor.next() || cursor.getTime() != times[i] || cursor.getValue() != values[i]) {
+            throw new IllegalStateException("seek to " + time + " missed reading " + i);
+        }
+    }
+
+    /**
+     * Record the devices the way the app does, readings in time order.
+     */
+    static void record(File file, long[][] times, int[][] values) throws InterruptedException {
+        SessionRecorder recorder = new SessionRecorder(file, times[0][0]);
+        recorder.setBlocking(true);
+        int devices = times.length;
+        ReadingListener[] listeners = new ReadingListener[devices];
+        for (int d = 0; d < devices; d++) {
+            listeners[d] = recorder.listenerFor("dev" + d);
+        }
+        int[] next = new int[devices];
+        while (true) {
+            int d = -1;
+            for (int k = 0; k < devices; k++) {
+                if (next[k] < times[k].length && (d < 0 || times[k][next[k]] < times[d][next[d]])) d = k;
+            }
+            if (d < 0) break;
+            int i = next[d]++;
+            listeners[d].onReading(times[d][i], values[d][i]);
+        }
+        recorder.close();
+        recorder.awaitClose(60000);
+        if (recorder.getDropped() > 0) throw new IllegalStateException(recorder.getDropped() + " blocks dropped");
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void generate(long[] times, int[] values, long period, double jitter, double level,
+                                 double noise, double slope, int chunk) {
+        Random random = new Random(1);
+        long time = 1400000000000L;
+        for (int i = 0; i < times.length; i++) {
+            if (i % chunk == 0) {
+                time += period * chunk;
+                times[i] = time + Math.round(random.nextGaussian() * jitter);
+            } else {
+                times[i] = times[i - 1];
+            }
+            long value = Math.round(level + slope * i + random.nextGaussian() * noise);
+            values[i] = (int) Math.max(0, Math.min(253, value));
+        }
+    }
+
+    private static int encode(BlockEncoder encoder, long[] times, int[] values, byte[] out) {
+        int pos = 0;
+        for (int i = 0; i < times.length; i++) {
+            if (!encoder.add(times[i], values[i])) {
+                pos = encoder.writeTo(out, pos, 0);
+                encoder.add(times[i], values[i]);
+            }
+        }
+        return encoder.writeTo(out, pos, 0);
+    }
+
+    private static long decode(BlockDecoder decoder, ByteBuffer buffer, int size) {
+        long sum = 0;
+        for (int pos = 0; pos < size; pos += BlockDecoder.getSize(buffer, pos)) {
+            decoder.open(buffer, pos);
+            while (decoder.next()) {
+                sum += decoder.getValue();
+            }
+        }
+        return sum;
+    }
+
+    private static void checkRoundTrip(byte[] out, int size, long[] times, int[] values) {
+        ByteBuffer buffer = ByteBuffer.wrap(out, 0, size);
+        BlockDecoder decoder = new BlockDecoder();
+        int i = 0;
+        for (int pos = 0; pos < size; pos += BlockDecoder.getSize(buffer, pos)) {
+            decoder.open(buffer, pos);
+            while (decoder.next()) {
+                if (decoder.getTime() != times[i] || decoder.getValue() != values[i]) {
+                    throw new IllegalStateException("mismatch at reading " + i);
+                }
+                i++;
+            }
+        }
+        if (i != times.length) throw new IllegalStateException(i + " readings decoded of " + times.length);
+    }
+}
@@ -1,8 +1,11 @@
 package com.chedima.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -10,6 +13,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Serializable;
 
@@ -44,10 +48,16 @@ import android.util.Log;
 	} else {
 	    SerializeObject.WriteSettings(act, "", "myobject.dat");
 	}
+	For large objects stream them through Base64 instead, without copies
+	of the whole file in memory; the format is the same:
+
+	SerializeObject.writeObject(act, give, "myobject.dat");
+	Object obj = SerializeObject.readObject(act, "myobject.dat");
  */
 
 public class SerializeObject {
     private final static String TAG = "SerializeObject";
+    private final static int BUFFER_SIZE = 8192;
 
     /**
      * Create a String from the Object using Base64 encoding
@@ -92,19 +102,114 @@ public class SerializeObject {
     }
 
     /**
-     * Save serialized settings to a file
+     * Serialize the object straight into a file, in the same Base64 format
+     * objectToString() and WriteSettings() produce. Nothing is held in
+     * memory but the stream buffers, so large objects cost no full copies.
+     * Written to a temporary file, synced and renamed like WriteSettings().
+     * Does disk I/O, never call it on the UI thread.
+     * @return true if the file was written
+     */
+    public static boolean writeObject(Context context, Serializable object, String filename) {
+        String tempname = filename + ".tmp";
+        boolean written = false;
+        FileOutputStream file = null;
+        // the outermost stream opened so far, closed if anything fails
+        OutputStream out = null;
+        try {
+            final FileOutputStream fOut = context.openFileOutput(tempname, Context.MODE_PRIVATE);
+            file = fOut;
+            out = new BufferedOutputStream(fOut, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    flush();
+                    fOut.getFD().sync();
+                    super.close();
+                }
+            };
+            // writes the stream header already; closing the Base64 stream
+            // writes its last group and syncs
+            ObjectOutputStream oos = new ObjectOutputStream(new Base64OutputStream(out, 0));
+            out = oos;
+            oos.writeObject(object);
+            out = null;
+            oos.close();
+            written = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            // the descriptor goes before the temporary file does
+            closeQuietly(out);
+            closeQuietly(file);
+        }
+        File temp = context.getFileStreamPath(tempname);
+        if (!written || !temp.renameTo(context.getFileStreamPath(filename))) {
+            Log.e(TAG, "Object not saved filename = " + filename);
+            temp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    private static void closeQuietly(OutputStream out) {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Deserialize an object straight from a file written by writeObject()
+     * or WriteSettings(), decoding the Base64 on the way in one pass. A
+     * missing file is not created. Does disk I/O, never call it on the UI
+     * thread.
+     * @return the object, or null if there is none or it cannot be read
+     */
+    public static Object readObject(Context context, String filename) {
+        InputStream instream;
+        try {
+            instream = context.openFileInput(filename);
+        } catch (FileNotFoundException f) {
+            return null;
+        }
+        try {
+            ObjectInputStream ois = new ObjectInputStream(new Base64InputStream(
+                    new BufferedInputStream(instream, BUFFER_SIZE), 0));
+            try {
+                return ois.readObject();
+            } finally {
+                ois.close();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Object not read filename = " + filename, e);
+            try {
+                instream.close();
+            } catch (IOException ignored) {
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Save serialized settings to a file. Written to a temporary file,
+     * synced and renamed, so a crash leaves either the old or the new
+     * settings. Does disk I/O, never call it on the UI thread.
      * @param context
      * @param data
      */
     public static void WriteSettings(Context context, String data, String filename){ 
+        String tempname = filename + ".tmp";
         FileOutputStream fOut = null; 
         OutputStreamWriter osw = null;
+        boolean written = false;
 
         try{
-            fOut = context.openFileOutput(filename, Context.MODE_PRIVATE);       
+            fOut = context.openFileOutput(tempname, Context.MODE_PRIVATE);       
             osw = new OutputStreamWriter(fOut); 
             osw.write(data); 
             osw.flush(); 
+            fOut.getFD().sync();
+            written = true;
             //Toast.makeText(context, "Settings saved",Toast.LENGTH_SHORT).show();
         } catch (Exception e) {       
             e.printStackTrace(); 
@@ -120,10 +225,17 @@ public class SerializeObject {
                    e.printStackTrace(); 
             } 
         } 
+        File temp = context.getFileStreamPath(tempname);
+        if (!written || !temp.renameTo(context.getFileStreamPath(filename))) {
+            Log.e(TAG, "Settings not saved filename = " + filename);
+            temp.delete();
+        }
     }
 
     /**
-     * Read data from file and put it into a string
+     * Read data from file and put it into a string. A missing file gives
+     * an empty string and is not created. Does disk I/O, never call it on
+     * the UI thread.
      * @param context
      * @param filename - fully qualified string name
      * @return
@@ -133,8 +245,7 @@ public class SerializeObject {
         try{
             // open the file for reading
             InputStream instream = context.openFileInput(filename);
-            // if file the available for reading
-            if (instream != null) {
+            try {
                 // prepare the file for reading
                 InputStreamReader inputreader = new InputStreamReader(instream);
                 BufferedReader buffreader = new BufferedReader(inputreader);
@@ -145,18 +256,14 @@ public class SerializeObject {
                     // do something with the settings from the file
                     dataBuffer.append(newLine);
                 }
+            } finally {
                 // close the file again
                 instream.close();
             }
 
-        } catch (java.io.FileNotFoundException f) {
-            // do something if the myfilename.txt does not exits
-            Log.e(TAG, "FileNot Found in ReadSettings filename = " + filename);
-            try {
-                context.openFileOutput(filename, Context.MODE_PRIVATE);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            }
+        } catch (FileNotFoundException f) {
+            // nothing saved yet, which is not an error
+            Log.i(TAG, "No settings yet in ReadSettings filename = " + filename);
         } catch (IOException e) {
             Log.e(TAG, "IO Error in ReadSettings filename = " + filename);
         }